@@ -60,15 +60,21 @@ block: '{' stat* '}'                                    # fullBlock
 
 expr: '(' expr ')'                                      # parens
     | expr '(' argList? ')'                             # call
+    | expr '[' expr ']'                                 # index
+    | expr '.' ID                                       # getProp
     | FUNCTION '(' paramList? ')' block                 # func
     | INT                                               # int
     | BOOL                                              # bool
     | NULL                                              # null
+    | '[' argList? ']'                                  # array
     | ID                                                # id
+    | '{' propList? '}'                                 # object
     | '{' stat* '}'                                     # blockVal
     | expr op=( '*' | '/' | '%' ) expr                  # MulDivMod
     | expr op=('+' | '-') expr                          # AddSub
     | expr op=(LT | LE | GT | GE | EQ) expr             # Compare
+    | <assoc=right> expr '[' expr ']' ASSIGN expr       # indexAssign
+    | <assoc=right> expr '.' ID ASSIGN expr             # setProp
     | ID ASSIGN expr                                    # assign
     | VAR ID (ASSIGN expr)?                             # varDecl
     ;
@@ -77,4 +83,10 @@ paramList: ID (',' ID)*
     ;
 
 argList: expr (',' expr)*
+    ;
+
+propList: prop (',' prop)*
+    ;
+
+prop: ID ':' expr
     ;
\ No newline at end of file
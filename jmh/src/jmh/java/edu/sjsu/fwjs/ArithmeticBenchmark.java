@@ -0,0 +1,72 @@
+package edu.sjsu.fwjs;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A loop of n steps of arithmetic on a sum that fits in an int, and of
+ * the same loop on a sum that does not, which is computed on as a
+ * BigIntVal.  The first is the common case that overflow checks must
+ * not slow down.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ArithmeticBenchmark {
+    private static final String LOOP =
+            "var i = 0;\n"
+            + "while (i < n) { s = s + i * i - i / 3; i = i + 1; }\n"
+            + "s;\n";
+
+    @Param({"1000"})
+    public int n;
+
+    @Param({"tree", "jvm", "vm"})
+    public String engine;
+
+    private final PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+    private Expression[] progs;
+    private CompiledCode[] compiled;
+    private VmFunction[] vmProgs;
+
+    @Setup
+    public void setup() {
+        String[] sources = { "var s = 0;\n" + LOOP, "var s = 3000000000;\n" + LOOP };
+        progs = new Expression[sources.length];
+        compiled = new CompiledCode[sources.length];
+        vmProgs = new VmFunction[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            progs[i] = Interpreter.parse(CharStreams.fromString("var n = " + n + ";\n" + sources[i]));
+            if (engine.equals("jvm"))
+                compiled[i] = BytecodeCompiler.compile(progs[i]);
+            else if (engine.equals("vm"))
+                vmProgs[i] = VmCompiler.compile(progs[i]);
+        }
+    }
+
+    private Value run(int i) {
+        Environment env = new Environment(out);
+        switch (engine) {
+            case "jvm":
+                return compiled[i].run(0, env);
+            case "vm":
+                return new Vm().execute(vmProgs[i], env);
+            default:
+                return progs[i].evaluate(env);
+        }
+    }
+
+    @Benchmark
+    public Value smallInts() {
+        return run(0);
+    }
+
+    @Benchmark
+    public Value promotedInts() {
+        return run(1);
+    }
+}
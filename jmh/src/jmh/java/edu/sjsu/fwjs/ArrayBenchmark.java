@@ -0,0 +1,92 @@
+package edu.sjsu.fwjs;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A sequence of n numbers as a list of pair closures (as in lists.fwjs)
+ * and as an array: building it, and building it and then reading each
+ * element by its index.  Reading element k of the list takes k calls.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ArrayBenchmark {
+    private static final String LIST =
+            "var pair = function(x, y) { function(f) { f(x, y); }; };\n"
+            + "var head = function(p) { p(function(x, y) { x; }); };\n"
+            + "var tail = function(p) { p(function(x, y) { y; }); };\n"
+            + "var nth = function(l, k) { if (k == 0) head(l); else nth(tail(l), k - 1); };\n"
+            + "var lst = null;\n"
+            + "var i = n;\n"
+            + "while (i > 0) { i = i - 1; lst = pair(i, lst); }\n";
+
+    private static final String LIST_INDEX =
+            "var sum = 0;\n"
+            + "while (i < n) { sum = sum + nth(lst, i); i = i + 1; }\n"
+            + "sum;\n";
+
+    private static final String ARRAY =
+            "var a = [];\n"
+            + "var i = 0;\n"
+            + "while (i < n) { a[i] = i; i = i + 1; }\n";
+
+    private static final String ARRAY_INDEX =
+            "var sum = 0;\n"
+            + "i = 0;\n"
+            + "while (i < length(a)) { sum = sum + a[i]; i = i + 1; }\n"
+            + "sum;\n";
+
+    @Param({"100", "1000"})
+    public int n;
+
+    @Param({"tree", "vm"})
+    public String engine;
+
+    private final PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+    private Expression[] progs;
+    private VmFunction[] vmProgs;
+
+    @Setup
+    public void setup() {
+        String[] sources = { LIST, LIST + LIST_INDEX, ARRAY, ARRAY + ARRAY_INDEX };
+        progs = new Expression[sources.length];
+        vmProgs = new VmFunction[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            progs[i] = Interpreter.parse(CharStreams.fromString("var n = " + n + ";\n" + sources[i]));
+            if (engine.equals("vm"))
+                vmProgs[i] = VmCompiler.compile(progs[i]);
+        }
+    }
+
+    private Value run(int i) {
+        Environment env = new Environment(out);
+        if (engine.equals("vm"))
+            return new Vm().execute(vmProgs[i], env);
+        return progs[i].evaluate(env);
+    }
+
+    @Benchmark
+    public Value buildList() {
+        return run(0);
+    }
+
+    @Benchmark
+    public Value indexList() {
+        return run(1);
+    }
+
+    @Benchmark
+    public Value buildArray() {
+        return run(2);
+    }
+
+    @Benchmark
+    public Value indexArray() {
+        return run(3);
+    }
+}
@@ -0,0 +1,97 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares JMH results (in CSV) with a baseline.
+ *
+ * Usage: BaselineCheck baseline.csv results.csv [tolerance]
+ *
+ * A benchmark regresses if its time grows by more than the tolerance
+ * (a fraction, 0.25 by default), or its allocation per operation
+ * (gc.alloc.rate.norm) grows by more than 10%.  Allocation is checked
+ * more strictly since it does not depend on the machine.  Benchmarks
+ * that are only in one of the files are ignored.  Exits with status 1
+ * if anything regressed.
+ */
+public class BaselineCheck {
+    private static final double ALLOCATION_TOLERANCE = 0.10;
+
+    public static void main(String[] args) throws IOException {
+        Map<String,Double> baseline = read(args[0]);
+        Map<String,Double> results = read(args[1]);
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.25;
+
+        int regressions = 0;
+        for (Map.Entry<String,Double> result : results.entrySet()) {
+            Double base = baseline.get(result.getKey());
+            if (base == null)
+                continue;
+            boolean allocation = result.getKey().contains("gc.alloc.rate.norm");
+            double limit = base * (1 + (allocation ? ALLOCATION_TOLERANCE : tolerance));
+            boolean regressed = result.getValue() > limit && result.getValue() - base > 1e-3;
+            if (regressed)
+                regressions++;
+            System.out.printf("%-9s %-90s %14.3f %14.3f%n", regressed ? "REGRESSED" : "ok",
+                    result.getKey(), base, result.getValue());
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " regression(s)");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the score of each benchmark, keyed by its name and parameters.
+     * Only the primary score and the normalized allocation rate are kept.
+     * The columns of parameters a benchmark does not have are empty, and
+     * left out of its key, so that adding a benchmark with parameters of
+     * its own does not change the keys of the others.
+     */
+    private static Map<String,Double> read(String file) throws IOException {
+        Map<String,Double> scores = new LinkedHashMap<String,Double>();
+        List<String> lines = Files.readAllLines(Paths.get(file));
+        List<String> header = fields(lines.get(0));
+        int score = header.indexOf("Score");
+        for (String line : lines.subList(1, lines.size())) {
+            List<String> row = fields(line);
+            String name = row.get(0);
+            if (name.contains(":") && !name.contains("gc.alloc.rate.norm"))
+                continue;
+            StringBuilder key = new StringBuilder(name);
+            for (int i = 0; i < header.size(); i++) {
+                if (header.get(i).startsWith("Param: ") && i < row.size() && !row.get(i).isEmpty())
+                    key.append(' ').append(header.get(i).substring(7)).append('=').append(row.get(i));
+            }
+            scores.put(key.toString(), Double.parseDouble(row.get(score)));
+        }
+        return scores;
+    }
+
+    /**
+     * Splits a CSV line, with fields possibly in double quotes.
+     */
+    private static List<String> fields(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"')
+                quoted = !quoted;
+            else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else
+                field.append(c);
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,37 @@
+package edu.sjsu.fwjs;
+
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Building the AST from a parse tree, and the passes that follow it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class BuildBenchmark {
+    @Param({"closure", "controlStructs", "examples", "factorial", "functions", "lists",
+            "operators", "scoping", "test", "while",
+            "stress-recursion", "stress-loop", "stress-lists"})
+    public String script;
+
+    private ParseTree tree;
+
+    @Setup
+    public void setup() {
+        tree = FwjsParser.forThread().parse(CharStreams.fromString(Programs.source(script)));
+    }
+
+    @Benchmark
+    public Expression build() {
+        return new ExpressionBuilderVisitor().visit(tree);
+    }
+
+    @Benchmark
+    public Expression buildOptimizeResolve() {
+        return Interpreter.resolve(new ExpressionBuilderVisitor().visit(tree), Optimizer.standard());
+    }
+}
@@ -0,0 +1,58 @@
+package edu.sjsu.fwjs;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Running a parsed program on each engine, with its output discarded.
+ * Comparing tree with stackless gives the cost of running calls on the
+ * heap instead of the Java stack.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class EvalBenchmark {
+    @Param({"closure", "controlStructs", "examples", "factorial", "functions", "lists",
+            "operators", "scoping", "test", "while",
+            "stress-recursion", "stress-loop", "stress-lists"})
+    public String script;
+
+    @Param({"tree", "stackless", "jvm", "vm"})
+    public String engine;
+
+    private final PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+    private Expression prog;
+    private CompiledCode compiled;
+    private VmFunction vmProgram;
+    private StacklessEvaluator stackless;
+
+    @Setup
+    public void setup() {
+        prog = Interpreter.parse(CharStreams.fromString(Programs.source(script)));
+        if (engine.equals("jvm"))
+            compiled = BytecodeCompiler.compile(prog);
+        else if (engine.equals("vm"))
+            vmProgram = VmCompiler.compile(prog);
+        else if (engine.equals("stackless"))
+            stackless = new StacklessEvaluator();
+    }
+
+    @Benchmark
+    public Value evaluate() {
+        Environment env = new Environment(out);
+        switch (engine) {
+            case "jvm":
+                return compiled.run(0, env);
+            case "vm":
+                return new Vm().execute(vmProgram, env);
+            case "stackless":
+                return stackless.evaluate(prog, env);
+            default:
+                return prog.evaluate(env);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A request run against a prelude of n global variables and a library
+ * function: in a fork of a snapshot of the prelude's globals, or after
+ * running the prelude again.  A new process, which has neither, starts
+ * by parsing the prelude and running it (startFromSource), or by
+ * restoring its globals from a heap image (restoreImage).  fork alone
+ * is the cost of the snapshot copy, which does not depend on n.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ForkBenchmark {
+    private static final String REQUEST =
+            "var r = scale(v7 + v42);\n"
+            + "v42 = r;\n"
+            + "print(r);\n";
+
+    @Param({"10000"})
+    public int n;
+
+    private final PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+    private VmFunction prelude;
+    private VmFunction request;
+    private Environment snapshot;
+    private String source;
+    private Path image;
+
+    @Setup
+    public void setup() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++)
+            sb.append("var v").append(i).append(" = ").append(i).append(";\n");
+        sb.append("var factor = 3;\n");
+        sb.append("var scale = function(x) { x * factor; };\n");
+        source = sb.toString();
+        Expression prog = Interpreter.parse(CharStreams.fromString(source));
+        prelude = VmCompiler.compile(prog);
+        request = VmCompiler.compile(Interpreter.parse(CharStreams.fromString(REQUEST)));
+        Environment env = new Environment(out);
+        new Vm().execute(prelude, env);
+        snapshot = env.snapshot();
+        image = Files.createTempFile("fwjs", ".image");
+        HeapImage.save(image, prog, env);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(image);
+    }
+
+    @Benchmark
+    public Environment fork() {
+        return snapshot.fork();
+    }
+
+    @Benchmark
+    public Value forkAndRun() {
+        return new Vm().execute(request, snapshot.fork());
+    }
+
+    @Benchmark
+    public Value rerunPrelude() {
+        Environment env = new Environment(out);
+        new Vm().execute(prelude, env);
+        return new Vm().execute(request, env);
+    }
+
+    @Benchmark
+    public Value startFromSource() {
+        Environment env = new Environment(out);
+        new Vm().execute(VmCompiler.compile(Interpreter.parse(CharStreams.fromString(source))), env);
+        return new Vm().execute(request, env);
+    }
+
+    @Benchmark
+    public Value restoreImage() throws IOException {
+        Environment env = new Environment(out);
+        HeapImage.load(image).restore(env, true);
+        return new Vm().execute(request, env);
+    }
+}
@@ -0,0 +1,52 @@
+package edu.sjsu.fwjs;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Naive recursive fibonacci, with and without memoizing pure functions
+ * (memo is the number of results each closure remembers, 0 for none).
+ * Each operation is a new run, so the cache starts out empty.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class MemoBenchmark {
+    private static final String FIB =
+            "var fib = function(n) { if (n < 2) n; else fib(n - 1) + fib(n - 2); };\n"
+            + "print(fib(n));\n";
+
+    @Param({"20", "25"})
+    public int n;
+
+    @Param({"0", "1024"})
+    public int memo;
+
+    @Param({"tree", "vm"})
+    public String engine;
+
+    private final PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+    private Expression prog;
+    private VmFunction vmProgram;
+
+    @Setup
+    public void setup() {
+        prog = Interpreter.parse(CharStreams.fromString("var n = " + n + ";\n" + FIB));
+        if (memo > 0)
+            PurityAnalysis.memoize(prog, memo);
+        if (engine.equals("vm"))
+            vmProgram = VmCompiler.compile(prog);
+    }
+
+    @Benchmark
+    public Value fib() {
+        Environment env = new Environment(out);
+        if (engine.equals("vm"))
+            return new Vm().execute(vmProgram, env);
+        return prog.evaluate(env);
+    }
+}
@@ -0,0 +1,119 @@
+package edu.sjsu.fwjs;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Record-heavy scripts.  The read benchmarks sum a property of n
+ * records taken in turn from an array of records of 1, 4 or 8 shapes,
+ * so that the property access is monomorphic, polymorphic or
+ * megamorphic, or of objects in dictionary mode.  The build benchmarks
+ * make n two-property records, with a literal or by setting the
+ * properties of an empty object, and sum their properties.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ObjectBenchmark {
+    private static final String READ =
+            "var sum = 0;\n"
+            + "var m = length(rs);\n"
+            + "var i = 0;\n"
+            + "while (i < n) { sum = sum + rs[i % m].x; i = i + 1; }\n"
+            + "sum;\n";
+
+    private static final String LITERALS =
+            "var sum = 0;\n"
+            + "var i = 0;\n"
+            + "var r = null;\n"
+            + "while (i < n) { r = { x: i, y: 1 }; sum = sum + r.x + r.y; i = i + 1; }\n"
+            + "sum;\n";
+
+    private static final String SETS =
+            "var sum = 0;\n"
+            + "var i = 0;\n"
+            + "var r = null;\n"
+            + "while (i < n) { r = {}; r.x = i; r.y = 1; sum = sum + r.x + r.y; i = i + 1; }\n"
+            + "sum;\n";
+
+    @Param({"1000"})
+    public int n;
+
+    @Param({"tree", "vm"})
+    public String engine;
+
+    private final PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+    private Expression[] progs;
+    private VmFunction[] vmProgs;
+
+    /**
+     * An array of records of the given number of shapes, each with an x.
+     */
+    private static String records(int shapes) {
+        StringBuilder sb = new StringBuilder("var rs = [");
+        for (int k = 0; k < shapes; k++)
+            sb.append(k > 0 ? ", " : "").append("{ a").append(k).append(": 0, x: ").append(k).append(" }");
+        return sb.append("];\n").toString();
+    }
+
+    private static String dictionaries() {
+        StringBuilder sb = new StringBuilder("var rs = [{");
+        for (int k = 0; k <= Shape.MAX_PROPERTIES; k++)
+            sb.append("a").append(k).append(": 0, ");
+        return sb.append("x: 1 }];\n").toString();
+    }
+
+    @Setup
+    public void setup() {
+        String[] sources = { records(1) + READ, records(4) + READ, records(8) + READ,
+                dictionaries() + READ, LITERALS, SETS };
+        progs = new Expression[sources.length];
+        vmProgs = new VmFunction[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            progs[i] = Interpreter.parse(CharStreams.fromString("var n = " + n + ";\n" + sources[i]));
+            if (engine.equals("vm"))
+                vmProgs[i] = VmCompiler.compile(progs[i]);
+        }
+    }
+
+    private Value run(int i) {
+        Environment env = new Environment(out);
+        if (engine.equals("vm"))
+            return new Vm().execute(vmProgs[i], env);
+        return progs[i].evaluate(env);
+    }
+
+    @Benchmark
+    public Value readMonomorphic() {
+        return run(0);
+    }
+
+    @Benchmark
+    public Value readPolymorphic() {
+        return run(1);
+    }
+
+    @Benchmark
+    public Value readMegamorphic() {
+        return run(2);
+    }
+
+    @Benchmark
+    public Value readDictionary() {
+        return run(3);
+    }
+
+    @Benchmark
+    public Value buildLiterals() {
+        return run(4);
+    }
+
+    @Benchmark
+    public Value buildBySets() {
+        return run(5);
+    }
+}
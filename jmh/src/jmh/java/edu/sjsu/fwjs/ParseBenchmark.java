@@ -0,0 +1,46 @@
+package edu.sjsu.fwjs;
+
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.openjdk.jmh.annotations.*;
+
+import edu.sjsu.fwjs.parser.FeatherweightJavaScriptLexer;
+import edu.sjsu.fwjs.parser.FeatherweightJavaScriptParser;
+
+/**
+ * Lexing and parsing to a parse tree: with a new lexer and parser in
+ * LL mode per script, and with the two-stage FwjsParser.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ParseBenchmark {
+    @Param({"closure", "controlStructs", "examples", "factorial", "functions", "lists",
+            "operators", "scoping", "test", "while",
+            "stress-recursion", "stress-loop", "stress-lists"})
+    public String script;
+
+    private String source;
+
+    @Setup
+    public void setup() {
+        source = Programs.source(script);
+    }
+
+    @Benchmark
+    public ParseTree parseLL() {
+        CharStream stream = CharStreams.fromString(source);
+        FeatherweightJavaScriptLexer lexer = new FeatherweightJavaScriptLexer(stream);
+        FeatherweightJavaScriptParser parser = new FeatherweightJavaScriptParser(new CommonTokenStream(lexer));
+        return parser.prog();
+    }
+
+    @Benchmark
+    public ParseTree parseTwoStage() {
+        return FwjsParser.forThread().parse(CharStreams.fromString(source));
+    }
+}
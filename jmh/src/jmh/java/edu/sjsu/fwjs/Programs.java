@@ -0,0 +1,57 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * The programs the benchmarks run: the scripts of fwjsScripts/ (found
+ * through the fwjs.scripts property), and generated stress programs,
+ * whose names start with "stress-".
+ */
+final class Programs {
+    private Programs() {}
+
+    static String source(String name) {
+        switch (name) {
+            case "stress-recursion":
+                // non-tail recursion, 2000 calls deep
+                return "var depth = function(n) { if (n == 0) 0; else 1 + depth(n - 1); };\n"
+                        + "print(depth(2000));\n";
+            case "stress-loop":
+                return "var i = 0; var s = 0;\n"
+                        + "while (i < 100000) { s = (s + i * 3) % 1000; i = i + 1; }\n"
+                        + "print(s);\n";
+            case "stress-lists":
+                return closureLists(1000);
+            default:
+                try {
+                    return new String(Files.readAllBytes(Paths.get(
+                            System.getProperty("fwjs.scripts", "fwjsScripts"), name + ".fwjs")),
+                            StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+        }
+    }
+
+    /**
+     * Builds a list of n numbers out of closures (as in lists.fwjs),
+     * and sums it.  The list is built by one statement per element,
+     * so the program is large to parse as well.
+     */
+    private static String closureLists(int n) {
+        StringBuilder s = new StringBuilder();
+        s.append("var pair = function(x, y) { function(f) { f(x, y); }; };\n");
+        s.append("var head = function(p) { p(function(x, y) { x; }); };\n");
+        s.append("var tail = function(p) { p(function(x, y) { y; }); };\n");
+        s.append("var lst = null;\n");
+        for (int i = 0; i < n; i++)
+            s.append("lst = pair(").append(i).append(", lst);\n");
+        s.append("var sum = function(l) { if (l == null) 0; else head(l) + sum(tail(l)); };\n");
+        s.append("print(sum(lst));\n");
+        return s.toString();
+    }
+}
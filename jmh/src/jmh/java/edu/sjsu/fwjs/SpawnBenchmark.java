@@ -0,0 +1,52 @@
+package edu.sjsu.fwjs;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The same work (eight calls of fib(20)) split across n tasks with
+ * spawn and join.  With n = 1 it is all done by one task, so the scores
+ * of the other values of n show the speedup on this machine.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SpawnBenchmark {
+    private static final String FAN_OUT =
+            "var fib = function(n) { if (n < 2) n; else fib(n - 1) + fib(n - 2); };\n"
+            + "var work = function(k) { var s = 0; while (k > 0) { s = s + fib(20); k = k - 1; }; s; };\n"
+            + "var fan = function(n, k) {\n"
+            + "  if (n < 2) join(spawn(function() { work(k); }));\n"
+            + "  else { var t = spawn(function() { work(k); }); fan(n - 1, k) + join(t); }\n"
+            + "};\n"
+            + "print(fan(n, 8 / n));\n";
+
+    @Param({"1", "4"})
+    public int n;
+
+    @Param({"tree", "vm"})
+    public String engine;
+
+    private final PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+    private Expression prog;
+    private VmFunction vmProgram;
+
+    @Setup
+    public void setup() {
+        prog = Interpreter.parse(CharStreams.fromString("var n = " + n + ";\n" + FAN_OUT));
+        if (engine.equals("vm"))
+            vmProgram = VmCompiler.compile(prog);
+    }
+
+    @Benchmark
+    public Value fanOut() {
+        Environment env = new Environment(out);
+        if (engine.equals("vm"))
+            return new Vm().execute(vmProgram, env);
+        return prog.evaluate(env);
+    }
+}
@@ -0,0 +1,560 @@
+package edu.sjsu.fwjs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A cache of built expression trees, so that a script that has not
+ * changed is not lexed and parsed again.
+ *
+ * An entry is named after the SHA-256 of the cache VERSION and the
+ * source, and holds the tree as built by the ExpressionBuilderVisitor
+ * (before optimization and scope resolution), in this format:
+ *
+ * <pre>
+ *   magic "FWJS", int VERSION, int CRC32 of the rest,
+ *   varint string count, strings (varint length, UTF-8 bytes),
+ *   root node
+ * </pre>
+ *
+ * A node is a tag byte followed by its operands: varints for numbers
+ * (and the decimal string of one too large for an int), string table
+ * indexes for names, and nodes for children.  A block is one SEQ node
+ * with its statements, and decodes to a BlockExpr.  (A chain of
+ * SeqExprs, which only hand-built trees have, is written the same.)
+ * Empty blocks build to null children, which are written as NONE.
+ *
+ * Entries are read through a memory mapping.  An entry that cannot be
+ * read for any reason is a miss, and is overwritten by the next store.
+ */
+class AstCache {
+    /**
+     * Must change whenever the format, the tree built for a source,
+     * or the order of the Op constants changes.
+     */
+    static final int VERSION = 6;
+    private static final int MAGIC = 0x46574A53; // "FWJS"
+
+    private static final byte NONE = 0;
+    private static final byte INT = 1;
+    private static final byte TRUE = 2;
+    private static final byte FALSE = 3;
+    private static final byte NULL = 4;
+    private static final byte VAR = 5;
+    private static final byte PRINT = 6;
+    private static final byte BINOP = 7;
+    private static final byte IF = 8;
+    private static final byte WHILE = 9;
+    private static final byte SEQ = 10;
+    private static final byte VARDECL = 11;
+    private static final byte ASSIGN = 12;
+    private static final byte FUNCDECL = 13;
+    private static final byte CALL = 14;
+    private static final byte TAILCALL = 15;
+    private static final byte ARRAY = 16;
+    private static final byte INDEX = 17;
+    private static final byte SETINDEX = 18;
+    private static final byte OBJECT = 19;
+    private static final byte GETPROP = 20;
+    private static final byte SETPROP = 21;
+    private static final byte BIGINT = 22;
+
+    private final Path dir;
+
+    AstCache(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Returns the cached tree of the source, or null on a miss.
+     */
+    Expression load(String source) {
+        Path file = entry(source);
+        if (!Files.isRegularFile(file))
+            return null;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return decode(buf);
+        } catch (IOException | RuntimeException | StackOverflowError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Caches the tree of the source.  Failing to write the entry
+     * is not an error: the script is just parsed again next time.
+     */
+    void store(String source, Expression prog) {
+        Path tmp = null;
+        try {
+            byte[] bytes = encode(prog);
+            Files.createDirectories(dir);
+            tmp = Files.createTempFile(dir, "ast", ".tmp");
+            Files.write(tmp, bytes);
+            Path file = entry(source);
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmp = null;
+        } catch (IOException | RuntimeException e) {
+            // leave the cache as it was
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException e) {}
+            }
+        }
+    }
+
+    Path entry(String source) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        sha.update(ByteBuffer.allocate(4).putInt(VERSION).array());
+        byte[] hash = sha.digest(source.getBytes(StandardCharsets.UTF_8));
+        StringBuilder name = new StringBuilder();
+        for (byte b : hash)
+            name.append(String.format("%02x", b));
+        return dir.resolve(name.append(".ast").toString());
+    }
+
+    /**
+     * Encodes a built (not yet resolved) tree.
+     * Throws IllegalArgumentException for a tree that has no encoding,
+     * e.g. one with a closure constant.
+     */
+    static byte[] encode(Expression prog) {
+        Encoder encoder = new Encoder();
+        encoder.node(prog);
+
+        Output payload = new Output();
+        payload.varint(encoder.strings.size());
+        for (String s : encoder.strings) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            payload.varint(utf8.length);
+            payload.write(utf8, 0, utf8.length);
+        }
+        payload.write(encoder.out.toByteArray(), 0, encoder.out.size());
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putInt(MAGIC).putInt(VERSION).putInt((int) crc.getValue());
+        Output file = new Output();
+        file.write(header.array(), 0, 12);
+        file.write(payload.toByteArray(), 0, payload.size());
+        return file.toByteArray();
+    }
+
+    /**
+     * Decodes a tree written by encode.
+     * Throws IllegalArgumentException if the buffer is not a valid entry.
+     */
+    static Expression decode(ByteBuffer buf) {
+        try {
+            if (buf.remaining() < 12 || buf.getInt() != MAGIC || buf.getInt() != VERSION)
+                throw new IllegalArgumentException("not a cache entry of this version");
+            int expected = buf.getInt();
+            CRC32 crc = new CRC32();
+            crc.update(buf.duplicate());
+            if ((int) crc.getValue() != expected)
+                throw new IllegalArgumentException("corrupt cache entry");
+
+            Decoder decoder = new Decoder(buf);
+            int count = decoder.count();
+            decoder.strings = new String[count];
+            for (int i = 0; i < count; i++) {
+                byte[] utf8 = new byte[decoder.count()];
+                buf.get(utf8);
+                decoder.strings[i] = new String(utf8, StandardCharsets.UTF_8);
+            }
+            Expression prog = decoder.node();
+            if (prog == null || buf.hasRemaining())
+                throw new IllegalArgumentException("corrupt cache entry");
+            return prog;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated cache entry");
+        }
+    }
+
+    private static class Output extends ByteArrayOutputStream {
+        void varint(int n) {
+            while ((n & ~0x7F) != 0) {
+                write((n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            write(n);
+        }
+    }
+
+    private static class Encoder implements ExpressionVisitor<Void> {
+        final Output out = new Output();
+        final List<String> strings = new ArrayList<String>();
+        private final Map<String,Integer> indexes = new HashMap<String,Integer>();
+
+        void node(Expression e) {
+            if (e == null)
+                out.write(NONE);
+            else
+                e.accept(this);
+        }
+
+        void string(String s) {
+            Integer index = indexes.get(s);
+            if (index == null) {
+                index = strings.size();
+                strings.add(s);
+                indexes.put(s, index);
+            }
+            out.varint(index);
+        }
+
+        public Void visitValue(ValueExpr e) {
+            if (e.val instanceof IntVal) {
+                int i = ((IntVal) e.val).toInt();
+                out.write(INT);
+                out.varint((i << 1) ^ (i >> 31));
+            } else if (e.val instanceof BigIntVal) {
+                out.write(BIGINT);
+                string(e.val.toString());
+            } else if (e.val instanceof BoolVal) {
+                out.write(((BoolVal) e.val).toBoolean() ? TRUE : FALSE);
+            } else if (e.val instanceof NullVal) {
+                out.write(NULL);
+            } else {
+                throw new IllegalArgumentException("Cannot encode constant " + e.val);
+            }
+            return null;
+        }
+
+        public Void visitVar(VarExpr e) {
+            out.write(VAR);
+            string(e.varName);
+            return null;
+        }
+
+        public Void visitPrint(PrintExpr e) {
+            out.write(PRINT);
+            node(e.exp);
+            return null;
+        }
+
+        public Void visitBinOp(BinOpExpr e) {
+            out.write(BINOP);
+            out.write(e.op.ordinal());
+            node(e.e1);
+            node(e.e2);
+            return null;
+        }
+
+        public Void visitIf(IfExpr e) {
+            out.write(IF);
+            node(e.cond);
+            node(e.thn);
+            node(e.els);
+            return null;
+        }
+
+        public Void visitWhile(WhileExpr e) {
+            out.write(WHILE);
+            node(e.cond);
+            node(e.body);
+            return null;
+        }
+
+        public Void visitSeq(SeqExpr e) {
+            List<Expression> seconds = new ArrayList<Expression>();
+            Expression first = e;
+            while (first instanceof SeqExpr) {
+                seconds.add(((SeqExpr) first).e2);
+                first = ((SeqExpr) first).e1;
+            }
+            out.write(SEQ);
+            out.varint(seconds.size() + 1);
+            node(first);
+            for (int i = seconds.size() - 1; i >= 0; i--)
+                node(seconds.get(i));
+            return null;
+        }
+
+        public Void visitBlock(BlockExpr e) {
+            out.write(SEQ);
+            out.varint(e.stmts.length);
+            for (Expression stmt : e.stmts)
+                node(stmt);
+            return null;
+        }
+
+        public Void visitVarDecl(VarDeclExpr e) {
+            out.write(VARDECL);
+            string(e.varName);
+            node(e.exp);
+            return null;
+        }
+
+        public Void visitAssign(AssignExpr e) {
+            out.write(ASSIGN);
+            string(e.varName);
+            node(e.e);
+            return null;
+        }
+
+        public Void visitFunctionDecl(FunctionDeclExpr e) {
+            out.write(FUNCDECL);
+            if (e.name == null) {
+                out.varint(0);
+            } else {
+                out.write(1);
+                string(e.name);
+            }
+            out.varint(e.line);
+            out.varint(e.column);
+            out.varint(e.params.size());
+            for (String param : e.params)
+                string(param);
+            node(e.body);
+            return null;
+        }
+
+        public Void visitFunctionApp(FunctionAppExpr e) {
+            out.write(e.tail ? TAILCALL : CALL);
+            node(e.f);
+            out.varint(e.args.size());
+            for (Expression arg : e.args)
+                node(arg);
+            return null;
+        }
+
+        public Void visitArray(ArrayExpr e) {
+            out.write(ARRAY);
+            out.varint(e.elements.size());
+            for (Expression element : e.elements)
+                node(element);
+            return null;
+        }
+
+        public Void visitIndex(IndexExpr e) {
+            out.write(INDEX);
+            node(e.array);
+            node(e.index);
+            return null;
+        }
+
+        public Void visitIndexAssign(IndexAssignExpr e) {
+            out.write(SETINDEX);
+            node(e.array);
+            node(e.index);
+            node(e.e);
+            return null;
+        }
+
+        public Void visitObject(ObjectExpr e) {
+            out.write(OBJECT);
+            out.varint(e.keys.size());
+            for (int i = 0; i < e.keys.size(); i++) {
+                string(e.keys.get(i));
+                node(e.values.get(i));
+            }
+            return null;
+        }
+
+        public Void visitGetProp(GetPropExpr e) {
+            out.write(GETPROP);
+            string(e.cache.name);
+            node(e.obj);
+            return null;
+        }
+
+        public Void visitSetProp(SetPropExpr e) {
+            out.write(SETPROP);
+            string(e.cache.name);
+            node(e.obj);
+            node(e.e);
+            return null;
+        }
+
+        public Void visitOpaque(OpaqueBody e) {
+            throw new IllegalArgumentException("function bodies that are not trees cannot be cached");
+        }
+    }
+
+    private static class Decoder {
+        private final ByteBuffer buf;
+        String[] strings;
+
+        Decoder(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        int varint() {
+            int n = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = buf.get();
+                n |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return n;
+            }
+            throw new IllegalArgumentException("bad varint");
+        }
+
+        /**
+         * A count of items, each at least one byte long.
+         */
+        int count() {
+            int n = varint();
+            if (n < 0 || n > buf.remaining())
+                throw new IllegalArgumentException("bad count");
+            return n;
+        }
+
+        String string() {
+            int index = varint();
+            if (index < 0 || index >= strings.length)
+                throw new IllegalArgumentException("bad string index");
+            return strings[index];
+        }
+
+        Expression node() {
+            byte tag = buf.get();
+            switch (tag) {
+                case NONE:
+                    return null;
+                case INT: {
+                    int n = varint();
+                    return new ValueExpr(IntVal.of((n >>> 1) ^ -(n & 1)));
+                }
+                case BIGINT:
+                    return new ValueExpr(BigIntVal.of(new BigInteger(string())));
+                case TRUE:
+                    return new ValueExpr(BoolVal.TRUE);
+                case FALSE:
+                    return new ValueExpr(BoolVal.FALSE);
+                case NULL:
+                    return new ValueExpr(NullVal.NULL);
+                case VAR:
+                    return new VarExpr(string());
+                case PRINT:
+                    return new PrintExpr(node());
+                case BINOP: {
+                    int op = buf.get();
+                    if (op < 0 || op >= Op.values().length)
+                        throw new IllegalArgumentException("bad operator");
+                    Expression e1 = node();
+                    return new BinOpExpr(Op.values()[op], e1, node());
+                }
+                case IF: {
+                    Expression cond = node();
+                    Expression thn = node();
+                    return new IfExpr(cond, thn, node());
+                }
+                case WHILE: {
+                    Expression cond = node();
+                    return new WhileExpr(cond, node());
+                }
+                case SEQ: {
+                    int n = count();
+                    if (n < 2)
+                        throw new IllegalArgumentException("bad sequence");
+                    Expression[] stmts = new Expression[n];
+                    for (int i = 0; i < n; i++)
+                        stmts[i] = node();
+                    return new BlockExpr(stmts);
+                }
+                case VARDECL: {
+                    String name = string();
+                    return new VarDeclExpr(name, node());
+                }
+                case ASSIGN: {
+                    String name = string();
+                    return new AssignExpr(name, node());
+                }
+                case FUNCDECL: {
+                    String name = (buf.get() != 0) ? string() : null;
+                    int line = varint();
+                    int column = varint();
+                    int n = count();
+                    List<String> params = new ArrayList<String>(n);
+                    for (int i = 0; i < n; i++)
+                        params.add(string());
+                    FunctionDeclExpr decl = new FunctionDeclExpr(params, node());
+                    decl.name = name;
+                    decl.line = line;
+                    decl.column = column;
+                    return decl;
+                }
+                case CALL:
+                case TAILCALL: {
+                    Expression f = node();
+                    int n = count();
+                    List<Expression> args = new ArrayList<Expression>(n);
+                    for (int i = 0; i < n; i++)
+                        args.add(node());
+                    FunctionAppExpr call = new FunctionAppExpr(f, args);
+                    call.tail = (tag == TAILCALL);
+                    return call;
+                }
+                case ARRAY: {
+                    int n = count();
+                    List<Expression> elements = new ArrayList<Expression>(n);
+                    for (int i = 0; i < n; i++)
+                        elements.add(node());
+                    return new ArrayExpr(elements);
+                }
+                case INDEX: {
+                    Expression array = node();
+                    return new IndexExpr(array, node());
+                }
+                case SETINDEX: {
+                    Expression array = node();
+                    Expression index = node();
+                    return new IndexAssignExpr(array, index, node());
+                }
+                case OBJECT: {
+                    int n = count();
+                    List<String> keys = new ArrayList<String>(n);
+                    List<Expression> values = new ArrayList<Expression>(n);
+                    for (int i = 0; i < n; i++) {
+                        keys.add(string());
+                        values.add(node());
+                    }
+                    return new ObjectExpr(keys, values);
+                }
+                case GETPROP: {
+                    String name = string();
+                    return new GetPropExpr(node(), name);
+                }
+                case SETPROP: {
+                    String name = string();
+                    Expression obj = node();
+                    return new SetPropExpr(obj, name, node());
+                }
+                default:
+                    throw new IllegalArgumentException("bad node tag " + tag);
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package edu.sjsu.fwjs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.sjsu.fwjs.ResourceLimitExceeded.Limit;
+
+/**
+ * What is left of the ResourceLimits of one execution.
+ * The engines call step() at each loop back-edge, enter() and exit()
+ * around each call, and allocate() for each closure.  A budget lives in
+ * the global Environment of the execution and is shared by its frames;
+ * executions without limits have none, so the engines skip the calls.
+ *
+ * Steps and allocations are counted down in slices, so that the common
+ * case of step() is a decrement and a compare, and the clock is read
+ * once per slice.
+ *
+ * The thread that started the execution uses this budget, and each
+ * thread running tasks spawned by it a budget of its own (forThread()),
+ * which draws its slices from the same steps and allocations and has
+ * its own call depth.  The slices other threads hold are not available
+ * to a thread, so with tasks a limit can be hit up to a slice per thread
+ * early.
+ */
+final class Budget {
+    private static final int SLICE = 1024;
+
+    private final ResourceLimits limits;
+    private final long deadline;
+    private final AtomicLong stepsLeft;
+    private final AtomicLong allocationsLeft;
+    private final Thread owner;
+    private final ThreadLocal<Budget> others;
+    private int fuel;
+    private int allocationFuel;
+    private int depth;
+
+    Budget(ResourceLimits limits) {
+        this.limits = limits;
+        this.deadline = System.nanoTime() + limits.timeoutNanos;
+        this.stepsLeft = new AtomicLong((limits.maxSteps < 0) ? Long.MAX_VALUE : limits.maxSteps);
+        this.allocationsLeft = new AtomicLong(
+                (limits.maxAllocations < 0) ? Long.MAX_VALUE : limits.maxAllocations);
+        this.owner = Thread.currentThread();
+        this.others = ThreadLocal.withInitial(() -> new Budget(this));
+    }
+
+    /**
+     * The budget of the current thread, sharing what is left of root.
+     */
+    private Budget(Budget root) {
+        this.limits = root.limits;
+        this.deadline = root.deadline;
+        this.stepsLeft = root.stepsLeft;
+        this.allocationsLeft = root.allocationsLeft;
+        this.owner = Thread.currentThread();
+        this.others = root.others;
+    }
+
+    /**
+     * This budget, or the one of the current thread if it is not the
+     * owner of this one.
+     */
+    Budget forThread() {
+        return (Thread.currentThread() == owner) ? this : others.get();
+    }
+
+    void step() {
+        if (fuel == 0)
+            refuel();
+        fuel--;
+    }
+
+    private void refuel() {
+        int n = slice(stepsLeft);
+        if (n == 0)
+            throw new ResourceLimitExceeded(Limit.STEPS,
+                    "Script took more than " + limits.maxSteps + " steps");
+        if (limits.timeoutNanos >= 0 && System.nanoTime() - deadline > 0)
+            throw new ResourceLimitExceeded(Limit.TIME,
+                    "Script ran longer than " + limits.timeoutNanos / 1000000 + " ms");
+        fuel = n;
+    }
+
+    /**
+     * Takes up to a slice of what is left in pool.
+     */
+    private static int slice(AtomicLong pool) {
+        while (true) {
+            long left = pool.get();
+            int n = (int) Math.min(SLICE, left);
+            if (n == 0 || pool.compareAndSet(left, left - n))
+                return n;
+        }
+    }
+
+    /**
+     * A call, which is a step, and allocates a frame.
+     */
+    void enter() {
+        step();
+        allocate();
+        if (++depth > limits.maxCallDepth && limits.maxCallDepth >= 0)
+            throw new ResourceLimitExceeded(Limit.CALL_DEPTH,
+                    "Script went more than " + limits.maxCallDepth + " calls deep");
+    }
+
+    void exit() {
+        depth--;
+    }
+
+    void allocate() {
+        if (allocationFuel == 0) {
+            allocationFuel = slice(allocationsLeft);
+            if (allocationFuel == 0)
+                throw new ResourceLimitExceeded(Limit.ALLOCATIONS,
+                        "Script allocated more than " + limits.maxAllocations + " frames and closures");
+        }
+        allocationFuel--;
+    }
+}
@@ -0,0 +1,120 @@
+package edu.sjsu.fwjs;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The functions every program can call without declaring them.
+ * A program can declare or assign a variable of the same name, which
+ * then hides the built-in.
+ *
+ * <ul>
+ * <li><code>spawn(f)</code> calls f with no arguments on another thread,
+ *     and returns a task for the call at once.  If f is not a function,
+ *     the task's result is null, as calling f would be.
+ * <li><code>join(t)</code> waits for the call of task t to end, and
+ *     returns its result.  An error in the call is thrown again by join.
+ *     Joining anything but a task returns null.
+ * <li><code>length(a)</code> returns the number of elements of array a,
+ *     or null if a is not an array.
+ * </ul>
+ *
+ * Tasks run on a fork-join pool of daemon threads, one per processor.
+ * A thread that joins a task from within a task helps run the other
+ * tasks in the meantime, so tasks may spawn and join tasks of their own.
+ * A program should join the tasks it spawns: the ones still running
+ * when it ends are abandoned.
+ *
+ * Everything the spawning thread did before spawn(f) is visible to the
+ * call of f, and everything the call did is visible after join returns.
+ * See Environment for variables written while tasks are running.
+ */
+final class Builtins {
+    private static final Map<String,Value> FUNCTIONS = new HashMap<String,Value>();
+    private static final Environment NO_ENV = new Environment();
+
+    static {
+        define("spawn", "f");
+        define("join", "task");
+        define("length", "a");
+    }
+
+    private static volatile ForkJoinPool pool;
+
+    private Builtins() {
+    }
+
+    /**
+     * The body of a built-in function.  Its arguments are the slots of
+     * its frame.
+     */
+    private static final class Native implements OpaqueBody {
+        final String name;
+
+        Native(String name) {
+            this.name = name;
+        }
+
+        public Value evaluate(Environment env) {
+            Value arg = env.getSlot(0, 0);
+            switch (name) {
+                case "spawn":
+                    return spawn(arg);
+                case "join":
+                    return (arg instanceof TaskVal) ? ((TaskVal) arg).result() : NullVal.NULL;
+                case "length":
+                    return (arg instanceof ArrayVal) ? IntVal.of(((ArrayVal) arg).length()) : NullVal.NULL;
+                default:
+                    throw new IllegalStateException("Unknown built-in " + name);
+            }
+        }
+    }
+
+    private static void define(String name, String param) {
+        // the frame cannot escape, as the body declares no functions
+        FrameLayout layout = new FrameLayout(new String[] { param }, new int[] { 0 }, false);
+        FUNCTIONS.put(name, new ClosureVal(Collections.unmodifiableList(Arrays.asList(param)),
+                new Native(name), NO_ENV, layout));
+    }
+
+    /**
+     * The built-in of the given name, or null if there is none.
+     */
+    static Value lookup(String name) {
+        return FUNCTIONS.get(name);
+    }
+
+    /**
+     * The name of v if it is a built-in, or null.
+     */
+    static String nameOf(Value v) {
+        if (v instanceof ClosureVal && ((ClosureVal) v).body() instanceof Native)
+            return ((Native) ((ClosureVal) v).body()).name;
+        return null;
+    }
+
+    static TaskVal spawn(Value f) {
+        if (!(f instanceof ClosureVal))
+            return TaskVal.done(NullVal.NULL);
+        ClosureVal closure = (ClosureVal) f;
+        closure.share();
+        TaskVal task = new TaskVal(closure);
+        pool().execute(task);
+        return task;
+    }
+
+    private static ForkJoinPool pool() {
+        ForkJoinPool p = pool;
+        if (p == null) {
+            synchronized (Builtins.class) {
+                if (pool == null)
+                    pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+                p = pool;
+            }
+        }
+        return p;
+    }
+}
@@ -0,0 +1,439 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.sjsu.fwjs.ClassFileWriter.Code;
+import edu.sjsu.fwjs.ClassFileWriter.Label;
+
+/**
+ * Compiles a resolved FWJS program to a JVM class.
+ *
+ * The program and each FWJS function become a static method
+ * <code>Value fN(Environment)</code> of the generated class, so that the
+ * JIT sees ordinary methods instead of a tree of evaluate calls.
+ * Variables still live in Environment frames, addressed as resolved
+ * by the ScopeResolver. Closures are regular ClosureVals whose body
+ * calls back into the generated method.
+ *
+ * The generated code calls the public operations of CompiledRuntime.
+ * A function too large for a JVM method is left to the tree-walker.
+ */
+class BytecodeCompiler implements ExpressionVisitor<Void> {
+    private static final String ENV = "edu/sjsu/fwjs/Environment";
+    private static final String VALUE = "edu/sjsu/fwjs/Value";
+    private static final String EXPRESSION = "edu/sjsu/fwjs/Expression";
+    private static final String RT = "edu/sjsu/fwjs/CompiledRuntime";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String FN_DESC = "(L" + ENV + ";)L" + VALUE + ";";
+    private static final String EVALUATE_DESC = "(L" + ENV + ";)L" + VALUE + ";";
+
+    /** Larger methods might not be reachable with 16-bit branch offsets. */
+    private static final int MAX_METHOD_SIZE = Short.MAX_VALUE;
+
+    private static final AtomicInteger classCounter = new AtomicInteger();
+
+    /**
+     * Loads each compiled program in its own loader,
+     * so that it can be unloaded once it is no longer used.
+     */
+    private static class ScriptClassLoader extends ClassLoader {
+        ScriptClassLoader() {
+            super(BytecodeCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * The body of a compiled function, as seen by its ClosureVals.
+     */
+    static class CompiledBody implements OpaqueBody {
+        final int fn;
+        CompiledCode code;
+
+        CompiledBody(int fn) {
+            this.fn = fn;
+        }
+
+        public Value evaluate(Environment env) {
+            return code.run(fn, env);
+        }
+    }
+
+    private final String className;
+    private final ClassFileWriter cw;
+    private final List<Object> constants = new ArrayList<Object>();
+    private final List<Expression> functions = new ArrayList<Expression>();
+    private final List<CompiledBody> compiledBodies = new ArrayList<CompiledBody>();
+    private Code code;
+
+    private BytecodeCompiler() {
+        this.className = "edu/sjsu/fwjs/generated/Script" + classCounter.incrementAndGet();
+        this.cw = new ClassFileWriter(className, "java/lang/Object", "edu/sjsu/fwjs/CompiledCode");
+    }
+
+    /**
+     * Compiles and loads a program that has been through the ScopeResolver.
+     * Run it with <code>run(0, env)</code>.
+     */
+    public static CompiledCode compile(Expression prog) {
+        return new BytecodeCompiler().compileProgram(prog);
+    }
+
+    private CompiledCode compileProgram(Expression prog) {
+        functions.add(prog == null ? new ValueExpr(NullVal.NULL) : prog);
+        for (int fn = 0; fn < functions.size(); fn++)
+            compileFunction(fn);
+        compileDispatch();
+        compileConstructor();
+        cw.addField(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, "K", "[Ljava/lang/Object;");
+
+        String name = className.replace('/', '.');
+        try {
+            Class<?> c = new ScriptClassLoader().define(name, cw.toByteArray());
+            c.getField("K").set(null, constants.toArray());
+            CompiledCode compiled = (CompiledCode) c.getConstructor().newInstance();
+            for (CompiledBody body : compiledBodies)
+                body.code = compiled;
+            return compiled;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("could not load " + name, e);
+        }
+    }
+
+    private void compileFunction(int fn) {
+        Expression body = functions.get(fn);
+        code = new Code(cw, 1);
+        try {
+            body.accept(this);
+            code.op(Code.ARETURN, -1);
+            if (code.size() > MAX_METHOD_SIZE)
+                throw new IllegalStateException("method too large");
+        } catch (IllegalStateException e) {
+            // Fall back to evaluating the function body as a tree.
+            code = new Code(cw, 1);
+            constant(body, EXPRESSION);
+            code.aload(0);
+            code.invokeinterface(EXPRESSION, "evaluate", EVALUATE_DESC);
+            code.op(Code.ARETURN, -1);
+        }
+        cw.addMethod(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, "f" + fn, FN_DESC, code);
+    }
+
+    private void compileDispatch() {
+        code = new Code(cw, 3);
+        Label dflt = new Label();
+        Label[] targets = new Label[functions.size()];
+        for (int i = 0; i < targets.length; i++)
+            targets[i] = new Label();
+        code.iload(1);
+        code.tableswitch(dflt, targets);
+        for (int i = 0; i < targets.length; i++) {
+            code.place(targets[i]);
+            code.aload(2);
+            code.invokestatic(className, "f" + i, FN_DESC);
+            code.op(Code.ARETURN, -1);
+        }
+        code.place(dflt);
+        code.invokestatic(RT, "nullVal", "()L" + VALUE + ";");
+        code.op(Code.ARETURN, -1);
+        cw.addMethod(ClassFileWriter.ACC_PUBLIC, "run", "(IL" + ENV + ";)L" + VALUE + ";", code);
+    }
+
+    private void compileConstructor() {
+        code = new Code(cw, 1);
+        code.aload(0);
+        code.invokespecial("java/lang/Object", "<init>", "()V");
+        code.op(Code.RETURN, 0);
+        cw.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", code);
+    }
+
+    /**
+     * Pushes a constant of the class, cast to the given type.
+     */
+    private void constant(Object value, String type) {
+        constants.add(value);
+        code.getstatic(className, "K", "[Ljava/lang/Object;");
+        code.iconst(constants.size() - 1);
+        code.op(Code.AALOAD, -1);
+        code.typeOp(Code.CHECKCAST, type);
+    }
+
+    private void emit(Expression e) {
+        if (e == null)
+            code.invokestatic(RT, "nullVal", "()L" + VALUE + ";");
+        else
+            e.accept(this);
+    }
+
+    public Void visitValue(ValueExpr e) {
+        constant(e.val, VALUE);
+        return null;
+    }
+
+    public Void visitVar(VarExpr e) {
+        code.aload(0);
+        code.iconst(e.depth);
+        if (e.slot >= 0) {
+            code.iconst(e.slot);
+            code.ldcString(e.varName);
+            code.invokestatic(RT, "getLocal", "(L" + ENV + ";IILjava/lang/String;)L" + VALUE + ";");
+        } else {
+            code.ldcString(e.varName);
+            code.invokestatic(RT, "getGlobal", "(L" + ENV + ";ILjava/lang/String;)L" + VALUE + ";");
+        }
+        return null;
+    }
+
+    public Void visitPrint(PrintExpr e) {
+        emit(e.exp);
+        code.aload(0);
+        code.invokestatic(RT, "print", "(L" + VALUE + ";L" + ENV + ";)L" + VALUE + ";");
+        return null;
+    }
+
+    public Void visitBinOp(BinOpExpr e) {
+        emit(e.e1);
+        emit(e.e2);
+        switch (e.op) {
+            case ADD:
+                binOp("add");
+                break;
+            case SUBTRACT:
+                binOp("subtract");
+                break;
+            case MULTIPLY:
+                binOp("multiply");
+                break;
+            case DIVIDE:
+                binOp("divide");
+                break;
+            case MOD:
+                binOp("mod");
+                break;
+            case GT:
+                comparison(Code.IFGT);
+                break;
+            case GE:
+                comparison(Code.IFGE);
+                break;
+            case LT:
+                comparison(Code.IFLT);
+                break;
+            case LE:
+                comparison(Code.IFLE);
+                break;
+            case EQ:
+                binOp("eq");
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operator: " + e.op);
+        }
+        return null;
+    }
+
+    /**
+     * Calls the operation of CompiledRuntime on the two operands.
+     * Arithmetic checks for overflow there.
+     */
+    private void binOp(String name) {
+        code.invokestatic(RT, name, "(L" + VALUE + ";L" + VALUE + ";)L" + VALUE + ";");
+    }
+
+    private void comparison(int opcode) {
+        code.invokestatic(RT, "compare", "(L" + VALUE + ";L" + VALUE + ";)I");
+        Label yes = new Label();
+        Label done = new Label();
+        code.jump(opcode, yes);
+        code.iconst(0);
+        code.jump(Code.GOTO, done);
+        code.place(yes);
+        code.iconst(1);
+        code.place(done);
+        code.invokestatic(RT, "boolVal", "(Z)L" + VALUE + ";");
+    }
+
+    public Void visitIf(IfExpr e) {
+        Label els = new Label();
+        Label done = new Label();
+        emit(e.cond);
+        code.invokestatic(RT, "test", "(L" + VALUE + ";)Z");
+        code.jump(Code.IFEQ, els);
+        emit(e.thn);
+        code.jump(Code.GOTO, done);
+        code.place(els);
+        emit(e.els);
+        code.place(done);
+        return null;
+    }
+
+    public Void visitWhile(WhileExpr e) {
+        Label loop = new Label();
+        Label done = new Label();
+        code.place(loop);
+        emit(e.cond);
+        code.invokestatic(RT, "test", "(L" + VALUE + ";)Z");
+        code.jump(Code.IFEQ, done);
+        emit(e.body);
+        code.op(Code.POP, -1);
+        code.aload(0);
+        code.invokestatic(RT, "step", "(L" + ENV + ";)V");
+        code.jump(Code.GOTO, loop);
+        code.place(done);
+        code.invokestatic(RT, "nullVal", "()L" + VALUE + ";");
+        return null;
+    }
+
+    public Void visitSeq(SeqExpr e) {
+        // walk down the left-nested chain instead of recursing
+        List<Expression> seconds = new ArrayList<Expression>();
+        Expression first = e;
+        while (first instanceof SeqExpr) {
+            seconds.add(((SeqExpr) first).e2);
+            first = ((SeqExpr) first).e1;
+        }
+        emit(first);
+        for (int i = seconds.size() - 1; i >= 0; i--) {
+            code.op(Code.POP, -1);
+            emit(seconds.get(i));
+        }
+        return null;
+    }
+
+    public Void visitBlock(BlockExpr e) {
+        emit(e.stmts[0]);
+        for (int i = 1; i < e.stmts.length; i++) {
+            // give up on a long block as soon as it is too large, before
+            // its constants fill up the constant pool
+            if (code.size() > MAX_METHOD_SIZE)
+                throw new IllegalStateException("method too large");
+            code.op(Code.POP, -1);
+            emit(e.stmts[i]);
+        }
+        return null;
+    }
+
+    public Void visitVarDecl(VarDeclExpr e) {
+        emit(e.exp);
+        code.aload(0);
+        code.iconst(e.slot);
+        code.ldcString(e.varName);
+        code.invokestatic(RT, "declare", "(L" + VALUE + ";L" + ENV + ";ILjava/lang/String;)L" + VALUE + ";");
+        return null;
+    }
+
+    public Void visitAssign(AssignExpr e) {
+        emit(e.e);
+        code.aload(0);
+        code.iconst(e.depth);
+        code.iconst(e.slot);
+        code.ldcString(e.varName);
+        code.invokestatic(RT, "assign", "(L" + VALUE + ";L" + ENV + ";IILjava/lang/String;)L" + VALUE + ";");
+        return null;
+    }
+
+    public Void visitFunctionDecl(FunctionDeclExpr e) {
+        CompiledBody body = new CompiledBody(functions.size());
+        functions.add(e.body == null ? new ValueExpr(NullVal.NULL) : e.body);
+        compiledBodies.add(body);
+        FunctionDeclExpr template = new FunctionDeclExpr(e.params, body);
+        template.layout = e.layout;
+        template.memo = e.memo;
+        // evaluating the template creates the closure
+        constant(template, EXPRESSION);
+        code.aload(0);
+        code.invokeinterface(EXPRESSION, "evaluate", EVALUATE_DESC);
+        return null;
+    }
+
+    public Void visitFunctionApp(FunctionAppExpr e) {
+        Label notClosure = new Label();
+        Label done = new Label();
+        emit(e.f);
+        code.op(Code.DUP, 1);
+        code.invokestatic(RT, "isClosure", "(L" + VALUE + ";)Z");
+        code.jump(Code.IFEQ, notClosure);
+        code.iconst(e.args.size());
+        code.typeOp(Code.ANEWARRAY, VALUE);
+        for (int i = 0; i < e.args.size(); i++) {
+            code.op(Code.DUP, 1);
+            code.iconst(i);
+            emit(e.args.get(i));
+            code.op(Code.AASTORE, -3);
+        }
+        code.invokestatic(RT, e.tail ? "tailCall" : "call", "(L" + VALUE + ";[L" + VALUE + ";)L" + VALUE + ";");
+        code.jump(Code.GOTO, done);
+        code.place(notClosure);
+        code.op(Code.POP, -1);
+        code.invokestatic(RT, "nullVal", "()L" + VALUE + ";");
+        code.place(done);
+        return null;
+    }
+
+    public Void visitArray(ArrayExpr e) {
+        code.iconst(e.elements.size());
+        code.typeOp(Code.ANEWARRAY, VALUE);
+        for (int i = 0; i < e.elements.size(); i++) {
+            code.op(Code.DUP, 1);
+            code.iconst(i);
+            emit(e.elements.get(i));
+            code.op(Code.AASTORE, -3);
+        }
+        code.aload(0);
+        code.invokestatic(RT, "array", "([L" + VALUE + ";L" + ENV + ";)L" + VALUE + ";");
+        return null;
+    }
+
+    public Void visitIndex(IndexExpr e) {
+        emit(e.array);
+        emit(e.index);
+        code.invokestatic(RT, "index", "(L" + VALUE + ";L" + VALUE + ";)L" + VALUE + ";");
+        return null;
+    }
+
+    public Void visitIndexAssign(IndexAssignExpr e) {
+        emit(e.array);
+        emit(e.index);
+        emit(e.e);
+        code.invokestatic(RT, "setIndex", "(L" + VALUE + ";L" + VALUE + ";L" + VALUE + ";)L" + VALUE + ";");
+        return null;
+    }
+
+    public Void visitObject(ObjectExpr e) {
+        code.iconst(e.values.size());
+        code.typeOp(Code.ANEWARRAY, VALUE);
+        for (int i = 0; i < e.values.size(); i++) {
+            code.op(Code.DUP, 1);
+            code.iconst(i);
+            emit(e.values.get(i));
+            code.op(Code.AASTORE, -3);
+        }
+        constant(e, OBJECT);
+        code.aload(0);
+        code.invokestatic(RT, "object", "([L" + VALUE + ";L" + OBJECT + ";L" + ENV + ";)L" + VALUE + ";");
+        return null;
+    }
+
+    public Void visitGetProp(GetPropExpr e) {
+        emit(e.obj);
+        constant(e.cache, OBJECT);
+        code.invokestatic(RT, "getProp", "(L" + VALUE + ";L" + OBJECT + ";)L" + VALUE + ";");
+        return null;
+    }
+
+    public Void visitSetProp(SetPropExpr e) {
+        emit(e.obj);
+        emit(e.e);
+        constant(e.cache, OBJECT);
+        code.invokestatic(RT, "setProp", "(L" + VALUE + ";L" + VALUE + ";L" + OBJECT + ";)L" + VALUE + ";");
+        return null;
+    }
+
+    public Void visitOpaque(OpaqueBody e) {
+        throw new IllegalArgumentException("function bodies that are not trees cannot be compiled");
+    }
+}
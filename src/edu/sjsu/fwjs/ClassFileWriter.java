@@ -0,0 +1,445 @@
+package edu.sjsu.fwjs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal writer for JVM class files, covering what the
+ * BytecodeCompiler needs.
+ *
+ * Classes are written in the Java 5 format (version 49), which is still
+ * loaded by every current JVM and is verified by type inference, so no
+ * StackMapTable has to be computed.
+ */
+class ClassFileWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int VERSION = 49;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String,Integer> poolIndex = new HashMap<String,Integer>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final List<byte[]> fields = new ArrayList<byte[]>();
+    private final List<byte[]> methods = new ArrayList<byte[]>();
+
+    ClassFileWriter(String name, String superName, String... interfaceNames) {
+        this.thisClass = cls(name);
+        this.superClass = cls(superName);
+        this.interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; i++)
+            interfaces[i] = cls(interfaceNames[i]);
+    }
+
+    // ---------------------------------------------------------------- constant pool
+
+    private interface PoolEntry {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int entry(String key, int slots, PoolEntry e) {
+        Integer i = poolIndex.get(key);
+        if (i != null)
+            return i;
+        try {
+            e.write(pool);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        int index = poolCount;
+        poolCount += slots;
+        if (poolCount > 0xFFFF)
+            throw new IllegalStateException("constant pool overflow");
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    int utf8(final String s) {
+        return entry("U" + s, 1, out -> {
+            out.writeByte(1);
+            out.writeUTF(s);
+        });
+    }
+
+    int cls(String internalName) {
+        final int name = utf8(internalName);
+        return entry("C" + internalName, 1, out -> {
+            out.writeByte(7);
+            out.writeShort(name);
+        });
+    }
+
+    int string(String s) {
+        final int value = utf8(s);
+        return entry("S" + s, 1, out -> {
+            out.writeByte(8);
+            out.writeShort(value);
+        });
+    }
+
+    int integer(final int i) {
+        return entry("I" + i, 1, out -> {
+            out.writeByte(3);
+            out.writeInt(i);
+        });
+    }
+
+    private int nameAndType(String name, String desc) {
+        final int n = utf8(name);
+        final int d = utf8(desc);
+        return entry("N" + name + ":" + desc, 1, out -> {
+            out.writeByte(12);
+            out.writeShort(n);
+            out.writeShort(d);
+        });
+    }
+
+    private int member(final int tag, String owner, String name, String desc) {
+        final int c = cls(owner);
+        final int nt = nameAndType(name, desc);
+        return entry(tag + owner + "." + name + ":" + desc, 1, out -> {
+            out.writeByte(tag);
+            out.writeShort(c);
+            out.writeShort(nt);
+        });
+    }
+
+    int field(String owner, String name, String desc) {
+        return member(9, owner, name, desc);
+    }
+
+    int method(String owner, String name, String desc) {
+        return member(10, owner, name, desc);
+    }
+
+    int interfaceMethod(String owner, String name, String desc) {
+        return member(11, owner, name, desc);
+    }
+
+    // ---------------------------------------------------------------- members
+
+    void addField(int access, String name, String desc) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(desc));
+            out.writeShort(0);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    void addMethod(int access, String name, String desc, Code code) {
+        byte[] body = code.toByteArray();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(desc));
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + body.length);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int i : interfaces)
+                out.writeShort(i);
+            out.writeShort(fields.size());
+            for (byte[] f : fields)
+                out.write(f);
+            out.writeShort(methods.size());
+            for (byte[] m : methods)
+                out.write(m);
+            out.writeShort(0);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    // ---------------------------------------------------------------- code
+
+    /**
+     * A jump target within a method.
+     */
+    static class Label {
+        int pos = -1;
+        int stack = -1;
+        final List<int[]> fixups = new ArrayList<int[]>(); // {opcode pos, offset pos}
+    }
+
+    /**
+     * The bytecode of one method.
+     * Keeps track of the operand stack depth, so that the max stack of
+     * the method is known once the code is complete.
+     */
+    static class Code {
+        static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC = 0x12, LDC_W = 0x13;
+        static final int ALOAD = 0x19, ILOAD = 0x15, AALOAD = 0x32, AASTORE = 0x53;
+        static final int POP = 0x57, DUP = 0x59, SWAP = 0x5f;
+        static final int IADD = 0x60, ISUB = 0x64, IMUL = 0x68, IDIV = 0x6c, IREM = 0x70;
+        static final int IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e;
+        static final int IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1,
+                IF_ICMPGE = 0xa2, IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4;
+        static final int GOTO = 0xa7, TABLESWITCH = 0xaa, IRETURN = 0xac, ARETURN = 0xb0, RETURN = 0xb1;
+        static final int GETSTATIC = 0xb2, INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7,
+                INVOKESTATIC = 0xb8, INVOKEINTERFACE = 0xb9;
+        static final int ANEWARRAY = 0xbd, CHECKCAST = 0xc0;
+
+        private final ClassFileWriter cw;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final List<Label> labels = new ArrayList<Label>();
+        private int stack;
+        int maxStack;
+        int maxLocals;
+
+        Code(ClassFileWriter cw, int maxLocals) {
+            this.cw = cw;
+            this.maxLocals = maxLocals;
+        }
+
+        int size() {
+            return code.size();
+        }
+
+        private void adjust(int delta) {
+            stack += delta;
+            if (stack > maxStack)
+                maxStack = stack;
+        }
+
+        private void u1(int b) {
+            code.write(b);
+        }
+
+        private void u2(int s) {
+            code.write(s >> 8);
+            code.write(s);
+        }
+
+        private void u4(int i) {
+            u2(i >>> 16);
+            u2(i & 0xFFFF);
+        }
+
+        /**
+         * An instruction without operands, changing the stack by delta.
+         */
+        void op(int opcode, int delta) {
+            u1(opcode);
+            adjust(delta);
+        }
+
+        void aload(int local) {
+            u1(ALOAD);
+            u1(local);
+            adjust(1);
+        }
+
+        void iload(int local) {
+            u1(ILOAD);
+            u1(local);
+            adjust(1);
+        }
+
+        void iconst(int i) {
+            if (i >= -1 && i <= 5) {
+                u1(ICONST_0 + i);
+            } else if (i >= Byte.MIN_VALUE && i <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(i);
+            } else if (i >= Short.MIN_VALUE && i <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(i);
+            } else {
+                ldc(cw.integer(i));
+                return;
+            }
+            adjust(1);
+        }
+
+        void ldcString(String s) {
+            ldc(cw.string(s));
+        }
+
+        private void ldc(int index) {
+            if (index < 256) {
+                u1(LDC);
+                u1(index);
+            } else {
+                u1(LDC_W);
+                u2(index);
+            }
+            adjust(1);
+        }
+
+        void getstatic(String owner, String name, String desc) {
+            u1(GETSTATIC);
+            u2(cw.field(owner, name, desc));
+            adjust(1);
+        }
+
+        void typeOp(int opcode, String internalName) {
+            u1(opcode);
+            u2(cw.cls(internalName));
+            // checkcast and anewarray leave the stack depth unchanged
+        }
+
+        void invokestatic(String owner, String name, String desc) {
+            u1(INVOKESTATIC);
+            u2(cw.method(owner, name, desc));
+            adjust(stackDelta(desc, false));
+        }
+
+        void invokespecial(String owner, String name, String desc) {
+            u1(INVOKESPECIAL);
+            u2(cw.method(owner, name, desc));
+            adjust(stackDelta(desc, true));
+        }
+
+        void invokeinterface(String owner, String name, String desc) {
+            u1(INVOKEINTERFACE);
+            u2(cw.interfaceMethod(owner, name, desc));
+            int args = argCount(desc) + 1;
+            u1(args);
+            u1(0);
+            adjust(stackDelta(desc, true));
+        }
+
+        void jump(int opcode, Label target) {
+            int pos = size();
+            u1(opcode);
+            if (opcode == GOTO)
+                adjust(0);
+            else if (opcode >= IF_ICMPEQ && opcode <= IF_ICMPLE)
+                adjust(-2);
+            else
+                adjust(-1);
+            target.fixups.add(new int[] {pos, size()});
+            u2(0);
+            if (target.stack < 0)
+                target.stack = stack;
+            if (!labels.contains(target))
+                labels.add(target);
+        }
+
+        /**
+         * A tableswitch on the int on top of the stack, over keys 0..n-1.
+         */
+        void tableswitch(Label dflt, Label[] targets) {
+            int pos = size();
+            u1(TABLESWITCH);
+            adjust(-1);
+            while (size() % 4 != 0)
+                u1(0);
+            List<Label> all = new ArrayList<Label>();
+            all.add(dflt);
+            for (Label l : targets)
+                all.add(l);
+            for (int i = 0; i < all.size(); i++) {
+                if (i == 1) {
+                    u4(0);
+                    u4(targets.length - 1);
+                }
+                Label l = all.get(i);
+                l.fixups.add(new int[] {pos, size(), 4});
+                u4(0);
+                if (l.stack < 0)
+                    l.stack = stack;
+                if (!labels.contains(l))
+                    labels.add(l);
+            }
+        }
+
+        void place(Label l) {
+            l.pos = size();
+            if (l.stack >= 0)
+                stack = l.stack;
+            else
+                l.stack = stack;
+            if (!labels.contains(l))
+                labels.add(l);
+        }
+
+        byte[] toByteArray() {
+            byte[] b = code.toByteArray();
+            for (Label l : labels) {
+                for (int[] f : l.fixups) {
+                    int offset = l.pos - f[0];
+                    if (f.length == 3) {
+                        b[f[1]] = (byte) (offset >> 24);
+                        b[f[1] + 1] = (byte) (offset >> 16);
+                        b[f[1] + 2] = (byte) (offset >> 8);
+                        b[f[1] + 3] = (byte) offset;
+                    } else {
+                        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                            throw new IllegalStateException("branch offset too large");
+                        b[f[1]] = (byte) (offset >> 8);
+                        b[f[1] + 1] = (byte) offset;
+                    }
+                }
+            }
+            return b;
+        }
+
+        private static int argCount(String desc) {
+            int n = 0;
+            int i = 1;
+            while (desc.charAt(i) != ')') {
+                char c = desc.charAt(i);
+                while (c == '[')
+                    c = desc.charAt(++i);
+                if (c == 'L')
+                    i = desc.indexOf(';', i);
+                i++;
+                n++;
+            }
+            return n;
+        }
+
+        private static int stackDelta(String desc, boolean hasReceiver) {
+            int delta = -argCount(desc) - (hasReceiver ? 1 : 0);
+            if (!desc.endsWith(")V"))
+                delta++;
+            return delta;
+        }
+    }
+}
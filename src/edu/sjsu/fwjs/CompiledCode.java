@@ -0,0 +1,13 @@
+package edu.sjsu.fwjs;
+
+/**
+ * The entry point of a class generated by the BytecodeCompiler.
+ * Each FWJS function of the program is compiled to its own method,
+ * and is selected by its index.  Function 0 is the program itself.
+ */
+public interface CompiledCode {
+    /**
+     * Runs function number <code>fn</code> in the given local environment.
+     */
+    public Value run(int fn, Environment env);
+}
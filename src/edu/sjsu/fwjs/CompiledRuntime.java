@@ -0,0 +1,157 @@
+package edu.sjsu.fwjs;
+
+import java.util.Arrays;
+
+/**
+ * Operations called by the code generated by the BytecodeCompiler.
+ * Generated classes live in their own class loader, so everything they
+ * use has to be public.  Each operation matches the evaluate method of
+ * the Expression it is compiled from.
+ */
+public final class CompiledRuntime {
+    private CompiledRuntime() {}
+
+    public static Value getLocal(Environment env, int depth, int slot, String name) {
+        Value v = env.getSlot(depth, slot);
+        if (v != null)
+            return v;
+        return env.resolveVar(name);
+    }
+
+    public static Value getGlobal(Environment env, int depth, String name) {
+        return env.ancestor(depth).resolveVar(name);
+    }
+
+    public static Value assign(Value v, Environment env, int depth, int slot, String name) {
+        if (slot < 0)
+            env.ancestor(depth).updateVar(name, v);
+        else if (!env.setSlot(depth, slot, v))
+            env.updateVar(name, v);
+        return v;
+    }
+
+    public static Value declare(Value v, Environment env, int slot, String name) {
+        if (slot >= 0)
+            env.declareSlot(slot, v);
+        else
+            env.createVar(name, v);
+        return v;
+    }
+
+    public static Value print(Value v, Environment env) {
+        env.out().print(v);
+        return v;
+    }
+
+    public static Value add(Value left, Value right) {
+        if (left instanceof IntVal && right instanceof IntVal)
+            return IntVal.add(((IntVal) left).toInt(), ((IntVal) right).toInt());
+        return BinOpExpr.apply(Op.ADD, left, right);
+    }
+
+    public static Value subtract(Value left, Value right) {
+        if (left instanceof IntVal && right instanceof IntVal)
+            return IntVal.subtract(((IntVal) left).toInt(), ((IntVal) right).toInt());
+        return BinOpExpr.apply(Op.SUBTRACT, left, right);
+    }
+
+    public static Value multiply(Value left, Value right) {
+        if (left instanceof IntVal && right instanceof IntVal)
+            return IntVal.multiply(((IntVal) left).toInt(), ((IntVal) right).toInt());
+        return BinOpExpr.apply(Op.MULTIPLY, left, right);
+    }
+
+    public static Value divide(Value left, Value right) {
+        if (left instanceof IntVal && right instanceof IntVal)
+            return IntVal.divide(((IntVal) left).toInt(), ((IntVal) right).toInt());
+        return BinOpExpr.apply(Op.DIVIDE, left, right);
+    }
+
+    public static Value mod(Value left, Value right) {
+        if (left instanceof IntVal && right instanceof IntVal)
+            return IntVal.mod(((IntVal) left).toInt(), ((IntVal) right).toInt());
+        return BinOpExpr.apply(Op.MOD, left, right);
+    }
+
+    /**
+     * The sign of left - right, which the comparisons test.
+     */
+    public static int compare(Value left, Value right) {
+        if (left instanceof IntVal && right instanceof IntVal)
+            return Integer.compare(((IntVal) left).toInt(), ((IntVal) right).toInt());
+        return BigIntVal.toBigInteger(left).compareTo(BigIntVal.toBigInteger(right));
+    }
+
+    public static Value boolVal(boolean b) {
+        return BoolVal.of(b);
+    }
+
+    public static Value nullVal() {
+        return NullVal.NULL;
+    }
+
+    public static Value eq(Value left, Value right) {
+        return BoolVal.of(left.equals(right));
+    }
+
+    public static Value array(Value[] elements, Environment env) {
+        return ArrayExpr.create(env, elements);
+    }
+
+    public static Value index(Value array, Value index) {
+        return IndexExpr.get(array, index);
+    }
+
+    public static Value setIndex(Value array, Value index, Value v) {
+        return IndexAssignExpr.set(array, index, v);
+    }
+
+    /**
+     * A new object; literal is its ObjectExpr, which the generated
+     * class cannot name.
+     */
+    public static Value object(Value[] values, Object literal, Environment env) {
+        return ((ObjectExpr) literal).create(env, values);
+    }
+
+    public static Value getProp(Value obj, Object cache) {
+        return ((PropertyCache) cache).get(obj);
+    }
+
+    public static Value setProp(Value obj, Value v, Object cache) {
+        return ((PropertyCache) cache).set(obj, v);
+    }
+
+    /**
+     * The condition of an if or while.
+     */
+    public static boolean test(Value cv) {
+        if (!(cv instanceof BoolVal))
+            throw new RuntimeException("If condition must be boolean");
+        return ((BoolVal) cv).toBoolean();
+    }
+
+    /**
+     * The end of a loop iteration.
+     */
+    public static void step(Environment env) {
+        Budget budget = env.budget();
+        if (budget != null)
+            budget.step();
+    }
+
+    public static boolean isClosure(Value v) {
+        return v instanceof ClosureVal;
+    }
+
+    public static Value call(Value f, Value[] args) {
+        return ((ClosureVal) f).apply(Arrays.asList(args));
+    }
+
+    /**
+     * A call in tail position, made by the ClosureVal.apply of the caller.
+     */
+    public static Value tailCall(Value f, Value[] args) {
+        return new TailCall((ClosureVal) f, Arrays.asList(args));
+    }
+}
@@ -0,0 +1,83 @@
+package edu.sjsu.fwjs;
+
+/**
+ * An expression with a condition (if and while).
+ */
+interface Conditional {
+    Expression condition();
+
+    /**
+     * Replaces the node that tests the condition.
+     */
+    void specialize(Condition test);
+}
+
+/**
+ * Tests the condition of an if or while.
+ * Starts out uninitialized, and rewrites itself once it knows what kind
+ * of expression the condition is.  An int comparison is tested without
+ * producing a BoolVal at all.
+ */
+abstract class Condition {
+    /**
+     * Returns the value of the condition, which must be a boolean.
+     */
+    abstract boolean test(Environment env);
+
+    static boolean toBoolean(Value cv) {
+        if (!(cv instanceof BoolVal))
+            throw new RuntimeException("If condition must be boolean");
+        return ((BoolVal) cv).toBoolean();
+    }
+}
+
+class UninitializedCondition extends Condition {
+    private final Conditional owner;
+
+    UninitializedCondition(Conditional owner) {
+        this.owner = owner;
+    }
+
+    boolean test(Environment env) {
+        boolean b = toBoolean(owner.condition().evaluate(env));
+        // the condition may have just specialized itself
+        Expression cond = owner.condition();
+        if (cond instanceof IntCompareExpr)
+            owner.specialize(new CompareCondition((IntCompareExpr) cond));
+        else
+            owner.specialize(new BoolCondition(cond));
+        return b;
+    }
+}
+
+/**
+ * A condition that is an int comparison.
+ * If the comparison stops seeing ints, it replaces itself in the owner,
+ * which resets the condition.
+ */
+class CompareCondition extends Condition {
+    private final IntCompareExpr cond;
+
+    CompareCondition(IntCompareExpr cond) {
+        this.cond = cond;
+    }
+
+    boolean test(Environment env) {
+        return cond.executeBoolean(env);
+    }
+}
+
+/**
+ * Any other condition.
+ */
+class BoolCondition extends Condition {
+    private final Expression cond;
+
+    BoolCondition(Expression cond) {
+        this.cond = cond;
+    }
+
+    boolean test(Environment env) {
+        return toBoolean(cond.evaluate(env));
+    }
+}
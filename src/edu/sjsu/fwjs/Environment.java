@@ -1,22 +1,241 @@
 package edu.sjsu.fwjs;
 
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 
+/**
+ * A frame of variables.
+ * Variables live in an array of slots. Frames of resolved functions are
+ * created with a {@link FrameLayout}, so that resolved variable references
+ * can address them by (depth, slot) without any name lookup.
+ * Variables created by name in local frames (unresolved code) are
+ * appended to the frame. A slot holding a Java <code>null</code> is
+ * declared in the layout but has not been created yet.
+ *
+ * A global environment moves its variables to a {@link ScopeTrie} once
+ * it has more than fit in its first slots, or is first snapshot or
+ * forked, so that it can be copied in O(1).  A snapshot copies the
+ * closures, their frames, the arrays and the objects its variables
+ * reach when it is taken, so that what the environment it was taken of
+ * does later is not seen in it.  A fork of a snapshot (its origin)
+ * takes O(1): it sees the closures, arrays and objects of the snapshot
+ * as copies, closures over copies of their frames, made the first time
+ * it reaches them, so that what the program of one fork does is never
+ * seen by the snapshot or by other forks, as if each had run the
+ * snapshot's program itself.  A fork of any other environment forks a
+ * snapshot of it.  The closures of a snapshot are there for its forks
+ * to copy: call them in a fork, not in the snapshot.
+ *
+ * Frames a spawned closure can see are marked shared before the spawn,
+ * and stay so.  Writes to a shared frame (assignments and declarations)
+ * hold its lock, so that none is lost to another growing the frame, and
+ * two threads cannot both create a global.  Reads take no lock.
+ *
+ * What a thread sees of the assignments of another follows from spawn
+ * and join: everything before spawn(f) is visible to the call of f, and
+ * everything the call did is visible after join returns.  Otherwise an
+ * assignment to a variable of a shared frame races with the reads and
+ * writes of other threads: each read sees some value that was assigned,
+ * but not necessarily the latest, and of two assignments of
+ * <code>x = x + 1</code> one may be lost.  A variable created by a
+ * thread may not be seen by the others yet, which then look further out
+ * for it, as if it did not exist.
+ */
 public class Environment {
-    private Map<String,Value> env = new HashMap<String,Value>();
+    /**
+     * Local frames with more variables than this also keep a name index;
+     * global ones move their variables to a trie.
+     */
+    private static final int INDEX_THRESHOLD = 8;
+
+    private String[] names;
+    private Value[] values;
+    private int size;
+    private boolean sharedNames;
+    private volatile Map<String,Integer> index;
+    private volatile boolean shared;
     private Environment outerEnv;
+    private Output out;
+    private Budget budget;
+
+    // the variables of a global environment, once they are in a trie
+    private ScopeTrie globals;
+    private Fork fork;
+
+    /**
+     * What a snapshot or fork knows of the environments it came from.
+     * In a holder of its own, as most environments are not forks.
+     */
+    private static final class Fork {
+        final boolean frozen;
+        final Environment[] origins;
+        IdentityHashMap<Object,Object> adopted;
+        // false while a snapshot that drops memos copies its closures
+        boolean memoize = true;
+
+        Fork(boolean frozen, Environment[] origins) {
+            this.frozen = frozen;
+            this.origins = origins;
+        }
+    }
 
     /**
      * Constructor for global environment
      */
-    public Environment() {}
+    public Environment() {
+        this.names = new String[INDEX_THRESHOLD];
+        this.values = new Value[INDEX_THRESHOLD];
+    }
+
+    /**
+     * Constructor for a global environment whose program prints to out.
+     */
+    public Environment(PrintStream out) {
+        this((out == null) ? null : Output.of(out));
+    }
+
+    /**
+     * Constructor for a global environment whose program prints to out.
+     */
+    public Environment(Output out) {
+        this();
+        this.out = out;
+    }
+
+    /**
+     * Constructor for a global environment whose program prints to out,
+     * and is held to a budget (if not null).
+     */
+    Environment(Output out, Budget budget) {
+        this(out);
+        this.budget = budget;
+    }
 
     /**
      * Constructor for local environment of a function
      */
     public Environment(Environment outerEnv) {
+        this.names = new String[INDEX_THRESHOLD];
+        this.values = new Value[INDEX_THRESHOLD];
+        this.outerEnv = outerEnv;
+        this.out = outerEnv.out;
+        this.budget = outerEnv.budget;
+    }
+
+    /**
+     * Constructor for the local environment of a resolved function.
+     * All slots of the layout start out undeclared.
+     */
+    Environment(Environment outerEnv, FrameLayout layout) {
+        this.outerEnv = outerEnv;
+        this.out = outerEnv.out;
+        this.budget = outerEnv.budget;
+        this.names = layout.slotNames;
+        this.sharedNames = true;
+        this.size = layout.size();
+        this.values = new Value[size];
+    }
+
+    /**
+     * A local frame restored from a HeapImage, with slots of the given
+     * names, none of them declared yet.
+     */
+    Environment(Environment outerEnv, String[] names) {
+        this.outerEnv = outerEnv;
+        this.out = outerEnv.out;
+        this.budget = outerEnv.budget;
+        this.names = names;
+        this.size = names.length;
+        this.values = new Value[size];
+        if (size > INDEX_THRESHOLD) {
+            Map<String,Integer> idx = new ConcurrentHashMap<String,Integer>();
+            for (int i = 0; i < size; i++)
+                idx.put(names[i], i);
+            index = idx;
+        }
+    }
+
+    /**
+     * A blank local frame, for the FrameStack to reset().
+     */
+    Environment(int capacity) {
+        this.values = new Value[capacity];
+    }
+
+    /**
+     * A global environment with the variables of base, as a snapshot
+     * (frozen) or a fork.
+     */
+    private Environment(Environment base, boolean frozen, Output out, Budget budget) {
+        ScopeTrie vars;
+        if (base.shared) {
+            synchronized (base) {
+                vars = base.trie().copy();
+            }
+        } else {
+            vars = base.trie().copy();
+        }
+        Environment[] baseOrigins = (base.fork == null) ? null : base.fork.origins;
+        int n = (baseOrigins == null) ? 0 : baseOrigins.length;
+        Environment[] origins = (baseOrigins == null) ? new Environment[1] : Arrays.copyOf(baseOrigins, n + 1);
+        origins[n] = base;
+        this.globals = vars;
+        this.fork = new Fork(frozen, origins);
+        this.out = out;
+        this.budget = budget;
+    }
+
+    /**
+     * A copy of a local frame of an origin, for a fork.  The copy is
+     * the fork's own, within the given copy of its outer frame.
+     */
+    private Environment(Environment frame, Environment outerEnv) {
+        this.outerEnv = outerEnv;
+        this.out = outerEnv.out;
+        this.budget = outerEnv.budget;
+        this.names = frame.names;
+        this.sharedNames = true;
+        this.size = frame.size;
+        this.values = Arrays.copyOf(frame.values, frame.values.length);
+        Map<String,Integer> idx = frame.index;
+        if (idx != null)
+            this.index = new ConcurrentHashMap<String,Integer>(idx);
+    }
+
+    /**
+     * Makes a frame of the FrameStack the local environment of a call,
+     * as the constructor above would.  Its slots have been cleared.
+     */
+    void reset(Environment outerEnv, FrameLayout layout) {
         this.outerEnv = outerEnv;
+        this.out = outerEnv.out;
+        this.budget = outerEnv.budget;
+        this.names = layout.slotNames;
+        this.sharedNames = true;
+        if (index != null)
+            this.index = null;
+        this.size = layout.size();
+        if (values.length < size)
+            values = new Value[size];
+    }
+
+    /**
+     * Drops everything a frame of the FrameStack refers to, once its call
+     * has returned.
+     */
+    void clear() {
+        Arrays.fill(values, 0, size, null);
+        outerEnv = null;
+        out = null;
+        budget = null;
     }
 
     /**
@@ -24,14 +243,17 @@ public class Environment {
      * If the variable name is in the current scope, it is returned.
      * Otherwise, search for the variable in the outer scope.
      * If we are at the outermost scope (AKA the global scope)
+     * the built-in of that name is returned, or if there is none
      * null is returned (similar to how JS returns undefined.
      */
     public Value resolveVar(String varName) {
-        if(env.containsKey(varName))
-            return env.get(varName);
-        else if(outerEnv != null)
-            return outerEnv.resolveVar(varName);
-        return new NullVal();
+        for (Environment e = this; e != null; e = e.outerEnv) {
+            Value v = e.lookup(varName);
+            if (v != null)
+                return v;
+        }
+        Value builtin = Builtins.lookup(varName);
+        return (builtin != null) ? builtin : NullVal.NULL;
     }
 
     /**
@@ -40,12 +262,34 @@ public class Environment {
      * or any of the function's outer scopes, the var is stored in the global scope.
      */
     public void updateVar(String key, Value v) {
-        if(env.containsKey(key))
-            env.put(key, v);
-        else if (outerEnv != null)
-            outerEnv.updateVar(key, v);
-        else
-            env.put(key, v);
+        Environment e = this;
+        while (e.outerEnv != null) {
+            if (e.shared) {
+                synchronized (e) {
+                    if (e.replace(key, v))
+                        return;
+                }
+            } else if (e.replace(key, v)) {
+                return;
+            }
+            e = e.outerEnv;
+        }
+        if (e.shared) {
+            synchronized (e) {
+                e.assign(key, v);
+            }
+        } else {
+            e.assign(key, v);
+        }
+    }
+
+    private void assign(String key, Value v) {
+        if (globals != null) {
+            writable();
+            globals.put(key, v);
+        } else if (!replace(key, v)) {
+            create(key, v);
+        }
     }
 
     /**
@@ -54,8 +298,462 @@ public class Environment {
      * a RuntimeException is thrown.
      */
     public void createVar(String key, Value v) {
-        if(env.containsKey(key))
+        if (shared) {
+            synchronized (this) {
+                create(key, v);
+            }
+        } else {
+            create(key, v);
+        }
+    }
+
+    private void create(String key, Value v) {
+        if (globals != null) {
+            writable();
+            if (globals.get(key) != null)
+                throw new RuntimeException("error: variable is already declared");
+            globals.put(key, v);
+            return;
+        }
+        int i = slotOf(key);
+        if (i < 0) {
+            if (outerEnv == null && size == names.length) {
+                trie();
+                create(key, v);
+                return;
+            }
+            i = addSlot(key);
+        }
+        declare(i, v);
+    }
+
+    /**
+     * The trie of this global environment, moving its variables there
+     * if they are still in slots.
+     */
+    private ScopeTrie trie() {
+        if (globals == null) {
+            ScopeTrie vars = new ScopeTrie();
+            for (int i = 0; i < size; i++) {
+                if (values[i] != null)
+                    vars.put(names[i], values[i]);
+            }
+            if (shared)
+                vars.share();
+            // the slots stay as they are for readers on other threads
+            // that do not see the trie yet
+            globals = vars;
+        }
+        return globals;
+    }
+
+    /**
+     * Assigns a variable of this frame, if it has been created.
+     */
+    private boolean replace(String key, Value v) {
+        if (globals != null) {
+            if (globals.get(key) == null)
+                return false;
+            assign(key, v);
+            return true;
+        }
+        int i = slotOf(key);
+        if (i < 0 || values[i] == null)
+            return false;
+        values[i] = v;
+        return true;
+    }
+
+    /**
+     * The value of a variable of this frame, or null if it has not been
+     * created.  Safe against another thread growing the frame meanwhile.
+     */
+    private Value lookup(String key) {
+        ScopeTrie g = globals;
+        if (g != null) {
+            Value v = g.get(key);
+            Fork f = fork;
+            if (f != null && !f.frozen && !own(v))
+                v = adoptVar(key, v);
+            return v;
+        }
+        int i = slotOf(key);
+        Value[] vs = values;
+        return (i >= 0 && i < vs.length) ? vs[i] : null;
+    }
+
+    /**
+     * A snapshot of this global environment: a global environment with
+     * its variables, and the closures, frames, arrays and objects they
+     * reach, as they are now, which can be read and forked, but not
+     * written.  The two share their variables until this one writes
+     * them, but the closures, frames, arrays and objects are copied,
+     * which takes time in proportion to them.  A snapshot of a snapshot
+     * takes O(1).
+     */
+    public Environment snapshot() {
+        return snapshot(true);
+    }
+
+    /**
+     * Same as snapshot, but unless memoize is true, the closures of the
+     * snapshot do not memoize calls (see PurityAnalysis): the code run
+     * in its forks may assign what their functions call.
+     */
+    Environment snapshot(boolean memoize) {
+        global();
+        if (memoize && fork != null && fork.frozen)
+            return new Environment(this, true, out, null);
+        // a fork first makes what it sees of its origins its own
+        if (fork != null && !fork.frozen)
+            adoptAll();
+        Environment s = new Environment(this, true, out, null);
+        s.fork.memoize = memoize;
+        s.adoptAll();
+        // s now has only closures, arrays and objects of its own
+        s.fork = new Fork(true, new Environment[0]);
+        return s;
+    }
+
+    /**
+     * A global environment that starts out with the variables of this
+     * one, and has its own from then on (see above), printing to the
+     * same output.  Takes O(1) time and space if this is a snapshot:
+     * only the variables that are written, and the closures and frames
+     * it reaches, are copied.
+     */
+    public Environment fork() {
+        return fork(out, null);
+    }
+
+    /**
+     * Same as fork, printing to out.
+     */
+    public Environment fork(Output out) {
+        return fork(out, null);
+    }
+
+    Environment fork(Output out, Budget budget) {
+        global();
+        Environment base = (fork != null && fork.frozen) ? this : snapshot();
+        return new Environment(base, false, out, budget);
+    }
+
+    /**
+     * The number of variables of this global environment.
+     */
+    int globalCount() {
+        global();
+        return (globals != null) ? globals.size() : size;
+    }
+
+    /**
+     * Calls f with each variable of this global environment and its
+     * value, as they are in the trie or the slots (a fork's closures,
+     * arrays and objects are not adopted).
+     */
+    void forEachVar(BiConsumer<String,Value> f) {
+        global();
+        if (globals != null) {
+            globals.forEach(f);
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            if (values[i] != null)
+                f.accept(names[i], values[i]);
+        }
+    }
+
+    /**
+     * Whether e is this global environment, or one of its origins,
+     * whose closures, arrays and objects this one sees as its own.
+     */
+    boolean sees(Environment e) {
+        return e == this || (fork != null && isOrigin(e));
+    }
+
+    /**
+     * The number of slots of this local frame, declared or not.
+     */
+    int slotCount() {
+        return size;
+    }
+
+    String slotName(int slot) {
+        return names[slot];
+    }
+
+    /**
+     * The global environment around this one.
+     */
+    Environment globalEnv() {
+        Environment e = this;
+        while (e.outerEnv != null)
+            e = e.outerEnv;
+        return e;
+    }
+
+    private void global() {
+        if (outerEnv != null)
+            throw new IllegalStateException("Not a global environment");
+    }
+
+    private void writable() {
+        if (fork != null && fork.frozen)
+            throw new IllegalStateException("A snapshot cannot be written; fork it");
+    }
+
+    /**
+     * Whether v is known to be this fork's: anything but a closure, an
+     * array or an object, or one made in this environment.
+     */
+    private boolean own(Value v) {
+        if (v instanceof ClosureVal)
+            return ((ClosureVal) v).outerEnv() == this;
+        if (v instanceof ArrayVal)
+            return ((ArrayVal) v).owner() == this;
+        if (v instanceof ObjectVal)
+            return ((ObjectVal) v).owner() == this;
+        return true;
+    }
+
+    /**
+     * The closure, array or object v, read from variable key of this
+     * fork, as this fork sees it.  One of an origin is adopted, and
+     * replaces v in the variable, so that it is adopted only once.
+     */
+    private Value adoptVar(String key, Value v) {
+        if (!fromOrigin(v))
+            return v;
+        if (shared) {
+            synchronized (this) {
+                return adoptVar0(key, v);
+            }
+        }
+        return adoptVar0(key, v);
+    }
+
+    /**
+     * Adopts every closure, array and object of an origin that the
+     * variables of this fork or snapshot reach.
+     */
+    private void adoptAll() {
+        List<String> keys = new ArrayList<String>();
+        List<Value> vs = new ArrayList<Value>();
+        globals.forEach((key, v) -> {
+            if (fromOrigin(v)) {
+                keys.add(key);
+                vs.add(v);
+            }
+        });
+        for (int i = 0; i < keys.size(); i++)
+            adoptVar(keys.get(i), vs.get(i));
+    }
+
+    private Value adoptVar0(String key, Value v) {
+        Deque<Object> pending = new ArrayDeque<Object>();
+        Value copy = adopt(v, pending);
+        // the values of the frames and arrays copied are adopted in
+        // turn, without recursion, as they can link long chains of closures
+        while (!pending.isEmpty()) {
+            Object next = pending.pop();
+            if (next instanceof ArrayVal) {
+                ArrayVal a = (ArrayVal) next;
+                for (int i = 0; i < a.length(); i++)
+                    a.set(i, adopt(a.get(i), pending));
+            } else if (next instanceof ObjectVal) {
+                ((ObjectVal) next).replaceAll(x -> adopt(x, pending));
+            } else {
+                Environment frame = (Environment) next;
+                for (int i = 0; i < frame.size; i++)
+                    frame.values[i] = adopt(frame.values[i], pending);
+            }
+        }
+        if (globals.get(key) == v)
+            globals.put(key, copy);
+        return copy;
+    }
+
+    /**
+     * This fork's copy of v, if v is a closure, an array or an object of
+     * an origin.  The copies of frames, arrays and objects whose values
+     * are still to be adopted go in pending.
+     */
+    private Value adopt(Value v, Deque<Object> pending) {
+        if (!fromOrigin(v))
+            return v;
+        if (fork.adopted == null)
+            fork.adopted = new IdentityHashMap<Object,Object>();
+        Value copy = (Value) fork.adopted.get(v);
+        if (copy == null) {
+            if (v instanceof ArrayVal) {
+                ArrayVal a = ((ArrayVal) v).copy(this);
+                // an array of ints holds nothing to adopt
+                if (!a.isInts())
+                    pending.push(a);
+                copy = a;
+            } else if (v instanceof ObjectVal) {
+                copy = ((ObjectVal) v).copy(this);
+                pending.push(copy);
+            } else {
+                ClosureVal c = (ClosureVal) v;
+                copy = c.rebind(adopt(c.outerEnv(), pending), fork.memoize);
+            }
+            fork.adopted.put(v, copy);
+        }
+        return copy;
+    }
+
+    private Environment adopt(Environment frame, Deque<Object> pending) {
+        if (isOrigin(frame))
+            return this;
+        Environment copy = (Environment) fork.adopted.get(frame);
+        if (copy == null) {
+            copy = new Environment(frame, adopt(frame.outerEnv, pending));
+            fork.adopted.put(frame, copy);
+            pending.push(copy);
+        }
+        return copy;
+    }
+
+    /**
+     * Whether v is a closure, an array or an object of an origin.
+     */
+    private boolean fromOrigin(Value v) {
+        if (v instanceof ClosureVal)
+            return isOrigin(((ClosureVal) v).outerEnv().globalEnv());
+        if (v instanceof ArrayVal)
+            return isOrigin(((ArrayVal) v).owner());
+        return v instanceof ObjectVal && isOrigin(((ObjectVal) v).owner());
+    }
+
+    private boolean isOrigin(Environment e) {
+        for (Environment origin : fork.origins) {
+            if (origin == e)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks this frame and the ones around it as shared.
+     */
+    void share() {
+        for (Environment e = this; e != null && !e.shared; e = e.outerEnv) {
+            if (e.globals != null)
+                e.globals.share();
+            e.shared = true;
+        }
+    }
+
+    /**
+     * Where print writes to: the output of the global environment,
+     * or System.out (as it is at the time of the print) if it has none.
+     */
+    Output out() {
+        return (out != null) ? out : Output.SYSTEM_OUT;
+    }
+
+    /**
+     * The budget of the execution for the current thread, or null if it
+     * has no limits.
+     */
+    Budget budget() {
+        return (budget != null) ? budget.forThread() : null;
+    }
+
+    /**
+     * Returns the frame <code>depth</code> levels out from this one.
+     */
+    Environment ancestor(int depth) {
+        Environment e = this;
+        while (depth-- > 0)
+            e = e.outerEnv;
+        return e;
+    }
+
+    /**
+     * Reads a slot of a frame, or returns <code>null</code> if
+     * the variable has not been declared yet.
+     */
+    Value getSlot(int depth, int slot) {
+        return ancestor(depth).values[slot];
+    }
+
+    /**
+     * Writes a slot of a frame if its variable has been declared.
+     * Returns false if it has not, so the caller can fall back to
+     * resolving the variable by name.
+     */
+    boolean setSlot(int depth, int slot, Value v) {
+        Environment e = ancestor(depth);
+        if (e.shared) {
+            synchronized (e) {
+                return e.store(slot, v);
+            }
+        }
+        return e.store(slot, v);
+    }
+
+    private boolean store(int slot, Value v) {
+        if (values[slot] == null)
+            return false;
+        values[slot] = v;
+        return true;
+    }
+
+    /**
+     * Declares the variable of a slot of this frame.
+     */
+    void declareSlot(int slot, Value v) {
+        if (shared) {
+            synchronized (this) {
+                declare(slot, v);
+            }
+        } else {
+            declare(slot, v);
+        }
+    }
+
+    private void declare(int slot, Value v) {
+        if (values[slot] != null)
             throw new RuntimeException("error: variable is already declared");
-        env.put(key, v);
+        values[slot] = v;
+    }
+
+    private int slotOf(String name) {
+        Map<String,Integer> idx = index;
+        if (idx != null) {
+            Integer i = idx.get(name);
+            return i == null ? -1 : i;
+        }
+        // another thread may be growing a shared frame: the names seen
+        // may be the old ones, or not all written yet
+        String[] ns = names;
+        int n = Math.min(size, ns.length);
+        for (int i = 0; i < n; i++) {
+            if (name.equals(ns[i]))
+                return i;
+        }
+        return -1;
+    }
+
+    private int addSlot(String name) {
+        if (sharedNames || size == names.length) {
+            int capacity = Math.max(size * 2, INDEX_THRESHOLD);
+            names = Arrays.copyOf(names, capacity);
+            values = Arrays.copyOf(values, capacity);
+            sharedNames = false;
+        }
+        names[size] = name;
+        if (index != null) {
+            index.put(name, size);
+        } else if (size >= INDEX_THRESHOLD) {
+            Map<String,Integer> idx = new ConcurrentHashMap<String,Integer>();
+            for (int i = 0; i <= size; i++)
+                idx.put(names[i], i);
+            index = idx;
+        }
+        return size++;
     }
 }
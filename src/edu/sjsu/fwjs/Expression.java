@@ -11,21 +11,31 @@ public interface Expression {
      * Evaluate the expression in the context of the specified environment.
      */
     public Value evaluate(Environment env);
+
+    /**
+     * Dispatch to the matching method of a visitor.
+     */
+    <R> R accept(ExpressionVisitor<R> v);
 }
 
 // NOTE: Using package access so that all implementations of Expression
-// can be included in the same file.
+// can be included in the same file.  Fields are package access as well,
+// so that the passes over the tree (e.g. ScopeResolver) can read them.
 
 /**
  * FWJS constants.
  */
 class ValueExpr implements Expression {
-    private Value val;
+    Value val;
 
     public ValueExpr(Value v) {
         this.val = v;
     }
 
+    public <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitValue(this);
+    }
+
     public Value evaluate(Environment env) {
         return this.val;
     }
@@ -33,32 +43,57 @@ class ValueExpr implements Expression {
 
 /**
  * Expressions that are a FWJS variable.
+ * The ScopeResolver sets the frame depth and slot of the variable.
+ * A negative slot means the variable is looked up by name, starting
+ * at the frame <code>depth</code> levels out.
  */
 class VarExpr implements Expression {
-    private String varName;
+    String varName;
+    int depth = 0;
+    int slot = -1;
 
     public VarExpr(String varName) {
         this.varName = varName;
     }
 
+    public <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitVar(this);
+    }
+
     public Value evaluate(Environment env) {
-        return env.resolveVar(varName);
+        if (slot >= 0) {
+            Value v = env.getSlot(depth, slot);
+            // not declared yet, so an outer variable may be visible
+            if (v != null)
+                return v;
+            return env.resolveVar(varName);
+        }
+        return env.ancestor(depth).resolveVar(varName);
     }
 }
 
 /**
  * A print expression.
  */
-class PrintExpr implements Expression {
-    private Expression exp;
+class PrintExpr implements Expression, ParentExpr {
+    Expression exp;
 
     public PrintExpr(Expression exp) {
-        this.exp = exp;
+        this.exp = ParentExpr.adopt(this, exp);
+    }
+
+    public void replaceChild(Expression oldChild, Expression newChild) {
+        if (exp == oldChild)
+            exp = newChild;
+    }
+
+    public <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitPrint(this);
     }
 
     public Value evaluate(Environment env) {
         Value v = exp.evaluate(env);
-        System.out.println(v.toString());
+        env.out().print(v);
         return v;
     }
 }
@@ -66,11 +101,30 @@ class PrintExpr implements Expression {
 /**
  * Binary operators (+, -, *, etc).
  * Currently only numbers are supported.
+ *
+ * A new BinOpExpr is uninitialized: the first time it is evaluated it
+ * replaces itself in its parent with a node specialized to the types of
+ * its operands (see IntBinOpExpr), or marks itself generic if there is
+ * no specialization for them.  Holders of a replaced node that are not
+ * its parent (e.g. closures created before the rewrite) are forwarded
+ * to the replacement.
+ *
+ * Spawned tasks may run a node while another task rewrites it, and see
+ * its replacement through a parent's field without synchronizing.  So
+ * the fields a node is evaluated with are final, which makes the node
+ * whole to any thread that sees it, and its operands are not replaced
+ * in it: a node made for a rewrite takes the replacements its operands
+ * have by then.  Every node a thread may see computes the same values,
+ * so a thread that sees an older one only takes a slower path.  The
+ * rewrites of a node are made holding its lock, so it is rewritten once.
  */
 class BinOpExpr implements Expression {
-    private Op op;
-    private Expression e1;
-    private Expression e2;
+    final Op op;
+    final Expression e1;
+    final Expression e2;
+    volatile ParentExpr parent;
+    volatile BinOpExpr replacement;
+    volatile boolean generic;
 
     public BinOpExpr(Op op, Expression e1, Expression e2) {
         this.op = op;
@@ -78,34 +132,96 @@ class BinOpExpr implements Expression {
         this.e2 = e2;
     }
 
-    @SuppressWarnings("incomplete-switch")
+    public <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitBinOp(this);
+    }
+
     public Value evaluate(Environment env) {
+        BinOpExpr r = replacement;
+        if (r != null)
+            return r.evaluate(env);
         Value left = e1.evaluate(env);
         Value right = e2.evaluate(env);
-        switch (op) {
-            case ADD:
-                return new IntVal(((IntVal) left).toInt() + ((IntVal) right).toInt());
-            case SUBTRACT:
-                return new IntVal(((IntVal) left).toInt() - ((IntVal) right).toInt());
-            case MULTIPLY:
-                return new IntVal(((IntVal) left).toInt() * ((IntVal) right).toInt());
-            case DIVIDE:
-                return new IntVal(((IntVal) left).toInt() / ((IntVal) right).toInt());
-            case MOD:
-                return new IntVal(((IntVal) left).toInt() % ((IntVal) right).toInt());
-            // comparison
-            case GT:
-                return new BoolVal(((IntVal) left).toInt() > ((IntVal) right).toInt());
-            case GE:
-                return new BoolVal(((IntVal) left).toInt() >= ((IntVal) right).toInt());
-            case LT:
-                return new BoolVal(((IntVal) left).toInt() < ((IntVal) right).toInt());
-            case LE:
-                return new BoolVal(((IntVal) left).toInt() <= ((IntVal) right).toInt());
-            case EQ:
-                return new BoolVal(left.equals(right));
+        if (!generic)
+            specialize(left, right);
+        return apply(op, left, right);
+    }
+
+    /**
+     * Rewrites this node for the operand types it has just seen, unless
+     * another task already has.
+     */
+    private synchronized void specialize(Value left, Value right) {
+        if (replacement != null || generic)
+            return;
+        if (isNumber(left) && isNumber(right))
+            replace(IntBinOpExpr.create(op, current(e1), current(e2)));
+        else
+            generic = true;
+    }
+
+    /**
+     * Replaces this node in its parent, and forwards to the new node.
+     * Called holding the lock of this node, with a node that no other
+     * thread has seen yet.
+     */
+    void replace(BinOpExpr node) {
+        node.parent = parent;
+        replacement = node;
+        ParentExpr p = parent;
+        if (p != null)
+            p.replaceChild(this, node);
+    }
+
+    /**
+     * The node e has been rewritten to, for the operands of a new node.
+     */
+    static Expression current(Expression e) {
+        while (e instanceof BinOpExpr && ((BinOpExpr) e).replacement != null)
+            e = ((BinOpExpr) e).replacement;
+        return e;
+    }
+
+    static boolean isNumber(Value v) {
+        return v instanceof IntVal || v instanceof BigIntVal;
+    }
+
+    /**
+     * Applies an operator to values of any type.
+     * Numbers that are not both ints are computed on as BigIntegers.
+     */
+    static Value apply(Op op, Value left, Value right) {
+        if (left instanceof IntVal && right instanceof IntVal) {
+            int l = ((IntVal) left).toInt();
+            int r = ((IntVal) right).toInt();
+            switch (op) {
+                case ADD:
+                    return IntVal.add(l, r);
+                case SUBTRACT:
+                    return IntVal.subtract(l, r);
+                case MULTIPLY:
+                    return IntVal.multiply(l, r);
+                case DIVIDE:
+                    return IntVal.divide(l, r);
+                case MOD:
+                    return IntVal.mod(l, r);
+                // comparison
+                case GT:
+                    return BoolVal.of(l > r);
+                case GE:
+                    return BoolVal.of(l >= r);
+                case LT:
+                    return BoolVal.of(l < r);
+                case LE:
+                    return BoolVal.of(l <= r);
+                default:
+                    return BoolVal.of(l == r);
+            }
         }
-        return new NullVal();
+        if (op == Op.EQ)
+            // closures and arrays are equal only to themselves
+            return BoolVal.of(left.equals(right));
+        return BigIntVal.apply(op, BigIntVal.toBigInteger(left), BigIntVal.toBigInteger(right));
     }
 }
 
@@ -113,67 +229,117 @@ class BinOpExpr implements Expression {
  * If-then-else expressions.
  * Unlike JS, if expressions return a value.
  */
-class IfExpr implements Expression {
-    private Expression cond;
-    private Expression thn;
-    private Expression els;
+class IfExpr implements Expression, ParentExpr, Conditional {
+    Expression cond;
+    Expression thn;
+    Expression els;
+    volatile Condition test = new UninitializedCondition(this);
 
     public IfExpr(Expression cond, Expression thn, Expression els) {
-        this.cond = cond;
-        this.thn = thn;
-        this.els = els;
+        this.cond = ParentExpr.adopt(this, cond);
+        this.thn = ParentExpr.adopt(this, thn);
+        this.els = ParentExpr.adopt(this, els);
     }
 
-    public Value evaluate(Environment env) {
-        Value cv = cond.evaluate(env);
-        if (!(cv instanceof BoolVal))
-            throw new RuntimeException("If condition must be boolean");
+    public void replaceChild(Expression oldChild, Expression newChild) {
+        if (cond == oldChild) {
+            cond = newChild;
+            test = new UninitializedCondition(this);
+        }
+        if (thn == oldChild)
+            thn = newChild;
+        if (els == oldChild)
+            els = newChild;
+    }
 
-        if (((BoolVal) cv).toBoolean())
+    public Expression condition() {
+        return cond;
+    }
+
+    public void specialize(Condition test) {
+        this.test = test;
+    }
+
+    public <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitIf(this);
+    }
+
+    public Value evaluate(Environment env) {
+        if (test.test(env))
             return thn.evaluate(env);
         else if (els != null)
             return els.evaluate(env);
         else
-            return new NullVal();
+            return NullVal.NULL;
     }
 }
 
 /**
  * While statements (treated as expressions in FWJS, unlike JS).
  */
-class WhileExpr implements Expression {
-    private Expression cond;
-    private Expression body;
+class WhileExpr implements Expression, ParentExpr, Conditional {
+    Expression cond;
+    Expression body;
+    volatile Condition test = new UninitializedCondition(this);
 
     public WhileExpr(Expression cond, Expression body) {
-        this.cond = cond;
-        this.body = body;
+        this.cond = ParentExpr.adopt(this, cond);
+        this.body = ParentExpr.adopt(this, body);
     }
 
-    public Value evaluate(Environment env) {
-        while (true) {
-            Value cv = cond.evaluate(env);
-            if (!(cv instanceof BoolVal))
-                throw new RuntimeException("If condition must be boolean");
+    public void replaceChild(Expression oldChild, Expression newChild) {
+        if (cond == oldChild) {
+            cond = newChild;
+            test = new UninitializedCondition(this);
+        }
+        if (body == oldChild)
+            body = newChild;
+    }
+
+    public Expression condition() {
+        return cond;
+    }
 
-            if (!((BoolVal) cv).toBoolean())
-                break;
+    public void specialize(Condition test) {
+        this.test = test;
+    }
+
+    public <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitWhile(this);
+    }
+
+    public Value evaluate(Environment env) {
+        Budget budget = env.budget();
+        while (test.test(env)) {
             body.evaluate(env);
+            if (budget != null)
+                budget.step();
         }
-        return new NullVal();
+        return NullVal.NULL;
     }
 }
 
 /**
  * Sequence expressions (i.e. 2 back-to-back expressions).
  */
-class SeqExpr implements Expression {
-    private Expression e1;
-    private Expression e2;
+class SeqExpr implements Expression, ParentExpr {
+    Expression e1;
+    Expression e2;
 
     public SeqExpr(Expression e1, Expression e2) {
-        this.e1 = e1;
-        this.e2 = e2;
+        this.e1 = ParentExpr.adopt(this, e1);
+        this.e2 = ParentExpr.adopt(this, e2);
+    }
+
+    public void replaceChild(Expression oldChild, Expression newChild) {
+        if (e1 == oldChild)
+            e1 = newChild;
+        if (e2 == oldChild)
+            e2 = newChild;
+    }
+
+    public <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitSeq(this);
     }
 
     public Value evaluate(Environment env) {
@@ -182,21 +348,78 @@ class SeqExpr implements Expression {
     }
 }
 
+/**
+ * A block of statements, run in order.
+ * The value of the block is the value of its last statement.
+ * Statements are kept in an array and run in a loop, so a block of any
+ * length runs in constant Java stack (unlike a chain of SeqExprs).
+ */
+class BlockExpr implements Expression, ParentExpr {
+    Expression[] stmts;
+
+    /**
+     * A block of two or more statements.
+     */
+    public BlockExpr(Expression[] stmts) {
+        this.stmts = stmts;
+        for (Expression stmt : stmts)
+            ParentExpr.adopt(this, stmt);
+    }
+
+    public void replaceChild(Expression oldChild, Expression newChild) {
+        for (int i = 0; i < stmts.length; i++) {
+            if (stmts[i] == oldChild)
+                stmts[i] = newChild;
+        }
+    }
+
+    public <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitBlock(this);
+    }
+
+    public Value evaluate(Environment env) {
+        Expression[] s = stmts;
+        int last = s.length - 1;
+        for (int i = 0; i < last; i++)
+            s[i].evaluate(env);
+        return s[last].evaluate(env);
+    }
+}
+
 /**
  * Declaring a variable in the local scope.
  */
-class VarDeclExpr implements Expression {
-    private String varName;
-    private Expression exp;
+class VarDeclExpr implements Expression, ParentExpr {
+    String varName;
+    Expression exp;
+    int slot = -1;
 
     public VarDeclExpr(String varName, Expression exp) {
         this.varName = varName;
-        this.exp = exp;
+        this.exp = ParentExpr.adopt(this, exp);
+    }
+
+    public void replaceChild(Expression oldChild, Expression newChild) {
+        if (exp == oldChild)
+            exp = newChild;
+    }
+
+    public <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitVarDecl(this);
     }
 
     public Value evaluate(Environment env) {
-        Value e = (exp == null) ? new NullVal() : exp.evaluate(env);
-        env.createVar(varName, e);
+        return declare(env, (exp == null) ? NullVal.NULL : exp.evaluate(env));
+    }
+
+    /**
+     * Declares the variable with the value of the expression.
+     */
+    Value declare(Environment env, Value e) {
+        if (slot >= 0)
+            env.declareSlot(slot, e);
+        else
+            env.createVar(varName, e);
         return e;
     }
 }
@@ -205,60 +428,380 @@ class VarDeclExpr implements Expression {
  * Updating an existing variable.
  * If the variable is not set already, it is added
  * to the global scope.
+ *
+ * An assignment is seen by tasks spawned after it, and an assignment
+ * made by a task is seen once the task is joined.  Other threads may
+ * see it late or never, and a read-then-assign such as
+ * <code>x = x + 1</code> is not atomic (see Environment).
  */
-class AssignExpr implements Expression {
-    private String varName;
-    private Expression e;
+class AssignExpr implements Expression, ParentExpr {
+    String varName;
+    Expression e;
+    int depth = 0;
+    int slot = -1;
 
     public AssignExpr(String varName, Expression e) {
         this.varName = varName;
-        this.e = e;
+        this.e = ParentExpr.adopt(this, e);
+    }
+
+    public void replaceChild(Expression oldChild, Expression newChild) {
+        if (e == oldChild)
+            e = newChild;
+    }
+
+    public <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitAssign(this);
     }
 
     public Value evaluate(Environment env) {
-        Value v = e.evaluate(env);
-        env.updateVar(varName, v);
+        return assign(env, e.evaluate(env));
+    }
+
+    /**
+     * Assigns the value of the expression to the variable.
+     */
+    Value assign(Environment env, Value v) {
+        if (slot < 0)
+            env.ancestor(depth).updateVar(varName, v);
+        else if (!env.setSlot(depth, slot, v))
+            env.updateVar(varName, v);
         return v;
     }
 }
 
 /**
  * A function declaration, which evaluates to a closure.
+ * The name is that of the variable the function is first bound to, if
+ * any, and line and column are where the declaration starts (from 1).
  */
-class FunctionDeclExpr implements Expression {
-    private List<String> params;
-    private Expression body;
+class FunctionDeclExpr implements Expression, ParentExpr {
+    List<String> params;
+    Expression body;
+    FrameLayout layout;
+    /** Set by PurityAnalysis if the closures should memoize calls. */
+    MemoStats memo;
+    String name;
+    int line;
+    int column;
 
     public FunctionDeclExpr(List<String> params, Expression body) {
         this.params = params;
-        this.body = body;
+        this.body = ParentExpr.adopt(this, body);
+    }
+
+    public void replaceChild(Expression oldChild, Expression newChild) {
+        if (body == oldChild)
+            body = newChild;
+    }
+
+    public <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitFunctionDecl(this);
     }
 
     public Value evaluate(Environment env) {
-        return new ClosureVal(params, body, env);
+        if (env.budget() != null)
+            env.budget().allocate();
+        return new ClosureVal(params, body, env, layout, memo);
     }
 }
 
 /**
  * Function application.
+ * A call in tail position of a function body (see
+ * ExpressionBuilderVisitor.markTailCalls) is not made here, but
+ * returned as a TailCall for ClosureVal.apply to make.
  */
-class FunctionAppExpr implements Expression {
-    private Expression f;
-    private List<Expression> args;
+class FunctionAppExpr implements Expression, ParentExpr {
+    Expression f;
+    List<Expression> args;
+    boolean tail;
 
     public FunctionAppExpr(Expression f, List<Expression> args) {
-        this.f = f;
-        this.args = args;
+        this.f = ParentExpr.adopt(this, f);
+        this.args = new ArrayList<Expression>(args);
+        for (Expression arg : args)
+            ParentExpr.adopt(this, arg);
+    }
+
+    public void replaceChild(Expression oldChild, Expression newChild) {
+        if (f == oldChild)
+            f = newChild;
+        for (int i = 0; i < args.size(); i++) {
+            if (args.get(i) == oldChild)
+                args.set(i, newChild);
+        }
+    }
+
+    public <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitFunctionApp(this);
     }
 
     public Value evaluate(Environment env) {
         Value v = f.evaluate(env);
         if (!(v instanceof ClosureVal))
-            return new NullVal();
+            return NullVal.NULL;
 
         List<Value> argValues = new ArrayList<>();
         for (Expression e : args)
             argValues.add(e.evaluate(env));
+        if (tail)
+            return new TailCall((ClosureVal) v, argValues);
         return ((ClosureVal) v).apply(argValues);
     }
 }
+
+/**
+ * An array literal, which evaluates to a new array of its elements.
+ */
+class ArrayExpr implements Expression, ParentExpr {
+    List<Expression> elements;
+
+    public ArrayExpr(List<Expression> elements) {
+        this.elements = new ArrayList<Expression>(elements);
+        for (Expression element : elements)
+            ParentExpr.adopt(this, element);
+    }
+
+    public void replaceChild(Expression oldChild, Expression newChild) {
+        for (int i = 0; i < elements.size(); i++) {
+            if (elements.get(i) == oldChild)
+                elements.set(i, newChild);
+        }
+    }
+
+    public <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitArray(this);
+    }
+
+    public Value evaluate(Environment env) {
+        Value[] values = new Value[elements.size()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = elements.get(i).evaluate(env);
+        return create(env, values);
+    }
+
+    /**
+     * A new array of the values, made in env and charged to its budget.
+     */
+    static Value create(Environment env, Value[] values) {
+        if (env.budget() != null)
+            env.budget().allocate();
+        return ArrayVal.of(values, env.globalEnv());
+    }
+}
+
+/**
+ * Reading an element of an array.
+ * Anything but an array, or an index that is not a number in range,
+ * gives null (as a call of anything but a function does).
+ */
+class IndexExpr implements Expression, ParentExpr {
+    Expression array;
+    Expression index;
+
+    public IndexExpr(Expression array, Expression index) {
+        this.array = ParentExpr.adopt(this, array);
+        this.index = ParentExpr.adopt(this, index);
+    }
+
+    public void replaceChild(Expression oldChild, Expression newChild) {
+        if (array == oldChild)
+            array = newChild;
+        if (index == oldChild)
+            index = newChild;
+    }
+
+    public <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitIndex(this);
+    }
+
+    public Value evaluate(Environment env) {
+        Value a = array.evaluate(env);
+        return get(a, index.evaluate(env));
+    }
+
+    static Value get(Value array, Value index) {
+        if (array instanceof ArrayVal && index instanceof IntVal)
+            return ((ArrayVal) array).get(((IntVal) index).toInt());
+        return NullVal.NULL;
+    }
+}
+
+/**
+ * Setting an element of an array, or appending one at its length.
+ * Its value is the value set, as for an assignment.  Setting an element
+ * of anything but an array, or at an index that is not a number from 0
+ * to the length, is an error.
+ */
+class IndexAssignExpr implements Expression, ParentExpr {
+    Expression array;
+    Expression index;
+    Expression e;
+
+    public IndexAssignExpr(Expression array, Expression index, Expression e) {
+        this.array = ParentExpr.adopt(this, array);
+        this.index = ParentExpr.adopt(this, index);
+        this.e = ParentExpr.adopt(this, e);
+    }
+
+    public void replaceChild(Expression oldChild, Expression newChild) {
+        if (array == oldChild)
+            array = newChild;
+        if (index == oldChild)
+            index = newChild;
+        if (e == oldChild)
+            e = newChild;
+    }
+
+    public <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitIndexAssign(this);
+    }
+
+    public Value evaluate(Environment env) {
+        Value a = array.evaluate(env);
+        Value i = index.evaluate(env);
+        return set(a, i, e.evaluate(env));
+    }
+
+    static Value set(Value array, Value index, Value v) {
+        if (!(array instanceof ArrayVal))
+            throw new RuntimeException("error: cannot set an element of " + array);
+        if (!(index instanceof IntVal))
+            throw new RuntimeException("error: array index must be a number, not " + index);
+        ((ArrayVal) array).set(((IntVal) index).toInt(), v);
+        return v;
+    }
+}
+
+/**
+ * An object literal, which evaluates to a new object of its properties.
+ * A name given twice is set twice, in order.
+ */
+class ObjectExpr implements Expression, ParentExpr {
+    final List<String> keys;
+    List<Expression> values;
+    // the shape of the objects made, with the slot of each value; or a
+    // null shape if they have too many properties
+    private final Shape shape;
+    private final int[] slots;
+
+    public ObjectExpr(List<String> keys, List<Expression> values) {
+        this.keys = new ArrayList<String>(keys.size());
+        for (String key : keys)
+            this.keys.add(key.intern());
+        this.values = new ArrayList<Expression>(values);
+        for (Expression value : values)
+            ParentExpr.adopt(this, value);
+        Shape s = Shape.EMPTY;
+        int[] slots = new int[keys.size()];
+        for (int i = 0; i < slots.length && s != null; i++) {
+            slots[i] = s.slotOf(this.keys.get(i));
+            if (slots[i] < 0) {
+                s = s.with(this.keys.get(i));
+                if (s != null)
+                    slots[i] = s.size() - 1;
+            }
+        }
+        this.shape = s;
+        this.slots = slots;
+    }
+
+    public void replaceChild(Expression oldChild, Expression newChild) {
+        for (int i = 0; i < values.size(); i++) {
+            if (values.get(i) == oldChild)
+                values.set(i, newChild);
+        }
+    }
+
+    public <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitObject(this);
+    }
+
+    public Value evaluate(Environment env) {
+        Value[] vs = new Value[values.size()];
+        for (int i = 0; i < vs.length; i++)
+            vs[i] = values.get(i).evaluate(env);
+        return create(env, vs);
+    }
+
+    /**
+     * A new object of the values of the properties, in source order,
+     * made in env and charged to its budget.
+     */
+    Value create(Environment env, Value[] vs) {
+        if (env.budget() != null)
+            env.budget().allocate();
+        Environment owner = env.globalEnv();
+        if (shape == null) {
+            ObjectVal o = new ObjectVal(owner);
+            for (int i = 0; i < vs.length; i++)
+                o.put(keys.get(i), vs[i]);
+            return o;
+        }
+        Value[] s = new Value[shape.size()];
+        for (int i = 0; i < vs.length; i++)
+            s[slots[i]] = vs[i];
+        return new ObjectVal(shape, s, owner);
+    }
+}
+
+/**
+ * Reading a property of an object.
+ * Anything but an object, or an object without the property, gives null.
+ */
+class GetPropExpr implements Expression, ParentExpr {
+    Expression obj;
+    final PropertyCache cache;
+
+    public GetPropExpr(Expression obj, String name) {
+        this.obj = ParentExpr.adopt(this, obj);
+        this.cache = new PropertyCache(name.intern());
+    }
+
+    public void replaceChild(Expression oldChild, Expression newChild) {
+        if (obj == oldChild)
+            obj = newChild;
+    }
+
+    public <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitGetProp(this);
+    }
+
+    public Value evaluate(Environment env) {
+        return cache.get(obj.evaluate(env));
+    }
+}
+
+/**
+ * Setting a property of an object, which adds it if the object has none.
+ * Its value is the value set, as for an assignment.  Setting a property
+ * of anything but an object is an error.
+ */
+class SetPropExpr implements Expression, ParentExpr {
+    Expression obj;
+    final PropertyCache cache;
+    Expression e;
+
+    public SetPropExpr(Expression obj, String name, Expression e) {
+        this.obj = ParentExpr.adopt(this, obj);
+        this.cache = new PropertyCache(name.intern());
+        this.e = ParentExpr.adopt(this, e);
+    }
+
+    public void replaceChild(Expression oldChild, Expression newChild) {
+        if (obj == oldChild)
+            obj = newChild;
+        if (e == oldChild)
+            e = newChild;
+    }
+
+    public <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitSetProp(this);
+    }
+
+    public Value evaluate(Environment env) {
+        Value o = obj.evaluate(env);
+        return cache.set(o, e.evaluate(env));
+    }
+}
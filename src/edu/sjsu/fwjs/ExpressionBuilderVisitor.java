@@ -1,5 +1,6 @@
 package edu.sjsu.fwjs;
 
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -10,12 +11,13 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
     @Override
     public Expression visitProg(FeatherweightJavaScriptParser.ProgContext ctx) {
         List<Expression> stmts = new ArrayList<Expression>();
-        for (int i = 0; i < ctx.stat().size(); i++) {
-            Expression exp = visit(ctx.stat(i));
+        // ctx.stat() makes a new list each time it is called
+        for (FeatherweightJavaScriptParser.StatContext stat : ctx.stat()) {
+            Expression exp = visit(stat);
             if (exp != null)
                 stmts.add(exp);
         }
-        return listToSeqExp(stmts);
+        return listToBlock(stmts);
     }
 
     @Override
@@ -40,8 +42,8 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
 
     @Override
     public Expression visitInt(FeatherweightJavaScriptParser.IntContext ctx) {
-        int val = Integer.valueOf(ctx.INT().getText());
-        return new ValueExpr(new IntVal(val));
+        // literals too large for an int are BigIntVals
+        return new ValueExpr(BigIntVal.of(new BigInteger(ctx.INT().getText())));
     }
 
     @Override
@@ -56,21 +58,19 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
             Expression exp = visit(ctx.getChild(i));
             stmts.add(exp);
         }
-        return listToSeqExp(stmts);
+        return listToBlock(stmts);
     }
 
     /**
-     * Converts a list of expressions to one sequence expression,
+     * Converts a list of expressions to one block expression,
      * if the list contained more than one expression.
      */
-    private Expression listToSeqExp(List<Expression> stmts) {
+    private Expression listToBlock(List<Expression> stmts) {
         if (stmts.isEmpty())
             return null;
-        Expression exp = stmts.get(0);
-        for (int i = 1; i < stmts.size(); i++) {
-            exp = new SeqExpr(exp, stmts.get(i));
-        }
-        return exp;
+        if (stmts.size() == 1)
+            return stmts.get(0);
+        return new BlockExpr(stmts.toArray(new Expression[0]));
     }
 
     @Override
@@ -98,13 +98,14 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
             Expression exp = visit(ctx.getChild(i));
             stmts.add(exp);
         }
-        return listToSeqExp(stmts);
+        return listToBlock(stmts);
     }
 
     @Override
     public Expression visitAssign(FeatherweightJavaScriptParser.AssignContext ctx) {
         String varName = ctx.ID().getText();
         Expression expr = visit(ctx.expr());
+        nameFunction(expr, varName);
         return new AssignExpr(varName, expr);
     }
 
@@ -115,9 +116,18 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
         if (ctx.expr() != null) {
             expr = visit(ctx.expr());
         }
+        nameFunction(expr, varName);
         return new VarDeclExpr(varName, expr);
     }
 
+    /**
+     * Names a function after the variable it is first bound to.
+     */
+    private void nameFunction(Expression expr, String varName) {
+        if (expr instanceof FunctionDeclExpr && ((FunctionDeclExpr) expr).name == null)
+            ((FunctionDeclExpr) expr).name = varName;
+    }
+
     @Override
     public Expression visitCompare(FeatherweightJavaScriptParser.CompareContext ctx) {
         Expression left = visit(ctx.expr(0));
@@ -154,6 +164,30 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
         return new FunctionAppExpr(function, args);
     }
 
+    @Override
+    public Expression visitIndex(FeatherweightJavaScriptParser.IndexContext ctx) {
+        Expression array = visit(ctx.expr(0));
+        return new IndexExpr(array, visit(ctx.expr(1)));
+    }
+
+    @Override
+    public Expression visitGetProp(FeatherweightJavaScriptParser.GetPropContext ctx) {
+        return new GetPropExpr(visit(ctx.expr()), ctx.ID().getText());
+    }
+
+    @Override
+    public Expression visitSetProp(FeatherweightJavaScriptParser.SetPropContext ctx) {
+        Expression obj = visit(ctx.expr(0));
+        return new SetPropExpr(obj, ctx.ID().getText(), visit(ctx.expr(1)));
+    }
+
+    @Override
+    public Expression visitIndexAssign(FeatherweightJavaScriptParser.IndexAssignContext ctx) {
+        Expression array = visit(ctx.expr(0));
+        Expression index = visit(ctx.expr(1));
+        return new IndexAssignExpr(array, index, visit(ctx.expr(2)));
+    }
+
     @Override
     public Expression visitFunc(FeatherweightJavaScriptParser.FuncContext ctx) {
         List<String> params = new ArrayList<>();
@@ -163,18 +197,70 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
             }
         }
         Expression body = visit(ctx.block());
-        return new FunctionDeclExpr(params, body);
+        markTailCalls(body);
+        FunctionDeclExpr decl = new FunctionDeclExpr(params, body);
+        decl.line = ctx.getStart().getLine();
+        decl.column = ctx.getStart().getCharPositionInLine() + 1;
+        return decl;
+    }
+
+    /**
+     * Marks the calls whose value is the value of a function body:
+     * the last expression of a sequence, or a branch of an if,
+     * when the sequence or if is itself in tail position.
+     */
+    private void markTailCalls(Expression body) {
+        Expression e = body;
+        while (true) {
+            if (e instanceof BlockExpr) {
+                Expression[] stmts = ((BlockExpr) e).stmts;
+                e = stmts[stmts.length - 1];
+            } else if (e instanceof SeqExpr) {
+                e = ((SeqExpr) e).e2;
+            } else if (e instanceof IfExpr) {
+                markTailCalls(((IfExpr) e).els);
+                e = ((IfExpr) e).thn;
+            } else {
+                if (e instanceof FunctionAppExpr)
+                    ((FunctionAppExpr) e).tail = true;
+                return;
+            }
+        }
     }
 
     @Override
     public Expression visitBool(FeatherweightJavaScriptParser.BoolContext ctx) {
         boolean val = Boolean.valueOf(ctx.BOOL().getText());
-        return new ValueExpr(new BoolVal(val));
+        return new ValueExpr(BoolVal.of(val));
     }
 
     @Override
     public Expression visitNull(FeatherweightJavaScriptParser.NullContext ctx) {
-        return new ValueExpr(new NullVal());
+        return new ValueExpr(NullVal.NULL);
+    }
+
+    @Override
+    public Expression visitObject(FeatherweightJavaScriptParser.ObjectContext ctx) {
+        List<String> keys = new ArrayList<>();
+        List<Expression> values = new ArrayList<>();
+        if (ctx.propList() != null) {
+            for (FeatherweightJavaScriptParser.PropContext prop : ctx.propList().prop()) {
+                keys.add(prop.ID().getText());
+                values.add(visit(prop.expr()));
+            }
+        }
+        return new ObjectExpr(keys, values);
+    }
+
+    @Override
+    public Expression visitArray(FeatherweightJavaScriptParser.ArrayContext ctx) {
+        List<Expression> elements = new ArrayList<>();
+        if (ctx.argList() != null) {
+            for (int i = 0; i < ctx.argList().expr().size(); i++) {
+                elements.add(visit(ctx.argList().expr(i)));
+            }
+        }
+        return new ArrayExpr(elements);
     }
 
     @Override
@@ -193,7 +279,7 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
                 stmts.add(exp);
             }
         }
-        return listToSeqExp(stmts);
+        return listToBlock(stmts);
     }
 
     private Op mapOperator(String opStr) {
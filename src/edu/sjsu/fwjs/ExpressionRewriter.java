@@ -0,0 +1,157 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A visitor that rewrites an expression tree bottom-up.
+ * Each visit method rewrites the children of a node in place, and
+ * returns the node that should take its place (by default, itself).
+ * Passes override the methods of the nodes they rewrite.
+ */
+class ExpressionRewriter implements ExpressionVisitor<Expression> {
+
+    Expression rewrite(Expression e) {
+        return (e == null) ? null : e.accept(this);
+    }
+
+    public Expression visitValue(ValueExpr e) {
+        return e;
+    }
+
+    public Expression visitVar(VarExpr e) {
+        return e;
+    }
+
+    public Expression visitPrint(PrintExpr e) {
+        e.exp = ParentExpr.adopt(e, rewrite(e.exp));
+        return e;
+    }
+
+    // the operands of a BinOpExpr are final, so it is rebuilt instead
+    public Expression visitBinOp(BinOpExpr e) {
+        Expression e1 = rewrite(e.e1);
+        Expression e2 = rewrite(e.e2);
+        if (e1 == e.e1 && e2 == e.e2)
+            return e;
+        return new BinOpExpr(e.op, e1, e2);
+    }
+
+    public Expression visitIf(IfExpr e) {
+        e.cond = ParentExpr.adopt(e, rewrite(e.cond));
+        e.thn = ParentExpr.adopt(e, rewrite(e.thn));
+        e.els = ParentExpr.adopt(e, rewrite(e.els));
+        return e;
+    }
+
+    public Expression visitWhile(WhileExpr e) {
+        e.cond = ParentExpr.adopt(e, rewrite(e.cond));
+        e.body = ParentExpr.adopt(e, rewrite(e.body));
+        return e;
+    }
+
+    /**
+     * Rewrites each statement of the chain of SeqExprs this is the head
+     * of, and replaces the chain with a block of the result of statements().
+     */
+    public Expression visitSeq(SeqExpr e) {
+        List<Expression> stmts = new ArrayList<Expression>();
+        Expression first = e;
+        while (first instanceof SeqExpr) {
+            stmts.add(((SeqExpr) first).e2);
+            first = ((SeqExpr) first).e1;
+        }
+        stmts.add(first);
+        List<Expression> rewritten = new ArrayList<Expression>(stmts.size());
+        for (int i = stmts.size() - 1; i >= 0; i--)
+            rewritten.add(rewrite(stmts.get(i)));
+        return block(statements(rewritten));
+    }
+
+    /**
+     * Rewrites each statement of a block, and rebuilds it from the result
+     * of statements().
+     */
+    public Expression visitBlock(BlockExpr e) {
+        List<Expression> rewritten = new ArrayList<Expression>(e.stmts.length);
+        for (Expression stmt : e.stmts)
+            rewritten.add(rewrite(stmt));
+        return block(statements(rewritten));
+    }
+
+    private static Expression block(List<Expression> stmts) {
+        if (stmts.size() == 1)
+            return stmts.get(0);
+        return new BlockExpr(stmts.toArray(new Expression[0]));
+    }
+
+    /**
+     * Returns the statements of a rewritten sequence.
+     * The last statement gives the value of the sequence, and must stay.
+     */
+    List<Expression> statements(List<Expression> stmts) {
+        return stmts;
+    }
+
+    public Expression visitVarDecl(VarDeclExpr e) {
+        e.exp = ParentExpr.adopt(e, rewrite(e.exp));
+        return e;
+    }
+
+    public Expression visitAssign(AssignExpr e) {
+        e.e = ParentExpr.adopt(e, rewrite(e.e));
+        return e;
+    }
+
+    public Expression visitFunctionDecl(FunctionDeclExpr e) {
+        e.body = ParentExpr.adopt(e, rewrite(e.body));
+        return e;
+    }
+
+    public Expression visitFunctionApp(FunctionAppExpr e) {
+        e.f = ParentExpr.adopt(e, rewrite(e.f));
+        for (int i = 0; i < e.args.size(); i++)
+            e.args.set(i, ParentExpr.adopt(e, rewrite(e.args.get(i))));
+        return e;
+    }
+
+    public Expression visitArray(ArrayExpr e) {
+        for (int i = 0; i < e.elements.size(); i++)
+            e.elements.set(i, ParentExpr.adopt(e, rewrite(e.elements.get(i))));
+        return e;
+    }
+
+    public Expression visitIndex(IndexExpr e) {
+        e.array = ParentExpr.adopt(e, rewrite(e.array));
+        e.index = ParentExpr.adopt(e, rewrite(e.index));
+        return e;
+    }
+
+    public Expression visitIndexAssign(IndexAssignExpr e) {
+        e.array = ParentExpr.adopt(e, rewrite(e.array));
+        e.index = ParentExpr.adopt(e, rewrite(e.index));
+        e.e = ParentExpr.adopt(e, rewrite(e.e));
+        return e;
+    }
+
+    public Expression visitObject(ObjectExpr e) {
+        for (int i = 0; i < e.values.size(); i++)
+            e.values.set(i, ParentExpr.adopt(e, rewrite(e.values.get(i))));
+        return e;
+    }
+
+    public Expression visitGetProp(GetPropExpr e) {
+        e.obj = ParentExpr.adopt(e, rewrite(e.obj));
+        return e;
+    }
+
+    public Expression visitSetProp(SetPropExpr e) {
+        e.obj = ParentExpr.adopt(e, rewrite(e.obj));
+        e.e = ParentExpr.adopt(e, rewrite(e.e));
+        return e;
+    }
+
+    public Expression visitOpaque(OpaqueBody e) {
+        return e;
+    }
+}
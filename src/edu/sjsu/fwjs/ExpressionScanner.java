@@ -0,0 +1,135 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A visitor that walks every node of an expression tree.
+ * Passes override the methods of the nodes they care about and
+ * call the super method to continue into the children.
+ */
+class ExpressionScanner implements ExpressionVisitor<Void> {
+
+    /**
+     * Visits a possibly missing child (e.g. the else branch of an if).
+     */
+    void scan(Expression e) {
+        if (e != null)
+            e.accept(this);
+    }
+
+    public Void visitValue(ValueExpr e) {
+        return null;
+    }
+
+    public Void visitVar(VarExpr e) {
+        return null;
+    }
+
+    public Void visitPrint(PrintExpr e) {
+        scan(e.exp);
+        return null;
+    }
+
+    public Void visitBinOp(BinOpExpr e) {
+        scan(e.e1);
+        scan(e.e2);
+        return null;
+    }
+
+    public Void visitIf(IfExpr e) {
+        scan(e.cond);
+        scan(e.thn);
+        scan(e.els);
+        return null;
+    }
+
+    public Void visitWhile(WhileExpr e) {
+        scan(e.cond);
+        scan(e.body);
+        return null;
+    }
+
+    public Void visitSeq(SeqExpr e) {
+        // Blocks are left-nested chains of SeqExprs, which can be
+        // very long, so walk down the chain instead of recursing.
+        List<Expression> seconds = new ArrayList<Expression>();
+        Expression first = e;
+        while (first instanceof SeqExpr) {
+            seconds.add(((SeqExpr) first).e2);
+            first = ((SeqExpr) first).e1;
+        }
+        scan(first);
+        for (int i = seconds.size() - 1; i >= 0; i--)
+            scan(seconds.get(i));
+        return null;
+    }
+
+    public Void visitBlock(BlockExpr e) {
+        for (Expression stmt : e.stmts)
+            scan(stmt);
+        return null;
+    }
+
+    public Void visitVarDecl(VarDeclExpr e) {
+        scan(e.exp);
+        return null;
+    }
+
+    public Void visitAssign(AssignExpr e) {
+        scan(e.e);
+        return null;
+    }
+
+    public Void visitFunctionDecl(FunctionDeclExpr e) {
+        scan(e.body);
+        return null;
+    }
+
+    public Void visitFunctionApp(FunctionAppExpr e) {
+        scan(e.f);
+        for (Expression arg : e.args)
+            scan(arg);
+        return null;
+    }
+
+    public Void visitArray(ArrayExpr e) {
+        for (Expression element : e.elements)
+            scan(element);
+        return null;
+    }
+
+    public Void visitIndex(IndexExpr e) {
+        scan(e.array);
+        scan(e.index);
+        return null;
+    }
+
+    public Void visitIndexAssign(IndexAssignExpr e) {
+        scan(e.array);
+        scan(e.index);
+        scan(e.e);
+        return null;
+    }
+
+    public Void visitObject(ObjectExpr e) {
+        for (Expression value : e.values)
+            scan(value);
+        return null;
+    }
+
+    public Void visitGetProp(GetPropExpr e) {
+        scan(e.obj);
+        return null;
+    }
+
+    public Void visitSetProp(SetPropExpr e) {
+        scan(e.obj);
+        scan(e.e);
+        return null;
+    }
+
+    public Void visitOpaque(OpaqueBody e) {
+        return null;
+    }
+}
@@ -0,0 +1,28 @@
+package edu.sjsu.fwjs;
+
+/**
+ * Visitor over the FWJS expression tree.
+ * Used by the passes that analyze or rewrite a program after it
+ * has been built by the {@link ExpressionBuilderVisitor}.
+ */
+interface ExpressionVisitor<R> {
+    R visitValue(ValueExpr e);
+    R visitVar(VarExpr e);
+    R visitPrint(PrintExpr e);
+    R visitBinOp(BinOpExpr e);
+    R visitIf(IfExpr e);
+    R visitWhile(WhileExpr e);
+    R visitSeq(SeqExpr e);
+    R visitBlock(BlockExpr e);
+    R visitVarDecl(VarDeclExpr e);
+    R visitAssign(AssignExpr e);
+    R visitFunctionDecl(FunctionDeclExpr e);
+    R visitFunctionApp(FunctionAppExpr e);
+    R visitArray(ArrayExpr e);
+    R visitIndex(IndexExpr e);
+    R visitIndexAssign(IndexAssignExpr e);
+    R visitObject(ObjectExpr e);
+    R visitGetProp(GetPropExpr e);
+    R visitSetProp(SetPropExpr e);
+    R visitOpaque(OpaqueBody e);
+}
@@ -0,0 +1,29 @@
+package edu.sjsu.fwjs;
+
+/**
+ * The static shape of a function's local frame, computed by the
+ * {@link ScopeResolver}. Parameters and <code>var</code> declarations
+ * of a function body each own one slot of the frame.
+ */
+class FrameLayout {
+    /** Slot names, in slot order. Shared by every frame with this layout. */
+    final String[] slotNames;
+    /** Slot of each parameter, in parameter order. */
+    final int[] paramSlots;
+    /**
+     * Whether a frame may outlive its call.  It may if the function body
+     * declares a function, whose closures keep the frame as their outer
+     * environment.  Frames that cannot are taken from the FrameStack.
+     */
+    final boolean escapes;
+
+    FrameLayout(String[] slotNames, int[] paramSlots, boolean escapes) {
+        this.slotNames = slotNames;
+        this.paramSlots = paramSlots;
+        this.escapes = escapes;
+    }
+
+    int size() {
+        return slotNames.length;
+    }
+}
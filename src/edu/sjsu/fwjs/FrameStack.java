@@ -0,0 +1,73 @@
+package edu.sjsu.fwjs;
+
+import java.util.Arrays;
+
+/**
+ * The local frames of the calls in progress on a thread, for functions
+ * whose frames cannot escape the call (see FrameLayout.escapes).
+ *
+ * Such a frame is only reachable from its own call, so it can be taken
+ * from this stack when the call starts and given back when it returns,
+ * and the Environment objects are reused by the calls that follow
+ * instead of being allocated for each one.  Calls return in the reverse
+ * order they start, so a stack is all the bookkeeping this needs.
+ */
+final class FrameStack {
+    private static final ThreadLocal<FrameStack> CURRENT = ThreadLocal.withInitial(FrameStack::new);
+
+    private Environment[] frames = new Environment[16];
+    private int top;
+
+    /**
+     * The frame stack of the current thread.
+     */
+    static FrameStack current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Takes a frame with the given layout, all of its slots undeclared.
+     */
+    Environment push(Environment outerEnv, FrameLayout layout) {
+        if (top == frames.length)
+            frames = Arrays.copyOf(frames, top * 2);
+        Environment e = frames[top];
+        if (e == null)
+            frames[top] = e = new Environment(8);
+        e.reset(outerEnv, layout);
+        top++;
+        return e;
+    }
+
+    /**
+     * Gives back the frame taken last.
+     */
+    void pop() {
+        frames[--top].clear();
+    }
+
+    /**
+     * Gives back env if it is the frame taken last, and was taken after
+     * the stack was at the given mark.  Returns whether it was.
+     */
+    boolean release(Environment env, int mark) {
+        if (top > mark && frames[top - 1] == env) {
+            pop();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The number of frames taken, for giving back all the frames taken
+     * since with reset (e.g. once an error has unwound the calls).
+     */
+    int mark() {
+        return top;
+    }
+
+    void reset(int mark) {
+        while (top > mark)
+            pop();
+    }
+}
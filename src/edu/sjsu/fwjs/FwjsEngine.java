@@ -0,0 +1,239 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.antlr.v4.runtime.CharStreams;
+
+/**
+ * The API for running FWJS from Java.
+ *
+ * <pre>
+ *   FwjsEngine engine = new FwjsEngine();
+ *   FwjsScript rule = engine.compile("if (total > limit) 1; else 0;");
+ *   Object result = engine.execute(rule, Map.of("total", 120, "limit", 100));
+ * </pre>
+ *
+ * Scripts are compiled once for the bytecode VM, and can then be run
+ * any number of times, from any number of threads.  The VM is slower
+ * than the tree-walker (see Vm), but a script cannot overflow the
+ * stack of the thread that runs it, however deep it recurses.  Each run
+ * gets its own global environment, with the host's bindings as global
+ * variables.  The runs of a script share only its property caches and
+ * memo stats (see FwjsScript).
+ *
+ * Host values are converted to FWJS values as follows: Integer (and
+ * the smaller integer types), Long and BigInteger to numbers, Boolean
+ * to booleans, and Java null to null.  FWJS values (e.g. a closure returned by an earlier
+ * run) are passed through.  Results are converted back the same way,
+ * numbers too large for an Integer to BigInteger.
+ *
+ * A run can be held to ResourceLimits, for scripts that are not trusted
+ * to finish: it throws ResourceLimitExceeded when it goes over one.
+ *
+ * An engine made with a memo size memoizes the pure functions of the
+ * scripts it compiles (see FwjsScript.getMemoStats).  Results are
+ * remembered for the length of a run.
+ *
+ * Scripts that start with the same prelude can share one run of it:
+ *
+ * <pre>
+ *   Environment lib = engine.prelude(engine.compile(librarySource), Map.of());
+ *   Object result = engine.execute(rule, lib, Map.of("total", 120), out, limits);
+ * </pre>
+ *
+ * and a process can start from the globals another left, saved to a
+ * heap image (see HeapImage), instead of running the prelude itself:
+ *
+ * <pre>
+ *   engine.saveImage(librarySource, Map.of(), path);
+ *   Environment lib = engine.loadImage(path);
+ * </pre>
+ *
+ * An engine has no state of its own, so it is thread safe as well.
+ */
+public final class FwjsEngine {
+    private final boolean optimize;
+    private final int memoSize;
+
+    public FwjsEngine() {
+        this(true);
+    }
+
+    /**
+     * An engine that skips the Optimizer passes if optimize is false.
+     */
+    public FwjsEngine(boolean optimize) {
+        this(optimize, 0);
+    }
+
+    /**
+     * An engine whose closures of pure functions remember the results of
+     * up to memoSize calls each (none if memoSize is 0).
+     */
+    public FwjsEngine(boolean optimize, int memoSize) {
+        if (memoSize < 0)
+            throw new IllegalArgumentException("Negative memo size: " + memoSize);
+        this.optimize = optimize;
+        this.memoSize = memoSize;
+    }
+
+    /**
+     * Compiles a program.  Syntax errors are reported to System.err,
+     * the same as for Interpreter.
+     */
+    public FwjsScript compile(String source) {
+        Expression prog = Interpreter.parse(CharStreams.fromString(source),
+                optimize ? Optimizer.standard() : null);
+        List<MemoStats> memos = (memoSize > 0) ? PurityAnalysis.memoize(prog, memoSize)
+                : Collections.<MemoStats>emptyList();
+        return new FwjsScript(VmCompiler.compile(prog), memos);
+    }
+
+    /**
+     * Runs a script with no bindings, printing to System.out.
+     */
+    public Object execute(FwjsScript script) {
+        return execute(script, Collections.<String,Object>emptyMap());
+    }
+
+    /**
+     * Runs a script with the given global bindings, printing to System.out.
+     * Returns the value of the last statement of the script.
+     */
+    public Object execute(FwjsScript script, Map<String,?> bindings) {
+        return execute(script, bindings, (PrintStream) null);
+    }
+
+    /**
+     * Runs a script with the given global bindings, printing to out
+     * (or System.out if out is null).
+     * Returns the value of the last statement of the script.
+     */
+    public Object execute(FwjsScript script, Map<String,?> bindings, PrintStream out) {
+        return execute(script, bindings, out, ResourceLimits.NONE);
+    }
+
+    /**
+     * Runs a script as above, within the given limits.
+     * Throws ResourceLimitExceeded if the script goes over one of them.
+     */
+    public Object execute(FwjsScript script, Map<String,?> bindings, PrintStream out,
+            ResourceLimits limits) {
+        return execute(script, bindings, (out == null) ? null : Output.of(out), limits);
+    }
+
+    /**
+     * Runs a script as above, printing to an Output (or System.out if out
+     * is null).  The output is flushed at the end of the run, but not
+     * closed, so it can be used for more runs.
+     */
+    public Object execute(FwjsScript script, Map<String,?> bindings, Output out,
+            ResourceLimits limits) {
+        Environment env = new Environment(out, limits.newBudget());
+        for (Map.Entry<String,?> binding : bindings.entrySet())
+            env.createVar(binding.getKey(), toValue(binding.getValue()));
+        return run(script, env);
+    }
+
+    /**
+     * Runs a prelude (e.g. a library of functions) with the given global
+     * bindings, printing to System.out, and returns a snapshot of the
+     * globals it leaves.  Running other scripts against the snapshot
+     * (see below) then costs nothing for the prelude.  The functions of
+     * the prelude memoize calls only while it runs, as the scripts may
+     * assign the globals they call.
+     */
+    public Environment prelude(FwjsScript script, Map<String,?> bindings) {
+        Environment env = new Environment((Output) null);
+        for (Map.Entry<String,?> binding : bindings.entrySet())
+            env.createVar(binding.getKey(), toValue(binding.getValue()));
+        run(script, env);
+        return env.snapshot(false);
+    }
+
+    /**
+     * Runs a prelude as above, and saves the globals it leaves to a heap
+     * image.  Throws IllegalArgumentException if they hold what an image
+     * cannot, e.g. a task.
+     */
+    public void saveImage(String preludeSource, Map<String,?> bindings, Path file) throws IOException {
+        Expression prog = Interpreter.parse(CharStreams.fromString(preludeSource),
+                optimize ? Optimizer.standard() : null);
+        if (memoSize > 0)
+            PurityAnalysis.memoize(prog, memoSize);
+        Environment env = new Environment((Output) null);
+        for (Map.Entry<String,?> binding : bindings.entrySet())
+            env.createVar(binding.getKey(), toValue(binding.getValue()));
+        run(new FwjsScript(VmCompiler.compile(prog), Collections.<MemoStats>emptyList()), env);
+        HeapImage.save(file, prog, env);
+    }
+
+    /**
+     * Restores the globals of a heap image, and returns a snapshot of
+     * them, which scripts are run against as against a prelude.
+     * Throws IllegalArgumentException if the file is not a heap image
+     * of this version.
+     */
+    public Environment loadImage(Path file) throws IOException {
+        Environment env = new Environment((Output) null);
+        HeapImage.load(file).restore(env, true);
+        return env.snapshot();
+    }
+
+    /**
+     * Runs a script as above, with globals that start out as those of
+     * the prelude snapshot.  Each run gets a fork of the snapshot, so
+     * what a run does is not seen by other runs, and the snapshot can
+     * be used by any number of runs at once.  Bindings replace the
+     * globals of the same name.
+     */
+    public Object execute(FwjsScript script, Environment prelude, Map<String,?> bindings,
+            Output out, ResourceLimits limits) {
+        Environment env = prelude.fork(out, limits.newBudget());
+        for (Map.Entry<String,?> binding : bindings.entrySet())
+            env.updateVar(binding.getKey(), toValue(binding.getValue()));
+        return run(script, env);
+    }
+
+    private static Object run(FwjsScript script, Environment env) {
+        try {
+            return toJava(new Vm().execute(script.program, env));
+        } finally {
+            env.out().flush();
+        }
+    }
+
+    static Value toValue(Object o) {
+        if (o == null)
+            return NullVal.NULL;
+        if (o instanceof Value)
+            return (Value) o;
+        if (o instanceof Integer || o instanceof Short || o instanceof Byte)
+            return IntVal.of(((Number) o).intValue());
+        if (o instanceof Long)
+            return BigIntVal.of((Long) o);
+        if (o instanceof BigInteger)
+            return BigIntVal.of((BigInteger) o);
+        if (o instanceof Boolean)
+            return BoolVal.of((Boolean) o);
+        throw new IllegalArgumentException("No FWJS value for " + o.getClass().getName());
+    }
+
+    static Object toJava(Value v) {
+        if (v instanceof IntVal)
+            return ((IntVal) v).toInt();
+        if (v instanceof BigIntVal)
+            return ((BigIntVal) v).toBigInteger();
+        if (v instanceof BoolVal)
+            return ((BoolVal) v).toBoolean();
+        if (v instanceof NullVal)
+            return null;
+        return v;
+    }
+}
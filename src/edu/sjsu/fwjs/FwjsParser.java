@@ -0,0 +1,69 @@
+package edu.sjsu.fwjs;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import edu.sjsu.fwjs.parser.FeatherweightJavaScriptLexer;
+import edu.sjsu.fwjs.parser.FeatherweightJavaScriptParser;
+
+/**
+ * Parses FWJS source to parse trees, reusing one lexer and parser.
+ *
+ * Parsing is done in two stages.  The first uses SLL prediction, which
+ * is much faster, and gives up at the first syntax error.  Only if it
+ * fails is the input parsed again with full LL prediction and the usual
+ * error reporting and recovery, so the result for any input is the
+ * same as parsing it in LL mode.
+ *
+ * The DFA caches of ANTLR are shared by all parsers of the grammar, so
+ * they stay warm for the life of the JVM.  A FwjsParser is not thread
+ * safe; use forThread() for the parser of the current thread.
+ */
+class FwjsParser {
+    private static final ThreadLocal<FwjsParser> PARSERS =
+            ThreadLocal.withInitial(FwjsParser::new);
+
+    private final FeatherweightJavaScriptLexer lexer =
+            new FeatherweightJavaScriptLexer(CharStreams.fromString(""));
+    private final FeatherweightJavaScriptParser parser =
+            new FeatherweightJavaScriptParser(new CommonTokenStream(lexer));
+    private int llParses;
+
+    static FwjsParser forThread() {
+        return PARSERS.get();
+    }
+
+    /**
+     * Parses a whole program.
+     */
+    ParseTree parse(CharStream stream) {
+        lexer.setInputStream(stream);
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+        parser.setTokenStream(tokens);
+
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.setErrorHandler(new BailErrorStrategy());
+        parser.removeErrorListeners();
+        try {
+            return parser.prog();
+        } catch (ParseCancellationException e) {
+            // a syntax error, or an input that needs full LL
+            llParses++;
+            tokens.seek(0);
+            parser.reset();
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+            return parser.prog();
+        }
+    }
+
+    /**
+     * The number of parses that needed the second, LL stage.
+     */
+    int llParses() {
+        return llParses;
+    }
+}
@@ -0,0 +1,38 @@
+package edu.sjsu.fwjs;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A compiled FWJS program, made by FwjsEngine.compile.
+ *
+ * A script holds the code of the bytecode VM, which is not changed
+ * after compilation.  All the state of a run (frames, closures, the
+ * value stack) belongs to that run, so one script can be executed by
+ * any number of threads at once.  Two things are shared by the runs,
+ * and safe to update from all of them: the inline caches of property
+ * accesses (see PropertyCache), which every run writes, and the memo
+ * stats.
+ */
+public final class FwjsScript {
+    final VmFunction program;
+    private final List<MemoStats> memos;
+
+    FwjsScript(VmFunction program, List<MemoStats> memos) {
+        this.program = program;
+        this.memos = Collections.unmodifiableList(memos);
+    }
+
+    /**
+     * The stats of each function the script memoizes, over all its runs.
+     * Empty unless the engine was made with a memo size.
+     */
+    public List<MemoStats> getMemoStats() {
+        return memos;
+    }
+
+    @Override
+    public String toString() {
+        return VmDisassembler.disassemble(program);
+    }
+}
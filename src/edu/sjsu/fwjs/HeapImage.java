@@ -0,0 +1,590 @@
+package edu.sjsu.fwjs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * An image of the globals a program leaves, which later runs can start
+ * from instead of running the program again, as V8 starts from a heap
+ * snapshot of its startup code.
+ *
+ * The image holds the globals and everything they reach: closures, the
+ * frames they captured, arrays and objects.  Each is written once, and
+ * referred to by its number, so that a frame shared by two closures, or
+ * an array held by two variables, is still one frame or array once
+ * restored, and cycles are kept.  The code of the closures is the tree
+ * of the outermost functions they were made from, in the AstCache
+ * encoding, resolved again when the image is loaded; a closure refers
+ * to its function by the number a scan of the program gives it.  The
+ * rest of the program is not kept, and neither is which functions it
+ * memoized: the program that restores the image may assign the globals
+ * they call, so their closures are restored without memos.
+ *
+ * The file has this format:
+ *
+ * <pre>
+ *   magic "FWJI", int VERSION, int CRC32 of the rest,
+ *   varint string count, strings (varint length, UTF-8 bytes),
+ *   varint code count, and for each outermost function its number,
+ *     varint function count, varint length, and its AstCache entry,
+ *   varint object count, and for each object its kind and what it is
+ *     made of: a frame's outer frame and slot names, a closure's
+ *     function and outer frame,
+ *   the contents of the objects: each frame's slot values, each
+ *     array's length and elements, each object's property count,
+ *     names and values,
+ *   varint global count, and each global's name and value
+ * </pre>
+ *
+ * Names are indexes into the string table.  Objects are numbered from
+ * 1, and 0 is the global environment.  A frame comes after the one
+ * around it, and a closure after its frame, so that objects can be made
+ * in order, and filled in once they all exist.
+ *
+ * Images are read through a memory mapping.  One of another version,
+ * or whose checksum does not match, is refused.  Closures are restored
+ * for the tree-walker or for the bytecode VM; the built-ins they refer
+ * to are those of the interpreter that restores them.
+ */
+final class HeapImage {
+    /**
+     * Must change whenever the format changes.  The code of the image
+     * carries the AstCache VERSION as well.
+     */
+    static final int VERSION = 2;
+    private static final int MAGIC = 0x46574A49; // "FWJI"
+
+    private static final byte FRAME = 1;
+    private static final byte CLOSURE = 2;
+    private static final byte ARRAY = 3;
+    private static final byte OBJECT = 4;
+
+    private static final byte UNDECLARED = 0;
+    private static final byte INT = 1;
+    private static final byte BIGINT = 2;
+    private static final byte TRUE = 3;
+    private static final byte FALSE = 4;
+    private static final byte NULL = 5;
+    private static final byte REF = 6;
+    private static final byte BUILTIN = 7;
+
+    private final String[] strings;
+    // the outermost functions, and all functions by number
+    private final List<FunctionDeclExpr> code = new ArrayList<FunctionDeclExpr>();
+    private final Map<Integer,FunctionDeclExpr> functions = new HashMap<Integer,FunctionDeclExpr>();
+    // the objects and globals, which each restore decodes again
+    private final ByteBuffer heap;
+    private Map<FrameLayout,VmFunction> vmFunctions;
+
+    /**
+     * Saves an image of the globals of env, which a run of prog (a
+     * resolved program) left.  Throws IllegalArgumentException if they
+     * reach what an image cannot hold: a task, or a closure of another
+     * program or of another global environment.
+     */
+    static void save(Path file, Expression prog, Environment env) throws IOException {
+        Files.write(file, new Writer(prog, env).write());
+    }
+
+    /**
+     * Loads an image, ready to be restored.
+     * Throws IllegalArgumentException if the file is not a valid image
+     * of this version.
+     */
+    static HeapImage load(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return new HeapImage(buf);
+        }
+    }
+
+    private HeapImage(ByteBuffer buf) {
+        try {
+            if (buf.remaining() < 12 || buf.getInt() != MAGIC || buf.getInt() != VERSION)
+                throw new IllegalArgumentException("not a heap image of this version");
+            int expected = buf.getInt();
+            CRC32 crc = new CRC32();
+            crc.update(buf.duplicate());
+            if ((int) crc.getValue() != expected)
+                throw new IllegalArgumentException("corrupt heap image");
+
+            strings = new String[count(buf)];
+            byte[] utf8 = new byte[64];
+            for (int i = 0; i < strings.length; i++) {
+                int length = count(buf);
+                if (length > utf8.length)
+                    utf8 = new byte[length];
+                buf.get(utf8, 0, length);
+                strings[i] = new String(utf8, 0, length, StandardCharsets.UTF_8);
+            }
+            int n = count(buf);
+            for (int i = 0; i < n; i++) {
+                int first = varint(buf);
+                int count = count(buf);
+                int length = count(buf);
+                Expression fn = ScopeResolver.resolve(AstCache.decode(buf.slice(buf.position(), length)));
+                buf.position(buf.position() + length);
+                FunctionScanner scanner = new FunctionScanner();
+                scanner.scan(fn);
+                if (!(fn instanceof FunctionDeclExpr) || scanner.functions.size() != count)
+                    throw new IllegalArgumentException("corrupt heap image");
+                code.add((FunctionDeclExpr) fn);
+                for (int j = 0; j < count; j++)
+                    functions.put(first + j, scanner.functions.get(j));
+            }
+            heap = buf.slice();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("truncated heap image");
+        }
+    }
+
+    /**
+     * Declares the globals of the image in env, a global environment,
+     * with closures for the bytecode VM if vm is true, and for the
+     * tree-walker if not.  Each restore makes objects of its own.
+     */
+    void restore(Environment env, boolean vm) {
+        Map<FrameLayout,VmFunction> fns = vm ? vmFunctions() : null;
+        ByteBuffer in = heap.duplicate();
+        try {
+            Object[] objects = new Object[count(in) + 1];
+            objects[0] = env;
+            for (int id = 1; id < objects.length; id++) {
+                switch (in.get()) {
+                    case FRAME: {
+                        Environment outer = frame(objects, varint(in), id);
+                        String[] names = new String[count(in)];
+                        for (int i = 0; i < names.length; i++)
+                            names[i] = string(in);
+                        objects[id] = new Environment(outer, names);
+                        break;
+                    }
+                    case CLOSURE: {
+                        FunctionDeclExpr decl = functions.get(varint(in));
+                        if (decl == null)
+                            throw new IllegalArgumentException("corrupt heap image");
+                        objects[id] = closure(decl, frame(objects, varint(in), id), fns);
+                        break;
+                    }
+                    case ARRAY:
+                        objects[id] = ArrayVal.of(new Value[0], env);
+                        break;
+                    case OBJECT:
+                        objects[id] = new ObjectVal(env);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("corrupt heap image");
+                }
+            }
+            for (int id = 1; id < objects.length; id++) {
+                Object o = objects[id];
+                if (o instanceof Environment) {
+                    Environment frame = (Environment) o;
+                    for (int i = 0; i < frame.slotCount(); i++) {
+                        Value v = value(in, objects);
+                        if (v != null)
+                            frame.declareSlot(i, v);
+                    }
+                } else if (o instanceof ArrayVal) {
+                    ArrayVal a = (ArrayVal) o;
+                    int n = count(in);
+                    for (int i = 0; i < n; i++)
+                        a.set(i, declared(value(in, objects)));
+                } else if (o instanceof ObjectVal) {
+                    ObjectVal obj = (ObjectVal) o;
+                    int n = count(in);
+                    for (int i = 0; i < n; i++) {
+                        String name = string(in);
+                        obj.put(name, declared(value(in, objects)));
+                    }
+                }
+            }
+            int n = count(in);
+            for (int i = 0; i < n; i++) {
+                String name = string(in);
+                env.createVar(name, declared(value(in, objects)));
+            }
+            if (in.hasRemaining())
+                throw new IllegalArgumentException("corrupt heap image");
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("corrupt heap image");
+        }
+    }
+
+    /**
+     * The functions of the image compiled for the bytecode VM, by the
+     * layout of their frames.  Compiled once, as the code is immutable.
+     */
+    private synchronized Map<FrameLayout,VmFunction> vmFunctions() {
+        if (vmFunctions == null) {
+            Map<FrameLayout,VmFunction> fns = new IdentityHashMap<FrameLayout,VmFunction>();
+            List<VmFunction> pending = new ArrayList<VmFunction>();
+            for (FunctionDeclExpr decl : code)
+                pending.add(VmCompiler.compile(decl));
+            while (!pending.isEmpty()) {
+                VmFunction f = pending.remove(pending.size() - 1);
+                if (f.layout != null)
+                    fns.put(f.layout, f);
+                for (Object k : f.constants) {
+                    if (k instanceof VmFunction)
+                        pending.add((VmFunction) k);
+                }
+            }
+            vmFunctions = fns;
+        }
+        return vmFunctions;
+    }
+
+    private static ClosureVal closure(FunctionDeclExpr decl, Environment outer,
+            Map<FrameLayout,VmFunction> fns) {
+        VmFunction f = (fns != null) ? fns.get(decl.layout) : null;
+        if (f != null)
+            return new ClosureVal(f.params, f.body, outer, f.layout, null);
+        return new ClosureVal(decl.params, decl.body, outer, decl.layout, null);
+    }
+
+    /**
+     * The frame of a number, which must come before object id.
+     */
+    private static Environment frame(Object[] objects, int n, int id) {
+        if (n < 0 || n >= id || !(objects[n] instanceof Environment))
+            throw new IllegalArgumentException("corrupt heap image");
+        return (Environment) objects[n];
+    }
+
+    private static Value declared(Value v) {
+        if (v == null)
+            throw new IllegalArgumentException("corrupt heap image");
+        return v;
+    }
+
+    /**
+     * The next value, or null for an undeclared slot.
+     */
+    private Value value(ByteBuffer in, Object[] objects) {
+        switch (in.get()) {
+            case UNDECLARED:
+                return null;
+            case INT: {
+                int n = varint(in);
+                return IntVal.of((n >>> 1) ^ -(n & 1));
+            }
+            case BIGINT:
+                return BigIntVal.of(new BigInteger(string(in)));
+            case TRUE:
+                return BoolVal.TRUE;
+            case FALSE:
+                return BoolVal.FALSE;
+            case NULL:
+                return NullVal.NULL;
+            case REF: {
+                int id = varint(in);
+                if (id < 1 || id >= objects.length || objects[id] instanceof Environment)
+                    throw new IllegalArgumentException("corrupt heap image");
+                return (Value) objects[id];
+            }
+            case BUILTIN: {
+                String name = string(in);
+                Value builtin = Builtins.lookup(name);
+                if (builtin == null)
+                    throw new IllegalArgumentException("unknown built-in " + name);
+                return builtin;
+            }
+            default:
+                throw new IllegalArgumentException("corrupt heap image");
+        }
+    }
+
+    private static int varint(ByteBuffer in) {
+        int n = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            n |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return n;
+        }
+        throw new IllegalArgumentException("corrupt heap image");
+    }
+
+    /**
+     * A count of items, each at least one byte long.
+     */
+    private static int count(ByteBuffer in) {
+        int n = varint(in);
+        if (n < 0 || n > in.remaining())
+            throw new IllegalArgumentException("corrupt heap image");
+        return n;
+    }
+
+    private String string(ByteBuffer in) {
+        int index = varint(in);
+        if (index < 0 || index >= strings.length)
+            throw new IllegalArgumentException("corrupt heap image");
+        return strings[index];
+    }
+
+    /**
+     * Numbers the functions of a tree in the order a scan meets them,
+     * noting the outermost function each one is in.
+     */
+    private static final class FunctionScanner extends ExpressionScanner {
+        final List<FunctionDeclExpr> functions = new ArrayList<FunctionDeclExpr>();
+        final List<Integer> outermost = new ArrayList<Integer>();
+        private int top = -1;
+
+        @Override
+        public Void visitFunctionDecl(FunctionDeclExpr e) {
+            boolean outer = (top < 0);
+            if (outer)
+                top = functions.size();
+            functions.add(e);
+            outermost.add(top);
+            super.visitFunctionDecl(e);
+            if (outer)
+                top = -1;
+            return null;
+        }
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+        void varint(int n) {
+            while ((n & ~0x7F) != 0) {
+                write((n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            write(n);
+        }
+
+        void write(Buffer b) {
+            write(b.buf, 0, b.count);
+        }
+    }
+
+    private static final class Writer {
+        private final Environment global;
+        private final FunctionScanner program = new FunctionScanner();
+        private final Map<FrameLayout,Integer> numbers = new IdentityHashMap<FrameLayout,Integer>();
+        // the outermost functions the closures were made from
+        private final TreeSet<Integer> code = new TreeSet<Integer>();
+        private final List<String> strings = new ArrayList<String>();
+        private final Map<String,Integer> indexes = new HashMap<String,Integer>();
+        private final List<Object> objects = new ArrayList<Object>();
+        private final Map<Object,Integer> ids = new IdentityHashMap<Object,Integer>();
+        private final Buffer headers = new Buffer();
+        private final Buffer contents = new Buffer();
+
+        Writer(Expression prog, Environment global) {
+            this.global = global;
+            program.scan(prog);
+            for (int i = 0; i < program.functions.size(); i++) {
+                FrameLayout layout = program.functions.get(i).layout;
+                if (layout != null)
+                    numbers.put(layout, i);
+            }
+        }
+
+        byte[] write() {
+            List<String> names = new ArrayList<String>();
+            List<Value> values = new ArrayList<Value>();
+            global.forEachVar((name, v) -> {
+                names.add(name);
+                values.add(v);
+            });
+            Buffer globals = new Buffer();
+            globals.varint(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                string(globals, names.get(i));
+                value(globals, values.get(i));
+            }
+            // the contents of the objects add the objects they refer to
+            for (int i = 0; i < objects.size(); i++)
+                contents(objects.get(i));
+
+            Buffer functions = new Buffer();
+            functions.varint(code.size());
+            for (int first : code) {
+                int end = first + 1;
+                while (end < program.functions.size() && program.outermost.get(end) == first)
+                    end++;
+                functions.varint(first);
+                functions.varint(end - first);
+                byte[] ast = AstCache.encode(program.functions.get(first));
+                functions.varint(ast.length);
+                functions.write(ast, 0, ast.length);
+            }
+
+            Buffer payload = new Buffer();
+            payload.varint(strings.size());
+            for (String s : strings) {
+                byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                payload.varint(utf8.length);
+                payload.write(utf8, 0, utf8.length);
+            }
+            payload.write(functions);
+            payload.varint(objects.size());
+            payload.write(headers);
+            payload.write(contents);
+            payload.write(globals);
+
+            CRC32 crc = new CRC32();
+            crc.update(payload.toByteArray());
+            ByteBuffer header = ByteBuffer.allocate(12);
+            header.putInt(MAGIC).putInt(VERSION).putInt((int) crc.getValue());
+            Buffer file = new Buffer();
+            file.write(header.array(), 0, 12);
+            file.write(payload);
+            return file.toByteArray();
+        }
+
+        private void string(Buffer out, String s) {
+            Integer index = indexes.get(s);
+            if (index == null) {
+                index = strings.size();
+                strings.add(s);
+                indexes.put(s, index);
+            }
+            out.varint(index);
+        }
+
+        private void value(Buffer out, Value v) {
+            if (v == null) {
+                out.write(UNDECLARED);
+            } else if (v instanceof IntVal) {
+                int i = ((IntVal) v).toInt();
+                out.write(INT);
+                out.varint((i << 1) ^ (i >> 31));
+            } else if (v instanceof BigIntVal) {
+                out.write(BIGINT);
+                string(out, v.toString());
+            } else if (v instanceof BoolVal) {
+                out.write(((BoolVal) v).toBoolean() ? TRUE : FALSE);
+            } else if (v instanceof NullVal) {
+                out.write(NULL);
+            } else if (Builtins.nameOf(v) != null) {
+                out.write(BUILTIN);
+                string(out, Builtins.nameOf(v));
+            } else {
+                int id = ref(v);
+                out.write(REF);
+                out.varint(id);
+            }
+        }
+
+        /**
+         * The number of a closure, array or object, adding it (and the
+         * frames of a closure) if it has none yet.
+         */
+        private int ref(Value v) {
+            Integer id = ids.get(v);
+            if (id != null)
+                return id;
+            if (v instanceof ClosureVal) {
+                ClosureVal c = (ClosureVal) v;
+                Integer fn = (c.layout() != null) ? numbers.get(c.layout()) : null;
+                if (fn == null)
+                    throw new IllegalArgumentException("cannot save a closure of another program");
+                int outer = frame(c.outerEnv());
+                id = add(v);
+                headers.write(CLOSURE);
+                headers.varint(fn);
+                headers.varint(outer);
+                code.add(program.outermost.get(fn));
+            } else if (v instanceof ArrayVal) {
+                owned(((ArrayVal) v).owner());
+                id = add(v);
+                headers.write(ARRAY);
+            } else if (v instanceof ObjectVal) {
+                owned(((ObjectVal) v).owner());
+                id = add(v);
+                headers.write(OBJECT);
+            } else {
+                throw new IllegalArgumentException("cannot save " + v.getClass().getSimpleName());
+            }
+            return id;
+        }
+
+        /**
+         * The number of a frame, 0 for the global environment, adding
+         * it and the frames around it if they have none yet.
+         */
+        private int frame(Environment e) {
+            List<Environment> chain = new ArrayList<Environment>();
+            Environment f = e;
+            while (f.ancestor(1) != null && !ids.containsKey(f)) {
+                chain.add(f);
+                f = f.ancestor(1);
+            }
+            int outer;
+            if (f.ancestor(1) == null) {
+                owned(f);
+                outer = 0;
+            } else {
+                outer = ids.get(f);
+            }
+            for (int i = chain.size() - 1; i >= 0; i--) {
+                Environment frame = chain.get(i);
+                int id = add(frame);
+                headers.write(FRAME);
+                headers.varint(outer);
+                headers.varint(frame.slotCount());
+                for (int slot = 0; slot < frame.slotCount(); slot++)
+                    string(headers, frame.slotName(slot));
+                outer = id;
+            }
+            return outer;
+        }
+
+        private void owned(Environment owner) {
+            if (!global.sees(owner))
+                throw new IllegalArgumentException("cannot save a value of another global environment");
+        }
+
+        private int add(Object o) {
+            objects.add(o);
+            ids.put(o, objects.size());
+            return objects.size();
+        }
+
+        private void contents(Object o) {
+            if (o instanceof Environment) {
+                Environment frame = (Environment) o;
+                for (int slot = 0; slot < frame.slotCount(); slot++)
+                    value(contents, frame.getSlot(0, slot));
+            } else if (o instanceof ArrayVal) {
+                ArrayVal a = (ArrayVal) o;
+                int n = a.length();
+                contents.varint(n);
+                for (int i = 0; i < n; i++)
+                    value(contents, a.get(i));
+            } else if (o instanceof ObjectVal) {
+                List<String> names = new ArrayList<String>();
+                List<Value> values = new ArrayList<Value>();
+                ((ObjectVal) o).forEach((name, v) -> {
+                    names.add(name);
+                    values.add(v);
+                });
+                contents.varint(names.size());
+                for (int i = 0; i < names.size(); i++) {
+                    string(contents, names.get(i));
+                    value(contents, values.get(i));
+                }
+            }
+        }
+    }
+}
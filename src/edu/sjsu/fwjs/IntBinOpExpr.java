@@ -0,0 +1,210 @@
+package edu.sjsu.fwjs;
+
+/**
+ * A binary operator specialized to int operands.
+ * Evaluates without the switch on the operator.  If an operand is not
+ * a number, the node replaces itself with a generic BinOpExpr for good;
+ * BigIntVals are computed on in place, so that a result that overflows
+ * now and then does not cost the ints their fast path.
+ */
+abstract class IntBinOpExpr extends BinOpExpr {
+    IntBinOpExpr(Op op, Expression e1, Expression e2) {
+        super(op, e1, e2);
+        this.generic = true;
+    }
+
+    static BinOpExpr create(Op op, Expression e1, Expression e2) {
+        switch (op) {
+            case ADD:
+                return new IntAddExpr(e1, e2);
+            case SUBTRACT:
+                return new IntSubtractExpr(e1, e2);
+            case MULTIPLY:
+                return new IntMultiplyExpr(e1, e2);
+            case DIVIDE:
+                return new IntDivideExpr(e1, e2);
+            case MOD:
+                return new IntModExpr(e1, e2);
+            case GT:
+                return new IntGreaterExpr(e1, e2);
+            case GE:
+                return new IntGreaterEqualExpr(e1, e2);
+            case LT:
+                return new IntLessExpr(e1, e2);
+            case LE:
+                return new IntLessEqualExpr(e1, e2);
+            case EQ:
+                return new IntEqualExpr(e1, e2);
+            default:
+                throw new IllegalArgumentException("Unknown operator: " + op);
+        }
+    }
+
+    /**
+     * Replaces this node with a generic one, unless both operands are
+     * numbers, and applies the operator to operands that turned out
+     * not to be ints.
+     */
+    Value generalize(Value left, Value right) {
+        if (replacement == null && !(isNumber(left) && isNumber(right)))
+            toGeneric();
+        return apply(op, left, right);
+    }
+
+    private synchronized void toGeneric() {
+        if (replacement != null)
+            return;
+        BinOpExpr node = new BinOpExpr(op, current(e1), current(e2));
+        node.generic = true;
+        replace(node);
+    }
+}
+
+/**
+ * Arithmetic on ints, promoted to a BigIntVal on overflow.
+ */
+abstract class IntArithmeticExpr extends IntBinOpExpr {
+    IntArithmeticExpr(Op op, Expression e1, Expression e2) {
+        super(op, e1, e2);
+    }
+
+    abstract Value compute(int left, int right);
+
+    @Override
+    public Value evaluate(Environment env) {
+        Value left = e1.evaluate(env);
+        Value right = e2.evaluate(env);
+        if (left instanceof IntVal && right instanceof IntVal)
+            return compute(((IntVal) left).toInt(), ((IntVal) right).toInt());
+        return generalize(left, right);
+    }
+}
+
+/**
+ * Comparison of ints.
+ * A condition can test it with executeBoolean, without a BoolVal.
+ */
+abstract class IntCompareExpr extends IntBinOpExpr {
+    IntCompareExpr(Op op, Expression e1, Expression e2) {
+        super(op, e1, e2);
+    }
+
+    abstract boolean compare(int left, int right);
+
+    @Override
+    public Value evaluate(Environment env) {
+        Value left = e1.evaluate(env);
+        Value right = e2.evaluate(env);
+        if (left instanceof IntVal && right instanceof IntVal)
+            return BoolVal.of(compare(((IntVal) left).toInt(), ((IntVal) right).toInt()));
+        return generalize(left, right);
+    }
+
+    boolean executeBoolean(Environment env) {
+        Value left = e1.evaluate(env);
+        Value right = e2.evaluate(env);
+        if (left instanceof IntVal && right instanceof IntVal)
+            return compare(((IntVal) left).toInt(), ((IntVal) right).toInt());
+        return Condition.toBoolean(generalize(left, right));
+    }
+}
+
+class IntAddExpr extends IntArithmeticExpr {
+    IntAddExpr(Expression e1, Expression e2) {
+        super(Op.ADD, e1, e2);
+    }
+
+    Value compute(int left, int right) {
+        return IntVal.add(left, right);
+    }
+}
+
+class IntSubtractExpr extends IntArithmeticExpr {
+    IntSubtractExpr(Expression e1, Expression e2) {
+        super(Op.SUBTRACT, e1, e2);
+    }
+
+    Value compute(int left, int right) {
+        return IntVal.subtract(left, right);
+    }
+}
+
+class IntMultiplyExpr extends IntArithmeticExpr {
+    IntMultiplyExpr(Expression e1, Expression e2) {
+        super(Op.MULTIPLY, e1, e2);
+    }
+
+    Value compute(int left, int right) {
+        return IntVal.multiply(left, right);
+    }
+}
+
+class IntDivideExpr extends IntArithmeticExpr {
+    IntDivideExpr(Expression e1, Expression e2) {
+        super(Op.DIVIDE, e1, e2);
+    }
+
+    Value compute(int left, int right) {
+        return IntVal.divide(left, right);
+    }
+}
+
+class IntModExpr extends IntArithmeticExpr {
+    IntModExpr(Expression e1, Expression e2) {
+        super(Op.MOD, e1, e2);
+    }
+
+    Value compute(int left, int right) {
+        return IntVal.mod(left, right);
+    }
+}
+
+class IntGreaterExpr extends IntCompareExpr {
+    IntGreaterExpr(Expression e1, Expression e2) {
+        super(Op.GT, e1, e2);
+    }
+
+    boolean compare(int left, int right) {
+        return left > right;
+    }
+}
+
+class IntGreaterEqualExpr extends IntCompareExpr {
+    IntGreaterEqualExpr(Expression e1, Expression e2) {
+        super(Op.GE, e1, e2);
+    }
+
+    boolean compare(int left, int right) {
+        return left >= right;
+    }
+}
+
+class IntLessExpr extends IntCompareExpr {
+    IntLessExpr(Expression e1, Expression e2) {
+        super(Op.LT, e1, e2);
+    }
+
+    boolean compare(int left, int right) {
+        return left < right;
+    }
+}
+
+class IntLessEqualExpr extends IntCompareExpr {
+    IntLessEqualExpr(Expression e1, Expression e2) {
+        super(Op.LE, e1, e2);
+    }
+
+    boolean compare(int left, int right) {
+        return left <= right;
+    }
+}
+
+class IntEqualExpr extends IntCompareExpr {
+    IntEqualExpr(Expression e1, Expression e2) {
+        super(Op.EQ, e1, e2);
+    }
+
+    boolean compare(int left, int right) {
+        return left == right;
+    }
+}
@@ -3,29 +3,280 @@ package edu.sjsu.fwjs;
 import org.antlr.v4.runtime.*;
 import org.antlr.v4.runtime.tree.ParseTree;
 
-import edu.sjsu.fwjs.parser.FeatherweightJavaScriptLexer;
-import edu.sjsu.fwjs.parser.FeatherweightJavaScriptParser;
-
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Interpreter {
 
+    /**
+     * Usage: Interpreter [options] [file]
+     *
+     * --engine=tree   walk the expression tree (the default)
+     * --engine=jvm    compile the program to a JVM class (same as --compile)
+     * --engine=vm     compile the program for the bytecode VM
+     * --engine=stackless
+     *                 walk the expression tree without recursing in Java
+     *                 for calls (see StacklessEvaluator)
+     * --max-stack=N   the most frames the stackless engine may use
+     * --disassemble   print the bytecode VM code instead of running it
+     * --no-optimize   skip the Optimizer passes
+     * --opt-stats     print what each Optimizer pass did to stderr
+     * --cache-dir=DIR cache the parsed script in DIR (see AstCache)
+     * --memoize=N     remember the results of up to N calls of each closure
+     *                 of a pure function (see PurityAnalysis)
+     * --memo-stats    print the hits, misses and evictions of each memoized
+     *                 function to stderr
+     * --stream        run each top-level statement as soon as it is read
+     *                 (tree, vm and stackless engines, see StatementStream)
+     * --output=buffered
+     *                 batch printed lines, writing them out every 8 KB or
+     *                 at the first print 100 ms after the oldest;
+     *                 =async writes them out from a thread of its own;
+     *                 =direct, the default, prints each line to
+     *                 System.out as it is printed (see Output)
+     * --profile=FILE  profile the script (tree engine only), writing folded
+     *                 stacks to FILE and a report to stderr
+     * --profile-interval=MICROS
+     *                 the sampling interval of --profile (1000 by default)
+     * --max-steps=N   stop the script after N loop iterations and calls
+     * --max-depth=N   stop the script if it goes N calls deep
+     * --timeout-ms=N  stop the script after N milliseconds
+     * --max-allocs=N  stop the script after it allocates N frames and closures
+     * --image=FILE    start from the globals of a heap image (see HeapImage)
+     * --save-image=FILE
+     *                 save the globals the script leaves to a heap image
+     */
     public static void main(String[] args) throws Exception {
         String inputFile = null;
-        if (args.length>0) inputFile = args[0];
+        String engine = "tree";
+        boolean disassemble = false;
+        boolean optimize = true;
+        boolean optStats = false;
+        boolean streaming = false;
+        String outputMode = "direct";
+        int maxStack = Integer.MAX_VALUE;
+        int memoSize = 0;
+        boolean memoStats = false;
+        AstCache cache = null;
+        String profileFile = null;
+        long profileInterval = 1000;
+        String imageFile = null;
+        String saveImageFile = null;
+        ResourceLimits limits = ResourceLimits.NONE;
+        for (String arg : args) {
+            if (arg.equals("--compile"))
+                engine = "jvm";
+            else if (arg.startsWith("--engine="))
+                engine = arg.substring("--engine=".length());
+            else if (arg.startsWith("--max-stack="))
+                maxStack = Integer.parseInt(arg.substring("--max-stack=".length()));
+            else if (arg.startsWith("--memoize="))
+                memoSize = Integer.parseInt(arg.substring("--memoize=".length()));
+            else if (arg.equals("--memo-stats"))
+                memoStats = true;
+            else if (arg.equals("--disassemble"))
+                disassemble = true;
+            else if (arg.equals("--no-optimize"))
+                optimize = false;
+            else if (arg.equals("--opt-stats"))
+                optStats = true;
+            else if (arg.equals("--stream"))
+                streaming = true;
+            else if (arg.startsWith("--output="))
+                outputMode = arg.substring("--output=".length());
+            else if (arg.startsWith("--profile="))
+                profileFile = arg.substring("--profile=".length());
+            else if (arg.startsWith("--profile-interval="))
+                profileInterval = Long.parseLong(arg.substring("--profile-interval=".length()));
+            else if (arg.startsWith("--max-steps="))
+                limits = limits.withMaxSteps(Long.parseLong(arg.substring("--max-steps=".length())));
+            else if (arg.startsWith("--max-depth="))
+                limits = limits.withMaxCallDepth(Integer.parseInt(arg.substring("--max-depth=".length())));
+            else if (arg.startsWith("--timeout-ms="))
+                limits = limits.withTimeout(Duration.ofMillis(Long.parseLong(arg.substring("--timeout-ms=".length()))));
+            else if (arg.startsWith("--max-allocs="))
+                limits = limits.withMaxAllocations(Long.parseLong(arg.substring("--max-allocs=".length())));
+            else if (arg.startsWith("--image="))
+                imageFile = arg.substring("--image=".length());
+            else if (arg.startsWith("--save-image="))
+                saveImageFile = arg.substring("--save-image=".length());
+            else if (arg.startsWith("--cache-dir="))
+                cache = new AstCache(Paths.get(arg.substring("--cache-dir=".length())));
+            else if (arg.startsWith("--"))
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            else
+                inputFile = arg;
+        }
         InputStream is = System.in;
         if (inputFile!=null) is = new FileInputStream(inputFile);
 
-        CharStream stream = CharStreams.fromStream(is);
-        FeatherweightJavaScriptLexer lexer = new FeatherweightJavaScriptLexer(stream);
-        CommonTokenStream tokens = new CommonTokenStream(lexer);
-        FeatherweightJavaScriptParser parser = new FeatherweightJavaScriptParser(tokens);
-        ParseTree tree = parser.prog(); // parse
+        Optimizer optimizer = null;
+        if (optimize) {
+            optimizer = Optimizer.standard();
+            if (optStats)
+                optimizer.printStats(System.err);
+        }
+        if (streaming && (engine.equals("jvm") || disassemble || cache != null || profileFile != null || memoSize > 0))
+            throw new IllegalArgumentException("--stream needs --engine=tree, vm or stackless, and no --disassemble, --cache-dir, --profile or --memoize");
+        if (profileFile != null && !engine.equals("tree"))
+            throw new IllegalArgumentException("--profile needs --engine=tree");
+        if (saveImageFile != null && (streaming || profileFile != null))
+            throw new IllegalArgumentException("--save-image needs no --stream or --profile");
+        Expression prog = null;
+        if (streaming) {
+            // parsed as it runs
+        } else if (cache != null) {
+            String source = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+            prog = cache.load(source);
+            if (prog == null) {
+                prog = build(CharStreams.fromString(source));
+                cache.store(source, prog);
+            }
+            prog = resolve(prog, optimizer);
+        } else {
+            prog = parse(CharStreams.fromStream(is), optimizer);
+        }
+        List<MemoStats> memos = (memoSize > 0) ? PurityAnalysis.memoize(prog, memoSize)
+                : new ArrayList<MemoStats>();
+        if (disassemble) {
+            System.out.print(VmDisassembler.disassemble(VmCompiler.compile(prog)));
+            return;
+        }
+        Output out = output(outputMode);
+        Environment env = new Environment(out, limits.newBudget());
+        if (imageFile != null)
+            HeapImage.load(Paths.get(imageFile)).restore(env, engine.equals("vm"));
+        ResourceLimitExceeded limitHit = null;
+        try {
+            if (streaming) {
+                stream(is, engine, optimizer, env, maxStack);
+            } else if (profileFile != null) {
+                profile(prog, new Profiler(profileInterval), profileFile, env);
+            } else {
+                switch (engine) {
+                    case "tree":
+                        prog.evaluate(env);
+                        break;
+                    case "jvm":
+                        BytecodeCompiler.compile(prog).run(0, env);
+                        break;
+                    case "vm":
+                        new Vm().execute(VmCompiler.compile(prog), env);
+                        break;
+                    case "stackless":
+                        new StacklessEvaluator(maxStack).evaluate(prog, env);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown engine: " + engine);
+                }
+                if (saveImageFile != null)
+                    HeapImage.save(Paths.get(saveImageFile), prog, env);
+            }
+        } catch (ResourceLimitExceeded e) {
+            limitHit = e;
+        } finally {
+            // what the script printed comes before the error
+            out.close();
+            if (limitHit != null)
+                System.err.println("error: " + limitHit.getMessage());
+            if (memoStats) {
+                for (MemoStats memo : memos)
+                    System.err.println(memo);
+            }
+        }
+        if (limitHit != null)
+            System.exit(1);
+    }
+
+    private static Output output(String mode) {
+        OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+        switch (mode) {
+            case "buffered":
+                return Output.buffered(stdout);
+            case "async":
+                return Output.async(stdout);
+            case "direct":
+                return Output.of(System.out);
+            default:
+                throw new IllegalArgumentException("Unknown output: " + mode);
+        }
+    }
+
+    /**
+     * Runs the statements of the input one by one, as they are read,
+     * flushing the output after each.
+     */
+    static void stream(InputStream is, String engine, Optimizer optimizer, Environment env, int maxStack) {
+        StatementStream statements = new StatementStream(is);
+        Expression stat;
+        while ((stat = statements.next()) != null) {
+            stat = resolve(stat, optimizer);
+            if (engine.equals("vm"))
+                new Vm().execute(VmCompiler.compile(stat), env);
+            else if (engine.equals("stackless"))
+                new StacklessEvaluator(maxStack).evaluate(stat, env);
+            else
+                stat.evaluate(env);
+            env.out().flush();
+        }
+    }
+
+    private static void profile(Expression prog, Profiler profiler, String file,
+            Environment env) throws Exception {
+        prog = profiler.instrument(prog);
+        profiler.start();
+        try {
+            prog.evaluate(env);
+        } finally {
+            profiler.stop();
+            try (PrintStream out = new PrintStream(file)) {
+                profiler.writeFolded(out);
+            }
+            profiler.report(System.err);
+        }
+    }
+
+    /**
+     * Parses a program and builds its optimized, resolved expression tree.
+     */
+    static Expression parse(CharStream stream) {
+        return parse(stream, Optimizer.standard());
+    }
+
+    /**
+     * Same as parse, with the given optimizer (or none, if null).
+     */
+    static Expression parse(CharStream stream, Optimizer optimizer) {
+        return resolve(build(stream), optimizer);
+    }
+
+    /**
+     * Parses a program and builds its expression tree, as it is
+     * before optimization and scope resolution.
+     */
+    static Expression build(CharStream stream) {
+        ParseTree tree = FwjsParser.forThread().parse(stream);
 
         ExpressionBuilderVisitor builder = new ExpressionBuilderVisitor();
-        Expression prog = builder.visit(tree);
-        prog.evaluate(new Environment());
+        return builder.visit(tree);
+    }
+
+    /**
+     * Optimizes (unless the optimizer is null) and resolves a built tree.
+     */
+    static Expression resolve(Expression prog, Optimizer optimizer) {
+        if (optimizer != null)
+            prog = optimizer.optimize(prog);
+        return ScopeResolver.resolve(prog);
     }
 
 }
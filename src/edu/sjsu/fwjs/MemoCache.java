@@ -0,0 +1,95 @@
+package edu.sjsu.fwjs;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The results a memoized closure remembers, by arguments: at most
+ * stats.getCapacity() of them, dropping the least recently used.
+ *
+ * Only calls whose arguments are all numbers, booleans or null are
+ * memoized, as only those can be compared for equality.  Arguments are
+ * keyed as the function sees them: missing ones are null, and extra
+ * ones are dropped.
+ *
+ * A cache belongs to one closure, so to the run that created it.  The
+ * tasks of the run may call the closure concurrently, so get and put
+ * hold its lock.
+ */
+class MemoCache {
+    private static final Object NO_ARGUMENTS = Collections.emptyList();
+
+    private final MemoStats stats;
+    private final int arity;
+    private final Map<Object,Value> results;
+
+    MemoCache(MemoStats stats, int arity) {
+        this.stats = stats;
+        this.arity = arity;
+        this.results = new LinkedHashMap<Object,Value>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object,Value> eldest) {
+                if (size() <= MemoCache.this.stats.getCapacity())
+                    return false;
+                MemoCache.this.stats.evict();
+                return true;
+            }
+        };
+    }
+
+    MemoStats stats() {
+        return stats;
+    }
+
+    /**
+     * The key of a call with the given arguments, or null if the call
+     * cannot be memoized.
+     */
+    Object key(List<Value> args) {
+        if (arity == 1)
+            return args.isEmpty() ? NullVal.NULL : primitive(args.get(0));
+        return key(args.toArray(new Value[0]), 0, args.size());
+    }
+
+    /**
+     * Same as key, for the arguments args[from] to args[from + count - 1].
+     */
+    Object key(Value[] args, int from, int count) {
+        if (arity == 0)
+            return NO_ARGUMENTS;
+        if (arity == 1)
+            return (count == 0) ? NullVal.NULL : primitive(args[from]);
+        Value[] key = new Value[arity];
+        for (int i = 0; i < arity; i++) {
+            key[i] = (i < count) ? primitive(args[from + i]) : NullVal.NULL;
+            if (key[i] == null)
+                return null;
+        }
+        return Arrays.asList(key);
+    }
+
+    private static Value primitive(Value v) {
+        if (v instanceof IntVal || v instanceof BigIntVal || v instanceof BoolVal || v instanceof NullVal)
+            return v;
+        return null;
+    }
+
+    /**
+     * The result remembered for a key, or null if there is none.
+     */
+    synchronized Value get(Object key) {
+        Value v = results.get(key);
+        if (v != null)
+            stats.hit();
+        else
+            stats.miss();
+        return v;
+    }
+
+    synchronized void put(Object key, Value result) {
+        results.put(key, result);
+    }
+}
@@ -0,0 +1,69 @@
+package edu.sjsu.fwjs;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How well the results of one memoized function are remembered, over
+ * all its closures and all the runs of its program.
+ *
+ * A hit is a call answered from the cache, a miss a call that was made
+ * (and its result remembered), and an eviction a result dropped to make
+ * room for a newer one.  Calls whose arguments are not all numbers,
+ * booleans or null are not memoized, and are not counted.
+ */
+public final class MemoStats {
+    private final String function;
+    private final int capacity;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    MemoStats(String function, int capacity) {
+        this.function = function;
+        this.capacity = capacity;
+    }
+
+    /**
+     * The function, named as by the Profiler (e.g. <code>fib:1:11</code>).
+     */
+    public String getFunction() {
+        return function;
+    }
+
+    /**
+     * The most results a closure of the function remembers.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    void hit() {
+        hits.increment();
+    }
+
+    void miss() {
+        misses.increment();
+    }
+
+    void evict() {
+        evictions.increment();
+    }
+
+    @Override
+    public String toString() {
+        return function + ": " + getHits() + " hits, " + getMisses() + " misses, "
+                + getEvictions() + " evictions";
+    }
+}
@@ -0,0 +1,13 @@
+package edu.sjsu.fwjs;
+
+/**
+ * The body of a function that is not an expression tree of its own: a
+ * built-in, a function compiled for the VM or to a JVM class, or one
+ * instrumented by the Profiler.  It can be evaluated, but visitors see
+ * no children in it; each decides in visitOpaque what to make of it.
+ */
+interface OpaqueBody extends Expression {
+    default <R> R accept(ExpressionVisitor<R> v) {
+        return v.visitOpaque(this);
+    }
+}
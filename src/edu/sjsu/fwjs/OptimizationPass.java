@@ -0,0 +1,159 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pass of the Optimizer over a program, before scopes are resolved.
+ * Passes must not change what a program prints, returns or throws.
+ */
+interface OptimizationPass {
+    String name();
+
+    /**
+     * Optimizes the program, and returns the optimized program.
+     * The nodes of the program may be rewritten in place.
+     */
+    Expression run(Expression prog);
+
+    /**
+     * The number of rewrites made by the last run.
+     */
+    int rewrites();
+}
+
+// NOTE: Using package access so that all the passes
+// can be included in the same file.
+
+/**
+ * Evaluates operators whose operands are both constants.
+ * An operation that would throw (e.g. division by zero, or arithmetic
+ * on a boolean) is left alone, so that it still throws at run time.
+ */
+class ConstantFolding extends ExpressionRewriter implements OptimizationPass {
+    private int rewrites;
+
+    public String name() {
+        return "constant-folding";
+    }
+
+    public Expression run(Expression prog) {
+        rewrites = 0;
+        return rewrite(prog);
+    }
+
+    public int rewrites() {
+        return rewrites;
+    }
+
+    @Override
+    public Expression visitBinOp(BinOpExpr b) {
+        Expression rewritten = super.visitBinOp(b);
+        if (!(rewritten instanceof BinOpExpr))
+            return rewritten;
+        BinOpExpr e = (BinOpExpr) rewritten;
+        if (!(e.e1 instanceof ValueExpr) || !(e.e2 instanceof ValueExpr))
+            return e;
+        Value result;
+        try {
+            result = BinOpExpr.apply(e.op, ((ValueExpr) e.e1).val, ((ValueExpr) e.e2).val);
+        } catch (RuntimeException ex) {
+            return e;
+        }
+        rewrites++;
+        return new ValueExpr(result);
+    }
+}
+
+/**
+ * Replaces an if whose condition is a boolean constant by the branch
+ * it takes, and removes while loops whose condition is false.
+ */
+class DeadBranchElimination extends ExpressionRewriter implements OptimizationPass {
+    private int rewrites;
+
+    public String name() {
+        return "dead-branch-elimination";
+    }
+
+    public Expression run(Expression prog) {
+        rewrites = 0;
+        return rewrite(prog);
+    }
+
+    public int rewrites() {
+        return rewrites;
+    }
+
+    private static Boolean constantCondition(Expression cond) {
+        if (cond instanceof ValueExpr && ((ValueExpr) cond).val instanceof BoolVal)
+            return ((BoolVal) ((ValueExpr) cond).val).toBoolean();
+        return null;
+    }
+
+    @Override
+    public Expression visitIf(IfExpr e) {
+        super.visitIf(e);
+        Boolean c = constantCondition(e.cond);
+        if (c == null)
+            return e;
+        rewrites++;
+        Expression branch = c ? e.thn : e.els;
+        return (branch == null) ? new ValueExpr(NullVal.NULL) : branch;
+    }
+
+    @Override
+    public Expression visitWhile(WhileExpr e) {
+        super.visitWhile(e);
+        if (!Boolean.FALSE.equals(constantCondition(e.cond)))
+            return e;
+        rewrites++;
+        return new ValueExpr(NullVal.NULL);
+    }
+}
+
+/**
+ * Drops the statements of a sequence whose value is not used and that
+ * have no effect: constants, variable reads, function declarations,
+ * and == comparisons of those (== never throws).
+ */
+class SeqSimplification extends ExpressionRewriter implements OptimizationPass {
+    private int rewrites;
+
+    public String name() {
+        return "seq-simplification";
+    }
+
+    public Expression run(Expression prog) {
+        rewrites = 0;
+        return rewrite(prog);
+    }
+
+    public int rewrites() {
+        return rewrites;
+    }
+
+    static boolean isPure(Expression e) {
+        if (e instanceof ValueExpr || e instanceof VarExpr || e instanceof FunctionDeclExpr)
+            return true;
+        if (e instanceof BinOpExpr) {
+            BinOpExpr b = (BinOpExpr) e;
+            return b.op == Op.EQ && isPure(b.e1) && isPure(b.e2);
+        }
+        return false;
+    }
+
+    @Override
+    List<Expression> statements(List<Expression> stmts) {
+        List<Expression> kept = new ArrayList<Expression>(stmts.size());
+        int last = stmts.size() - 1;
+        for (int i = 0; i < last; i++) {
+            if (isPure(stmts.get(i)))
+                rewrites++;
+            else
+                kept.add(stmts.get(i));
+        }
+        kept.add(stmts.get(last));
+        return kept;
+    }
+}
@@ -0,0 +1,73 @@
+package edu.sjsu.fwjs;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a pipeline of OptimizationPasses over a program, between the
+ * ExpressionBuilderVisitor and the ScopeResolver.
+ * If a stats stream is set, a line is printed to it for each pass,
+ * with the rewrites it made, the nodes before and after, and its time.
+ */
+class Optimizer {
+    private final List<OptimizationPass> passes = new ArrayList<OptimizationPass>();
+    private PrintStream stats;
+
+    /**
+     * An optimizer with the standard passes.
+     */
+    static Optimizer standard() {
+        return new Optimizer()
+            .add(new ConstantFolding())
+            .add(new DeadBranchElimination())
+            .add(new SeqSimplification());
+    }
+
+    Optimizer add(OptimizationPass pass) {
+        passes.add(pass);
+        return this;
+    }
+
+    Optimizer printStats(PrintStream stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    Expression optimize(Expression prog) {
+        int nodes = (stats == null) ? 0 : NodeCounter.count(prog);
+        for (OptimizationPass pass : passes) {
+            long start = System.nanoTime();
+            prog = pass.run(prog);
+            if (stats != null) {
+                long micros = (System.nanoTime() - start) / 1000;
+                int after = NodeCounter.count(prog);
+                stats.println(pass.name() + ": " + pass.rewrites() + " rewrites, "
+                        + nodes + " -> " + after + " nodes, " + micros + " us");
+                nodes = after;
+            }
+        }
+        return prog;
+    }
+
+    /**
+     * Counts the nodes of a tree, not counting the BlockExprs and
+     * SeqExprs that hold the statements of a block.
+     */
+    private static class NodeCounter extends ExpressionScanner {
+        private int count;
+
+        static int count(Expression prog) {
+            NodeCounter counter = new NodeCounter();
+            counter.scan(prog);
+            return counter.count;
+        }
+
+        @Override
+        void scan(Expression e) {
+            if (e != null && !(e instanceof SeqExpr) && !(e instanceof BlockExpr))
+                count++;
+            super.scan(e);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the print statements of a program write to.
+ *
+ * <pre>
+ *   Output out = Output.capture();
+ *   engine.execute(script, bindings, out, ResourceLimits.NONE);
+ *   String printed = out.toString();
+ * </pre>
+ *
+ * Each value printed is written on a line of its own.  The sinks are:
+ * <ul>
+ * <li>of(stream): a println on the stream for each value, as it is printed.
+ * <li>buffered(stream): lines are batched in a buffer, which is written
+ *     out when it is full, when its oldest line is more than a time limit
+ *     old at the next print, and on flush() and close().
+ * <li>async(stream): buffered, but the buffers are written out by a
+ *     thread of their own, so the program does not wait on the stream.
+ * <li>capture(): lines are kept in memory; toString() returns them.
+ * </ul>
+ * The buffered sinks write numbers digit by digit into their buffer,
+ * without making a String of them.
+ *
+ * An Output is used by one execution at a time, whose tasks may print
+ * to it concurrently: each line is written whole.  Call close() when the
+ * program is done, so that everything printed is written out.
+ */
+public abstract class Output {
+    private static final String NEWLINE = System.lineSeparator();
+
+    /**
+     * The sink of programs run without one: System.out, as it is at the
+     * time of the print.
+     */
+    static final Output SYSTEM_OUT = new StreamOutput(null);
+
+    Output() {
+    }
+
+    public static Output of(PrintStream out) {
+        return new StreamOutput(out);
+    }
+
+    /**
+     * A buffered sink with an 8 KB buffer and a time limit of 100 ms.
+     */
+    public static Output buffered(OutputStream out) {
+        return new BufferedOutput(out, 8192, 100);
+    }
+
+    public static Output buffered(OutputStream out, int bufferSize, long maxDelayMillis) {
+        return new BufferedOutput(out, bufferSize, maxDelayMillis);
+    }
+
+    public static Output async(OutputStream out) {
+        return new AsyncOutput(out, 8192, 100);
+    }
+
+    public static Output capture() {
+        return new CaptureOutput();
+    }
+
+    /**
+     * Prints a value on a line of its own.
+     */
+    abstract void print(Value v);
+
+    /**
+     * Writes out what has been printed so far.
+     */
+    public void flush() {
+    }
+
+    /**
+     * Flushes the sink, and stops any thread of its own.
+     * It does not close the underlying stream.
+     */
+    public void close() {
+        flush();
+    }
+
+    /**
+     * Prints each value with println.
+     */
+    private static final class StreamOutput extends Output {
+        private final PrintStream out;
+
+        StreamOutput(PrintStream out) {
+            this.out = out;
+        }
+
+        private PrintStream stream() {
+            return (out != null) ? out : System.out;
+        }
+
+        void print(Value v) {
+            stream().println(v.toString());
+        }
+
+        @Override
+        public void flush() {
+            stream().flush();
+        }
+    }
+
+    /**
+     * Keeps the lines printed in memory.
+     */
+    private static final class CaptureOutput extends Output {
+        private final StringBuilder text = new StringBuilder();
+
+        synchronized void print(Value v) {
+            if (v instanceof IntVal)
+                text.append(((IntVal) v).toInt());
+            else
+                text.append(v.toString());
+            text.append(NEWLINE);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return text.toString();
+        }
+    }
+
+    /**
+     * Batches lines in a byte buffer.
+     * Values print as ASCII, except perhaps the source text of closures,
+     * which is encoded in the default charset.
+     */
+    static class BufferedOutput extends Output {
+        private final OutputStream out;
+        private final long maxDelayNanos;
+        private byte[] buf;
+        private int count;
+        private long oldest;
+
+        BufferedOutput(OutputStream out, int bufferSize, long maxDelayMillis) {
+            if (bufferSize < 32)
+                throw new IllegalArgumentException("Buffer too small: " + bufferSize);
+            this.out = out;
+            this.buf = new byte[bufferSize];
+            this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        }
+
+        synchronized void print(Value v) {
+            if (count == 0)
+                oldest = System.nanoTime();
+            if (v instanceof IntVal)
+                writeInt(((IntVal) v).toInt());
+            else
+                writeString(v.toString());
+            writeString(NEWLINE);
+            if (System.nanoTime() - oldest > maxDelayNanos)
+                flush();
+        }
+
+        private void writeInt(int i) {
+            if (buf.length - count < 11)
+                drain();
+            long n = i;
+            if (n < 0) {
+                buf[count++] = '-';
+                n = -n;
+            }
+            int digits = 1;
+            for (long t = n; t >= 10; t /= 10)
+                digits++;
+            for (int p = count + digits - 1; p >= count; p--) {
+                buf[p] = (byte) ('0' + n % 10);
+                n /= 10;
+            }
+            count += digits;
+        }
+
+        private void writeString(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    byte[] bytes = s.substring(i).getBytes(Charset.defaultCharset());
+                    for (byte b : bytes) {
+                        if (count == buf.length)
+                            drain();
+                        buf[count++] = b;
+                    }
+                    return;
+                }
+                if (count == buf.length)
+                    drain();
+                buf[count++] = (byte) c;
+            }
+        }
+
+        void drain() {
+            if (count > 0) {
+                buf = write(buf, count);
+                count = 0;
+            }
+        }
+
+        /**
+         * Writes out the first len bytes of the buffer, and returns
+         * the buffer to fill next.
+         */
+        byte[] write(byte[] b, int len) {
+            try {
+                out.write(b, 0, len);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return b;
+        }
+
+        @Override
+        public synchronized void flush() {
+            drain();
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Buffered, with the buffers written out by a writer thread.
+     * A few buffers can be in flight; past that, print waits for the
+     * writer to catch up.
+     */
+    private static final class AsyncOutput extends BufferedOutput {
+        private static final byte[] END = new byte[0];
+
+        private final OutputStream out;
+        private final int bufferSize;
+        private final BlockingQueue<byte[]> full = new ArrayBlockingQueue<byte[]>(4);
+        private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(5);
+        private final Thread writer;
+        private volatile IOException error;
+
+        AsyncOutput(OutputStream out, int bufferSize, long maxDelayMillis) {
+            super(out, bufferSize, maxDelayMillis);
+            this.out = out;
+            this.bufferSize = bufferSize;
+            writer = new Thread(this::run, "fwjs-output");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    byte[] b = full.take();
+                    if (b == END)
+                        return;
+                    // a partly filled buffer comes as a copy of its length
+                    out.write(b, 0, b.length);
+                    out.flush();
+                    if (b.length == bufferSize)
+                        free.offer(b);
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }
+
+        @Override
+        byte[] write(byte[] b, int len) {
+            if (error != null)
+                throw new UncheckedIOException(error);
+            byte[] next;
+            if (len < b.length) {
+                // hand over a copy, and keep filling the same buffer
+                next = b;
+                b = Arrays.copyOf(b, len);
+            } else {
+                next = free.poll();
+                if (next == null)
+                    next = new byte[b.length];
+            }
+            try {
+                full.put(b);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while printing", e);
+            }
+            return next;
+        }
+
+        @Override
+        public synchronized void flush() {
+            // hands the buffer over; the writer thread flushes the stream
+            drain();
+        }
+
+        @Override
+        public void close() {
+            flush();
+            try {
+                full.put(END);
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while closing", e);
+            }
+            if (error != null)
+                throw new UncheckedIOException(error);
+        }
+    }
+}
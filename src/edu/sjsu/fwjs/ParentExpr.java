@@ -0,0 +1,23 @@
+package edu.sjsu.fwjs;
+
+/**
+ * An expression whose children may rewrite themselves.
+ * Self-specializing nodes (BinOpExpr and its IntBinOpExpr
+ * specializations) replace themselves in their parent once they
+ * have seen the types of their operands.
+ */
+interface ParentExpr {
+    /**
+     * Replaces a child of this node.
+     */
+    void replaceChild(Expression oldChild, Expression newChild);
+
+    /**
+     * Makes parent the parent of child, if the child can rewrite itself.
+     */
+    static <T extends Expression> T adopt(ParentExpr parent, T child) {
+        if (child instanceof BinOpExpr)
+            ((BinOpExpr) child).parent = parent;
+        return child;
+    }
+}
@@ -0,0 +1,228 @@
+package edu.sjsu.fwjs;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A sampling profiler for FWJS code run by the tree-walker.
+ *
+ * instrument() wraps the program and the body of every function in a
+ * node that pushes the function on a stack of FWJS calls while the body
+ * runs, and counts the call.  While the profiler is started, a daemon
+ * thread takes a copy of that stack at a fixed interval.  Code that is
+ * not instrumented pays nothing for the profiler.
+ *
+ * Functions are named after the variable they are first bound to, and
+ * told apart by where they are declared.  A tail call replaces the
+ * caller on the stack, the same as it does on the Java stack.
+ *
+ * The samples are written as folded stacks (one line per distinct
+ * stack, its frames separated by ';', then the number of samples), the
+ * input of flame graph tools.  The report gives, for each function,
+ * its calls and its self and total time estimated from the samples.
+ */
+class Profiler {
+    /**
+     * A profiled function.
+     */
+    static class Function {
+        final String name;
+        final int line;
+        final int column;
+        long calls;
+        long selfSamples;
+        long totalSamples;
+
+        Function(String name, int line, int column) {
+            this.name = name;
+            this.line = line;
+            this.column = column;
+        }
+
+        @Override
+        public String toString() {
+            return name + ":" + line + ":" + column;
+        }
+    }
+
+    /**
+     * The body of a profiled function.
+     */
+    private class Body implements OpaqueBody, ParentExpr {
+        final Function function;
+        Expression body;
+
+        Body(Function function, Expression body) {
+            this.function = function;
+            this.body = ParentExpr.adopt(this, body);
+        }
+
+        public void replaceChild(Expression oldChild, Expression newChild) {
+            if (body == oldChild)
+                body = newChild;
+        }
+
+        // An error ends the program (FWJS cannot catch it), so there is
+        // no need to pop the stack when one is thrown.  Tasks spawned by
+        // the program run unprofiled.
+        public Value evaluate(Environment env) {
+            if (Thread.currentThread() != profiled)
+                return (body == null) ? NullVal.NULL : body.evaluate(env);
+            function.calls++;
+            push(function);
+            Value v = (body == null) ? NullVal.NULL : body.evaluate(env);
+            depth--;
+            return v;
+        }
+    }
+
+    private final long intervalNanos;
+    private final List<Function> functions = new ArrayList<Function>();
+
+    // The stack of calls.  Only the profiled thread writes it; the
+    // sampler reads it without locking, so a sample taken in the middle
+    // of a call or return may be off by a frame.
+    private Function[] stack = new Function[64];
+    private int depth;
+
+    // The distinct stacks sampled, and how many times each was.  The
+    // names and the times of the functions are worked out in stop(), so
+    // that a sample costs little more than copying the stack.
+    private final Map<List<Function>,Long> folded = new HashMap<List<Function>,Long>();
+    private long samples;
+    private volatile boolean running;
+    private Thread sampler;
+    private Thread profiled;
+
+    /**
+     * A profiler that samples every intervalMicros microseconds.
+     */
+    Profiler(long intervalMicros) {
+        if (intervalMicros <= 0)
+            throw new IllegalArgumentException("Bad sampling interval: " + intervalMicros);
+        this.intervalNanos = intervalMicros * 1000;
+    }
+
+    /**
+     * Wraps the program and all its functions for profiling.
+     * Run it on a resolved tree, for the tree-walker only.
+     */
+    Expression instrument(Expression prog) {
+        new ExpressionScanner() {
+            @Override
+            public Void visitFunctionDecl(FunctionDeclExpr e) {
+                super.visitFunctionDecl(e);
+                String name = (e.name != null) ? e.name : "<anonymous>";
+                e.body = new Body(function(name, e.line, e.column), e.body);
+                return null;
+            }
+        }.scan(prog);
+        return new Body(function("<program>", 1, 1), prog);
+    }
+
+    private Function function(String name, int line, int column) {
+        Function f = new Function(name, line, column);
+        functions.add(f);
+        return f;
+    }
+
+    private void push(Function f) {
+        Function[] s = stack;
+        if (depth == s.length)
+            stack = s = Arrays.copyOf(s, depth * 2);
+        s[depth] = f;
+        depth++;
+    }
+
+    /**
+     * Starts sampling the calls made by the current thread.
+     */
+    void start() {
+        profiled = Thread.currentThread();
+        running = true;
+        sampler = new Thread(this::sample, "fwjs-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    void stop() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(sampler);
+        sampler.join();
+        for (Map.Entry<List<Function>,Long> e : folded.entrySet()) {
+            List<Function> frames = e.getKey();
+            long count = e.getValue();
+            Map<Function,Boolean> seen = new IdentityHashMap<Function,Boolean>();
+            for (Function f : frames) {
+                if (seen.put(f, Boolean.TRUE) == null)
+                    f.totalSamples += count;
+            }
+            frames.get(frames.size() - 1).selfSamples += count;
+        }
+    }
+
+    // The ticks the sampler misses (e.g. while it waits for the CPU)
+    // are dropped rather than made up in a burst of samples.
+    private void sample() {
+        long next = System.nanoTime() + intervalNanos;
+        sampling:
+        while (running) {
+            LockSupport.parkNanos(next - System.nanoTime());
+            next = Math.max(next + intervalNanos, System.nanoTime());
+            Function[] s = stack;
+            int n = Math.min(depth, s.length);
+            if (n == 0)
+                continue;
+            Function[] frames = Arrays.copyOf(s, n);
+            for (Function f : frames) {
+                if (f == null)
+                    continue sampling;
+            }
+            folded.merge(Arrays.asList(frames), 1L, Long::sum);
+            samples++;
+        }
+    }
+
+    /**
+     * Writes the samples as folded stacks.  Call after stop().
+     */
+    void writeFolded(PrintStream out) {
+        List<String> stacks = new ArrayList<String>();
+        for (Map.Entry<List<Function>,Long> e : folded.entrySet()) {
+            StringBuilder line = new StringBuilder();
+            for (Function f : e.getKey()) {
+                if (line.length() > 0)
+                    line.append(';');
+                line.append(f);
+            }
+            stacks.add(line.append(' ').append(e.getValue()).toString());
+        }
+        Collections.sort(stacks);
+        for (String s : stacks)
+            out.println(s);
+    }
+
+    /**
+     * Writes the calls and the self and total time of each function,
+     * hottest first.  Call after stop().
+     */
+    void report(PrintStream out) {
+        List<Function> sorted = new ArrayList<Function>(functions);
+        sorted.sort((a, b) -> Long.compare(b.selfSamples, a.selfSamples));
+        double millisPerSample = intervalNanos / 1e6;
+        out.printf("%d samples, every %d us%n", samples, intervalNanos / 1000);
+        out.printf("%-30s %12s %12s %12s %7s%n", "function", "calls", "self ms", "total ms", "self %");
+        for (Function f : sorted) {
+            out.printf("%-30s %12d %12.1f %12.1f %6.1f%%%n", f, f.calls,
+                    f.selfSamples * millisPerSample, f.totalSamples * millisPerSample,
+                    samples == 0 ? 0.0 : 100.0 * f.selfSamples / samples);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package edu.sjsu.fwjs;
+
+/**
+ * The inline cache of one property access in the program (a
+ * <code>obj.name</code> or an <code>obj.name = e</code>): the slot of
+ * the property in the shapes of the objects it has seen, so that an
+ * object of one of those shapes is read or written without looking the
+ * name up.  A set that adds the property also remembers the shape the
+ * object moves to.
+ *
+ * A cache that has seen one shape is monomorphic, and costs a single
+ * comparison; one that has seen a few is polymorphic, and compares
+ * them in turn.  Past MAX_SHAPES it is megamorphic: the shapes it
+ * remembers still hit, and the others are looked up every time.
+ * Objects in dictionary mode are always looked up in their map.
+ *
+ * The entries are immutable and published whole through a volatile
+ * field, and each use checks the shape of its object against them, so
+ * a cache can be used by several tasks, or runs of a compiled script,
+ * at once.  One may then lose an entry another added, which only costs
+ * a lookup.
+ */
+final class PropertyCache {
+    static final int MAX_SHAPES = 4;
+
+    /**
+     * Where the property is in objects of a shape: a slot, or -1 if
+     * they do not have it; and for a set that adds it, the next shape.
+     */
+    private static final class Entry {
+        final Shape shape;
+        final int slot;
+        final Shape next;
+        final Entry rest;
+        final int count;
+
+        Entry(Shape shape, int slot, Shape next, Entry rest) {
+            this.shape = shape;
+            this.slot = slot;
+            this.next = next;
+            this.rest = rest;
+            this.count = (rest == null) ? 1 : rest.count + 1;
+        }
+    }
+
+    final String name;
+    private volatile Entry entries;
+    private volatile boolean megamorphic;
+
+    PropertyCache(String name) {
+        this.name = name;
+    }
+
+    /**
+     * The property of v, or null if v is not an object or has no such
+     * property.
+     */
+    Value get(Value v) {
+        if (!(v instanceof ObjectVal))
+            return NullVal.NULL;
+        ObjectVal o = (ObjectVal) v;
+        Shape shape = o.shape();
+        for (Entry e = entries; e != null; e = e.rest) {
+            if (e.shape == shape)
+                return o.slot(e.slot);
+        }
+        if (shape.isDictionary())
+            return o.get(name);
+        int slot = shape.slotOf(name);
+        remember(shape, slot, null);
+        return o.slot(slot);
+    }
+
+    /**
+     * Sets the property of v, adding it if v has none, and returns x.
+     * Setting a property of anything but an object is an error.
+     */
+    Value set(Value v, Value x) {
+        if (!(v instanceof ObjectVal))
+            throw new RuntimeException("error: cannot set property " + name + " of " + v);
+        ObjectVal o = (ObjectVal) v;
+        Shape shape = o.shape();
+        for (Entry e = entries; e != null; e = e.rest) {
+            if (e.shape == shape) {
+                if (e.next != null)
+                    o.add(e.next, x);
+                else
+                    o.setSlot(e.slot, x);
+                return x;
+            }
+        }
+        if (shape.isDictionary()) {
+            o.put(name, x);
+            return x;
+        }
+        int slot = shape.slotOf(name);
+        if (slot >= 0) {
+            remember(shape, slot, null);
+            o.setSlot(slot, x);
+            return x;
+        }
+        Shape next = shape.with(name);
+        if (next == null) {
+            // one property too many: the object moves to a map
+            o.put(name, x);
+            return x;
+        }
+        remember(shape, next.size() - 1, next);
+        o.add(next, x);
+        return x;
+    }
+
+    private void remember(Shape shape, int slot, Shape next) {
+        Entry e = entries;
+        if (e != null && e.count == MAX_SHAPES) {
+            megamorphic = true;
+            return;
+        }
+        entries = new Entry(shape, slot, next, e);
+    }
+
+    /**
+     * The number of shapes remembered.
+     */
+    int shapes() {
+        Entry e = entries;
+        return (e == null) ? 0 : e.count;
+    }
+
+    boolean isMegamorphic() {
+        return megamorphic;
+    }
+}
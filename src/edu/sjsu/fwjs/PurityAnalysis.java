@@ -0,0 +1,236 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the functions of a program whose calls can be memoized, and
+ * marks them so that their closures remember their results.
+ * Run once on the whole program, after the ScopeResolver.
+ *
+ * Only functions bound by a top-level <code>var f = function...</code>
+ * statement are considered, when f is never declared again nor assigned
+ * anywhere in the program, so that f always names that function once it
+ * is declared.  Such a function is pure if its body:
+ * <ul>
+ * <li>does not print,
+ * <li>only assigns its own locals,
+ * <li>declares no functions,
+ * <li>makes and sets no arrays or objects (each call must make its own),
+ * <li>reads no variables but its own locals and pure functions declared
+ *     at or before its own declaration (so already declared when it runs),
+ * <li>calls only those pure functions, by name.
+ * </ul>
+ * Its result then only depends on its arguments.  Functions calling each
+ * other are pure unless one of them is not.
+ *
+ * This cannot be used with programs run a statement at a time, as a
+ * later statement could assign f.
+ */
+class PurityAnalysis {
+    /**
+     * A candidate function, and what it refers to.
+     */
+    private static class Function {
+        final int index;
+        final FunctionDeclExpr decl;
+        final Set<String> refs = new HashSet<String>();
+        boolean impure;
+
+        Function(int index, FunctionDeclExpr decl) {
+            this.index = index;
+            this.decl = decl;
+        }
+    }
+
+    /**
+     * Counts the declarations and assignments of each global.
+     */
+    private static class GlobalCollector extends ExpressionScanner {
+        final Map<String,Integer> declarations = new HashMap<String,Integer>();
+        final Set<String> assigned = new HashSet<String>();
+
+        @Override
+        public Void visitVarDecl(VarDeclExpr e) {
+            if (e.slot < 0)
+                declarations.merge(e.varName, 1, Integer::sum);
+            return super.visitVarDecl(e);
+        }
+
+        @Override
+        public Void visitAssign(AssignExpr e) {
+            if (e.slot < 0)
+                assigned.add(e.varName);
+            return super.visitAssign(e);
+        }
+    }
+
+    /**
+     * Checks the body of a candidate, noting the globals it refers to.
+     */
+    private static class BodyChecker extends ExpressionScanner {
+        private final Function fn;
+        private final Set<String> globals;
+
+        BodyChecker(Function fn, Set<String> globals) {
+            this.fn = fn;
+            this.globals = globals;
+        }
+
+        /**
+         * A local other than a parameter is read by name until it is
+         * declared, so it must not share its name with a global.
+         */
+        private void local(String name) {
+            if (!fn.decl.params.contains(name) && globals.contains(name))
+                fn.impure = true;
+        }
+
+        @Override
+        public Void visitVar(VarExpr e) {
+            if (e.slot < 0)
+                fn.refs.add(e.varName);
+            else
+                local(e.varName);
+            return null;
+        }
+
+        @Override
+        public Void visitAssign(AssignExpr e) {
+            if (e.slot < 0 || e.depth != 0)
+                fn.impure = true;
+            else
+                local(e.varName);
+            return super.visitAssign(e);
+        }
+
+        @Override
+        public Void visitVarDecl(VarDeclExpr e) {
+            local(e.varName);
+            return super.visitVarDecl(e);
+        }
+
+        @Override
+        public Void visitPrint(PrintExpr e) {
+            fn.impure = true;
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionDecl(FunctionDeclExpr e) {
+            fn.impure = true;
+            return null;
+        }
+
+        @Override
+        public Void visitArray(ArrayExpr e) {
+            fn.impure = true;
+            return null;
+        }
+
+        @Override
+        public Void visitIndexAssign(IndexAssignExpr e) {
+            fn.impure = true;
+            return null;
+        }
+
+        @Override
+        public Void visitObject(ObjectExpr e) {
+            fn.impure = true;
+            return null;
+        }
+
+        @Override
+        public Void visitSetProp(SetPropExpr e) {
+            fn.impure = true;
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionApp(FunctionAppExpr e) {
+            if (!(e.f instanceof VarExpr) || ((VarExpr) e.f).slot >= 0)
+                fn.impure = true;
+            return super.visitFunctionApp(e);
+        }
+    }
+
+    /**
+     * Marks the pure functions of a program so that each of their
+     * closures remembers up to capacity results, and returns the stats
+     * of each, in program order.
+     */
+    static List<MemoStats> memoize(Expression prog, int capacity) {
+        if (prog == null)
+            return new ArrayList<MemoStats>();
+        GlobalCollector collector = new GlobalCollector();
+        prog.accept(collector);
+        Set<String> globals = new HashSet<String>(collector.declarations.keySet());
+        globals.addAll(collector.assigned);
+
+        Map<String,Function> functions = new LinkedHashMap<String,Function>();
+        List<Expression> statements = new ArrayList<Expression>();
+        flatten(prog, statements);
+        for (int i = 0; i < statements.size(); i++) {
+            if (!(statements.get(i) instanceof VarDeclExpr))
+                continue;
+            VarDeclExpr d = (VarDeclExpr) statements.get(i);
+            if (d.exp instanceof FunctionDeclExpr && collector.declarations.get(d.varName) == 1
+                    && !collector.assigned.contains(d.varName))
+                functions.put(d.varName, new Function(i, (FunctionDeclExpr) d.exp));
+        }
+        for (Function fn : functions.values()) {
+            if (fn.decl.body != null)
+                fn.decl.body.accept(new BodyChecker(fn, globals));
+        }
+
+        // drop impure functions, and the ones referring to them, until
+        // all the ones left refer only to each other
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Function fn : functions.values()) {
+                if (fn.impure)
+                    continue;
+                for (String ref : fn.refs) {
+                    Function f = functions.get(ref);
+                    if (f == null || f.impure || f.index > fn.index) {
+                        fn.impure = true;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        List<MemoStats> stats = new ArrayList<MemoStats>();
+        for (Function fn : functions.values()) {
+            if (fn.impure)
+                continue;
+            FunctionDeclExpr d = fn.decl;
+            String name = (d.name != null) ? d.name : "<anonymous>";
+            d.memo = new MemoStats(name + ":" + d.line + ":" + d.column, capacity);
+            stats.add(d.memo);
+        }
+        return stats;
+    }
+
+    /**
+     * The top-level statements of a program, in order.
+     */
+    private static void flatten(Expression e, List<Expression> statements) {
+        if (e instanceof BlockExpr) {
+            for (Expression stmt : ((BlockExpr) e).stmts)
+                flatten(stmt, statements);
+        } else if (e instanceof SeqExpr) {
+            flatten(((SeqExpr) e).e1, statements);
+            flatten(((SeqExpr) e).e2, statements);
+        } else if (e != null) {
+            statements.add(e);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package edu.sjsu.fwjs;
+
+/**
+ * Thrown when a script goes over one of its ResourceLimits.
+ * The execution is abandoned; the script itself can be run again.
+ */
+public class ResourceLimitExceeded extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public enum Limit { STEPS, CALL_DEPTH, TIME, ALLOCATIONS }
+
+    private final Limit limit;
+
+    public ResourceLimitExceeded(Limit limit, String message) {
+        super(message);
+        this.limit = limit;
+    }
+
+    public Limit getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,64 @@
+package edu.sjsu.fwjs;
+
+import java.time.Duration;
+
+/**
+ * The resources one execution of a script may use.
+ * Limits are immutable; each with method returns a copy with one limit
+ * changed.  A negative limit (the default) means no limit.
+ *
+ * <pre>
+ *   ResourceLimits limits = ResourceLimits.NONE
+ *       .withMaxSteps(1_000_000)
+ *       .withTimeout(Duration.ofMillis(50));
+ * </pre>
+ *
+ * A step is a loop iteration or a function call.  Call depth counts the
+ * calls in progress (tail calls replace their caller).  Allocations are
+ * approximate: the frames of calls and the closures created.  Steps and
+ * allocations are counted over all the tasks a script spawns, while each
+ * task has a call depth of its own.
+ */
+public final class ResourceLimits {
+    public static final ResourceLimits NONE = new ResourceLimits(-1, -1, -1, -1);
+
+    final long maxSteps;
+    final int maxCallDepth;
+    final long timeoutNanos;
+    final long maxAllocations;
+
+    private ResourceLimits(long maxSteps, int maxCallDepth, long timeoutNanos, long maxAllocations) {
+        this.maxSteps = maxSteps;
+        this.maxCallDepth = maxCallDepth;
+        this.timeoutNanos = timeoutNanos;
+        this.maxAllocations = maxAllocations;
+    }
+
+    public ResourceLimits withMaxSteps(long maxSteps) {
+        return new ResourceLimits(maxSteps, maxCallDepth, timeoutNanos, maxAllocations);
+    }
+
+    public ResourceLimits withMaxCallDepth(int maxCallDepth) {
+        return new ResourceLimits(maxSteps, maxCallDepth, timeoutNanos, maxAllocations);
+    }
+
+    public ResourceLimits withTimeout(Duration timeout) {
+        return new ResourceLimits(maxSteps, maxCallDepth, timeout.toNanos(), maxAllocations);
+    }
+
+    public ResourceLimits withMaxAllocations(long maxAllocations) {
+        return new ResourceLimits(maxSteps, maxCallDepth, timeoutNanos, maxAllocations);
+    }
+
+    boolean isUnlimited() {
+        return maxSteps < 0 && maxCallDepth < 0 && timeoutNanos < 0 && maxAllocations < 0;
+    }
+
+    /**
+     * A budget of these limits for one execution starting now, or null
+     * if there are no limits to enforce.
+     */
+    Budget newBudget() {
+        return isUnlimited() ? null : new Budget(this);
+    }
+}
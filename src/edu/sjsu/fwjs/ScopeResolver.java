@@ -0,0 +1,141 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves the variables of a program to frame addresses.
+ * Run once on the tree built by the ExpressionBuilderVisitor.
+ *
+ * Every parameter and <code>var</code> of a function gets a slot in the
+ * function's frame, and every reference to it is given the number of
+ * frames out (depth) and the slot it lives in. References to anything
+ * else are globals, and are looked up by name in the program's frame.
+ *
+ * Declarations still happen at run time, so a reference to a local that
+ * has not been declared yet falls back to a lookup by name, the same as
+ * before the pass. Undeclared assignment still creates a global.
+ */
+class ScopeResolver extends ExpressionScanner {
+    /**
+     * The variables of one function.
+     */
+    private static class Scope {
+        final Scope parent;
+        final Map<String,Integer> slots = new HashMap<String,Integer>();
+        final List<String> names = new ArrayList<String>();
+
+        Scope(Scope parent) {
+            this.parent = parent;
+        }
+
+        int declare(String name) {
+            Integer slot = slots.get(name);
+            if (slot == null) {
+                slot = names.size();
+                slots.put(name, slot);
+                names.add(name);
+            }
+            return slot;
+        }
+    }
+
+    /**
+     * Collects the <code>var</code> declarations of a function body,
+     * not counting the ones of nested functions, and notes whether
+     * there are nested functions, which capture the frame.
+     */
+    private static class DeclCollector extends ExpressionScanner {
+        private final Scope scope;
+        boolean nestsFunctions;
+
+        DeclCollector(Scope scope) {
+            this.scope = scope;
+        }
+
+        @Override
+        public Void visitVarDecl(VarDeclExpr e) {
+            scope.declare(e.varName);
+            return super.visitVarDecl(e);
+        }
+
+        @Override
+        public Void visitFunctionDecl(FunctionDeclExpr e) {
+            nestsFunctions = true;
+            return null;
+        }
+    }
+
+    // null while resolving the top level of the program
+    private Scope scope;
+
+    /**
+     * Resolves all variables of the program, in place.
+     */
+    public static Expression resolve(Expression prog) {
+        if (prog != null)
+            prog.accept(new ScopeResolver());
+        return prog;
+    }
+
+    @Override
+    public Void visitVar(VarExpr e) {
+        int depth = 0;
+        for (Scope s = scope; s != null; s = s.parent, depth++) {
+            Integer slot = s.slots.get(e.varName);
+            if (slot != null) {
+                e.depth = depth;
+                e.slot = slot;
+                return null;
+            }
+        }
+        e.depth = depth;
+        e.slot = -1;
+        return null;
+    }
+
+    @Override
+    public Void visitAssign(AssignExpr e) {
+        super.visitAssign(e);
+        int depth = 0;
+        for (Scope s = scope; s != null; s = s.parent, depth++) {
+            Integer slot = s.slots.get(e.varName);
+            if (slot != null) {
+                e.depth = depth;
+                e.slot = slot;
+                return null;
+            }
+        }
+        e.depth = depth;
+        e.slot = -1;
+        return null;
+    }
+
+    @Override
+    public Void visitVarDecl(VarDeclExpr e) {
+        super.visitVarDecl(e);
+        e.slot = (scope == null) ? -1 : scope.slots.get(e.varName);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionDecl(FunctionDeclExpr e) {
+        Scope fnScope = new Scope(scope);
+        int[] paramSlots = new int[e.params.size()];
+        for (int i = 0; i < paramSlots.length; i++)
+            paramSlots[i] = fnScope.declare(e.params.get(i));
+        DeclCollector decls = new DeclCollector(fnScope);
+        decls.scan(e.body);
+
+        Scope saved = scope;
+        scope = fnScope;
+        scan(e.body);
+        scope = saved;
+
+        e.layout = new FrameLayout(fnScope.names.toArray(new String[0]), paramSlots,
+                decls.nestsFunctions);
+        return null;
+    }
+}
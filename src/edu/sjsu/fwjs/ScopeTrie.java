@@ -0,0 +1,225 @@
+package edu.sjsu.fwjs;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * The variables of a global Environment, once they are too many for its
+ * slots or it is copied: a hash array mapped trie from names to values.
+ *
+ * Each node maps 5 bits of the hash of a name to either an entry (the
+ * name and its value) or a node for the next 5 bits; the bits in use
+ * are set in its bitmap, so it holds no empty cells.  Names whose hashes
+ * are equal share a last, linear node.
+ *
+ * copy() is O(1): the two tries share all their nodes.  Each trie
+ * writes in place the nodes it owns (those created since it was last
+ * copied), and copies the others along the path to the name it writes,
+ * so a copy costs only what is written to it afterwards.  The nodes a
+ * trie owns have room to grow, so that adding a name to one does not
+ * copy its cells.
+ *
+ * Another thread may read a trie once it is shared (see Environment):
+ * from then on nodes are published whole, and a write in place only
+ * ever replaces a value or a child node, never a name, so a reader sees
+ * each entry either as it was or as it is.
+ */
+final class ScopeTrie {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    /**
+     * The shift past the last bits of the hash: nodes this deep are
+     * linear lists of the names of equal hash.
+     */
+    private static final int COLLISIONS = 35;
+    private static final int MAX_CELLS = 2 << BITS;
+
+    /**
+     * A node.  The cells of array are pairs: a name and its value, or
+     * null and a child node, followed by room for more.
+     */
+    private static final class Node {
+        final Object edit;
+        final int bitmap;
+        final Object[] array;
+
+        Node(Object edit, int bitmap, Object[] array) {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+    }
+
+    private static final Node EMPTY = new Node(null, 0, new Object[0]);
+
+    // the owner of the nodes this trie may write in place
+    private Object edit = this;
+    private Node root;
+    private int size;
+    private boolean shared;
+    private boolean added;
+
+    ScopeTrie() {
+        this.root = EMPTY;
+    }
+
+    private ScopeTrie(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * A trie of the same variables, sharing all the nodes of this one.
+     */
+    ScopeTrie copy() {
+        // the nodes are now shared: neither trie may write them in place
+        edit = new Object();
+        return new ScopeTrie(root, size);
+    }
+
+    /**
+     * Makes the trie safe to read from other threads while it is written.
+     */
+    void share() {
+        shared = true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * The value of a name, or null if it has none.
+     */
+    Value get(String name) {
+        int hash = name.hashCode();
+        Node n = root;
+        for (int shift = 0; ; shift += BITS) {
+            Object[] a = n.array;
+            if (shift >= COLLISIONS) {
+                for (int i = 0; i < a.length; i += 2) {
+                    if (name.equals(a[i]))
+                        return (Value) a[i + 1];
+                }
+                return null;
+            }
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((n.bitmap & bit) == 0)
+                return null;
+            int i = 2 * Integer.bitCount(n.bitmap & (bit - 1));
+            Object k = a[i];
+            if (k != null)
+                return name.equals(k) ? (Value) a[i + 1] : null;
+            n = (Node) a[i + 1];
+        }
+    }
+
+    /**
+     * Sets the value of a name, adding the name if it has none.
+     */
+    void put(String name, Value v) {
+        added = false;
+        root = put(root, 0, name.hashCode(), name, v);
+        if (added)
+            size++;
+    }
+
+    /**
+     * Calls f with each name and its value, in no particular order.
+     */
+    void forEach(BiConsumer<String,Value> f) {
+        forEach(root, f);
+    }
+
+    private static void forEach(Node n, BiConsumer<String,Value> f) {
+        Object[] a = n.array;
+        // nodes of equal hashes have no bitmap, and no room to grow
+        int used = (n.bitmap != 0) ? 2 * Integer.bitCount(n.bitmap) : a.length;
+        for (int i = 0; i < used; i += 2) {
+            if (a[i] != null)
+                f.accept((String) a[i], (Value) a[i + 1]);
+            else
+                forEach((Node) a[i + 1], f);
+        }
+    }
+
+    /**
+     * Puts the name in the subtrie of n, and returns the node to hold
+     * in place of n: n itself if it was written in place.
+     */
+    private Node put(Node n, int shift, int hash, String name, Value v) {
+        Object[] a = n.array;
+        if (shift >= COLLISIONS) {
+            for (int i = 0; i < a.length; i += 2) {
+                if (name.equals(a[i]))
+                    return set(n, i + 1, v);
+            }
+            added = true;
+            Object[] b = Arrays.copyOf(a, a.length + 2);
+            b[a.length] = name;
+            b[a.length + 1] = v;
+            return new Node(edit, 0, b);
+        }
+        int bit = 1 << ((hash >>> shift) & MASK);
+        int i = 2 * Integer.bitCount(n.bitmap & (bit - 1));
+        if ((n.bitmap & bit) == 0) {
+            added = true;
+            int used = 2 * Integer.bitCount(n.bitmap);
+            if (n.edit == edit && !shared && used < a.length) {
+                // no one else can see the node: move its cells over, and
+                // replace it, so that its bitmap and cells stay final
+                System.arraycopy(a, i, a, i + 2, used - i);
+                a[i] = name;
+                a[i + 1] = v;
+                return new Node(edit, n.bitmap | bit, a);
+            }
+            Object[] b = new Object[Math.min(Math.max(4, 2 * (used + 2)), MAX_CELLS)];
+            System.arraycopy(a, 0, b, 0, i);
+            b[i] = name;
+            b[i + 1] = v;
+            System.arraycopy(a, i, b, i + 2, used - i);
+            return new Node(edit, n.bitmap | bit, b);
+        }
+        Object k = a[i];
+        if (k == null) {
+            Node child = (Node) a[i + 1];
+            Node c = put(child, shift + BITS, hash, name, v);
+            return (c == child) ? n : set(n, i + 1, c);
+        }
+        if (name.equals(k))
+            return set(n, i + 1, v);
+        // two names in one cell: move them down to a new node, and
+        // replace this one, as its cell changes from an entry to a node
+        added = true;
+        String other = (String) k;
+        Object[] b = a.clone();
+        b[i] = null;
+        b[i + 1] = pair(shift + BITS, other.hashCode(), other, (Value) a[i + 1], hash, name, v);
+        return new Node(edit, n.bitmap, b);
+    }
+
+    /**
+     * Sets cell i of n, in place if this trie owns n.
+     */
+    private Node set(Node n, int i, Object x) {
+        if (n.edit == edit) {
+            n.array[i] = x;
+            return n;
+        }
+        Object[] b = n.array.clone();
+        b[i] = x;
+        return new Node(edit, n.bitmap, b);
+    }
+
+    private Node pair(int shift, int h1, String k1, Value v1, int h2, String k2, Value v2) {
+        if (shift >= COLLISIONS)
+            return new Node(edit, 0, new Object[] { k1, v1, k2, v2 });
+        int b1 = (h1 >>> shift) & MASK;
+        int b2 = (h2 >>> shift) & MASK;
+        if (b1 == b2)
+            return new Node(edit, 1 << b1, new Object[] { null, pair(shift + BITS, h1, k1, v1, h2, k2, v2) });
+        if (b1 < b2)
+            return new Node(edit, (1 << b1) | (1 << b2), new Object[] { k1, v1, k2, v2 });
+        return new Node(edit, (1 << b1) | (1 << b2), new Object[] { k2, v2, k1, v1 });
+    }
+}
@@ -0,0 +1,84 @@
+package edu.sjsu.fwjs;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The hidden class of an object: the names of its properties, in the
+ * order of their slots.
+ *
+ * Shapes form a tree rooted at EMPTY: adding a property to an object
+ * moves it to the child of its shape for that name, which is made
+ * once and shared by every object that gets the same properties in the
+ * same order.  So objects built alike have the very same shape, and a
+ * PropertyCache can tell where a property is by comparing shapes.
+ *
+ * An object with more than MAX_PROPERTIES properties keeps them in a
+ * map instead, and has the DICTIONARY shape, which is never cached.
+ * As property names only come from the source text of programs, the
+ * tree grows no larger than the programs that are run.
+ */
+final class Shape {
+    static final int MAX_PROPERTIES = 32;
+
+    static final Shape EMPTY = new Shape(new String[0]);
+    static final Shape DICTIONARY = new Shape(new String[0]);
+
+    private final String[] keys;
+    // the children of this shape, by the name they add
+    private Map<String,Shape> transitions;
+
+    private Shape(String[] keys) {
+        this.keys = keys;
+    }
+
+    int size() {
+        return keys.length;
+    }
+
+    String key(int slot) {
+        return keys[slot];
+    }
+
+    boolean isDictionary() {
+        return this == DICTIONARY;
+    }
+
+    /**
+     * The slot of a property, or -1 if objects of this shape do not
+     * have it.
+     */
+    int slotOf(String name) {
+        String[] ks = keys;
+        for (int i = 0; i < ks.length; i++) {
+            if (ks[i] == name || ks[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * The shape of objects of this shape once they get a new property
+     * name, or null if they would have too many.
+     */
+    synchronized Shape with(String name) {
+        if (keys.length == MAX_PROPERTIES)
+            return null;
+        if (transitions == null)
+            transitions = new HashMap<String,Shape>();
+        Shape next = transitions.get(name);
+        if (next == null) {
+            String[] ks = Arrays.copyOf(keys, keys.length + 1);
+            ks[keys.length] = name;
+            next = new Shape(ks);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+
+    @Override
+    public String toString() {
+        return isDictionary() ? "{dictionary}" : Arrays.toString(keys);
+    }
+}
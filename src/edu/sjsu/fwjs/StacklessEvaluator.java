@@ -0,0 +1,485 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs an expression tree without recursing in Java for FWJS calls.
+ *
+ * The work left to do is kept on a stack of continuations, each a node,
+ * the step of the node to resume at, and its environment; the values
+ * of evaluated subexpressions are kept on a value stack.  A call pushes
+ * a return marker and the body of the function, so recursion depth is
+ * bounded by the size of these stacks (see maxFrames), not by the
+ * thread stack.  A call whose continuation is a return marker is a tail
+ * call, and replaces the caller instead of pushing a marker.  The
+ * environment of a marker is the frame of its call, which is given
+ * back to the FrameStack on return if it was taken from it.
+ *
+ * Subexpressions that make no calls (outside of the functions they
+ * declare) are evaluated recursively with evaluate(), which is much
+ * faster and only recurses as deep as the expression is nested.  So is
+ * any node that cannot be visited, and closures whose bodies belong to
+ * another engine are called with apply().  A memoized closure returns
+ * a remembered result without a call; otherwise a MemoStore below the
+ * marker remembers the result of the call.
+ *
+ * An evaluator is for one thread at a time.  It can run any number of
+ * programs, one after another, and keeps what it learns about their
+ * nodes; so reuse one for a program run many times, but not for a
+ * stream of programs that should not be kept in memory.
+ */
+class StacklessEvaluator {
+    /** The continuation of a call, where its frame is popped. */
+    private static final Expression RETURN = new ValueExpr(NullVal.NULL);
+
+    /**
+     * The continuation of a memoized call, after its RETURN, where its
+     * result is remembered.
+     */
+    private static final class MemoStore implements Expression {
+        final MemoCache memo;
+        final Object key;
+
+        MemoStore(MemoCache memo, Object key) {
+            this.memo = memo;
+            this.key = key;
+        }
+
+        public <R> R accept(ExpressionVisitor<R> v) {
+            throw new UnsupportedOperationException("continuations cannot be visited");
+        }
+
+        public Value evaluate(Environment env) {
+            throw new UnsupportedOperationException("continuations cannot be evaluated");
+        }
+    }
+
+    private final int maxFrames;
+    private final Map<Expression,Boolean> makesCalls = new IdentityHashMap<Expression,Boolean>();
+    private final CallFinder callFinder = new CallFinder();
+    private FrameStack frames;
+    private int mark;
+
+    private Expression[] nodes = new Expression[64];
+    private int[] steps = new int[64];
+    private Environment[] envs = new Environment[64];
+    private int top;
+
+    private Value[] values = new Value[64];
+    private int sp;
+
+    /**
+     * An evaluator whose continuation stack may hold up to maxFrames
+     * entries.  Going over it throws ResourceLimitExceeded.
+     */
+    StacklessEvaluator(int maxFrames) {
+        this.maxFrames = maxFrames;
+    }
+
+    StacklessEvaluator() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Evaluates a program (or any expression) in the given environment.
+     */
+    Value evaluate(Expression prog, Environment globalEnv) {
+        if (prog == null)
+            return NullVal.NULL;
+        frames = FrameStack.current();
+        mark = frames.mark();
+        try {
+            return run(prog, globalEnv);
+        } finally {
+            frames.reset(mark);
+            Arrays.fill(envs, 0, top, null);
+        }
+    }
+
+    private Value run(Expression prog, Environment globalEnv) {
+        Budget budget = globalEnv.budget();
+        top = 0;
+        sp = 0;
+        push(prog, 0, globalEnv);
+        while (top > 0) {
+            top--;
+            Expression e = nodes[top];
+            int step = steps[top];
+            Environment env = envs[top];
+            envs[top] = null;
+
+            if (e == RETURN) {
+                if (budget != null)
+                    budget.exit();
+                frames.release(env, mark);
+                continue;
+            }
+            if (e instanceof MemoStore) {
+                MemoStore store = (MemoStore) e;
+                store.memo.put(store.key, values[sp - 1]);
+                continue;
+            }
+            if (step == 0 && !makesCalls(e)) {
+                value(e.evaluate(env));
+                continue;
+            }
+
+            if (e instanceof BlockExpr) {
+                Expression[] stmts = ((BlockExpr) e).stmts;
+                if (step > 0)
+                    sp--;
+                if (step < stmts.length - 1)
+                    push(e, step + 1, env);
+                push(stmts[step], 0, env);
+            } else if (e instanceof BinOpExpr) {
+                BinOpExpr b = (BinOpExpr) e;
+                while (b.replacement != null)
+                    b = b.replacement;
+                if (step == 0) {
+                    push(b, 1, env);
+                    push(b.e1, 0, env);
+                } else if (step == 1) {
+                    push(b, 2, env);
+                    push(b.e2, 0, env);
+                } else {
+                    Value right = values[--sp];
+                    values[sp - 1] = BinOpExpr.apply(b.op, values[sp - 1], right);
+                }
+            } else if (e instanceof FunctionAppExpr) {
+                call((FunctionAppExpr) e, step, env, budget);
+            } else if (e instanceof IfExpr) {
+                IfExpr i = (IfExpr) e;
+                if (step == 0 && makesCalls(i.cond)) {
+                    push(i, 1, env);
+                    push(i.cond, 0, env);
+                    continue;
+                }
+                boolean b = (step == 0) ? i.test.test(env) : Condition.toBoolean(values[--sp]);
+                if (b)
+                    push(i.thn, 0, env);
+                else if (i.els != null)
+                    push(i.els, 0, env);
+                else
+                    value(NullVal.NULL);
+            } else if (e instanceof WhileExpr) {
+                WhileExpr w = (WhileExpr) e;
+                if (step == 2) {
+                    // the end of an iteration
+                    sp--;
+                    if (budget != null)
+                        budget.step();
+                    step = 0;
+                }
+                if (step == 0 && makesCalls(w.cond)) {
+                    push(w, 1, env);
+                    push(w.cond, 0, env);
+                    continue;
+                }
+                boolean b = (step == 0) ? w.test.test(env) : Condition.toBoolean(values[--sp]);
+                if (b) {
+                    push(w, 2, env);
+                    push(w.body, 0, env);
+                } else {
+                    value(NullVal.NULL);
+                }
+            } else if (e instanceof SeqExpr) {
+                SeqExpr s = (SeqExpr) e;
+                if (step == 0) {
+                    push(s, 1, env);
+                    push(s.e1, 0, env);
+                } else {
+                    sp--;
+                    push(s.e2, 0, env);
+                }
+            } else if (e instanceof PrintExpr) {
+                if (step == 0) {
+                    push(e, 1, env);
+                    push(((PrintExpr) e).exp, 0, env);
+                } else {
+                    env.out().print(values[sp - 1]);
+                }
+            } else if (e instanceof AssignExpr) {
+                AssignExpr a = (AssignExpr) e;
+                if (step == 0) {
+                    push(a, 1, env);
+                    push(a.e, 0, env);
+                } else {
+                    a.assign(env, values[sp - 1]);
+                }
+            } else if (e instanceof VarDeclExpr) {
+                VarDeclExpr d = (VarDeclExpr) e;
+                if (step == 0) {
+                    push(d, 1, env);
+                    push(d.exp, 0, env);
+                } else {
+                    d.declare(env, values[sp - 1]);
+                }
+            } else if (e instanceof ArrayExpr) {
+                List<Expression> elements = ((ArrayExpr) e).elements;
+                int n = elements.size();
+                if (step < n) {
+                    push(e, step + 1, env);
+                    push(elements.get(step), 0, env);
+                } else {
+                    Value[] vs = Arrays.copyOfRange(values, sp - n, sp);
+                    Arrays.fill(values, sp - n, sp, null);
+                    sp -= n;
+                    value(ArrayExpr.create(env, vs));
+                }
+            } else if (e instanceof IndexExpr) {
+                IndexExpr x = (IndexExpr) e;
+                if (step == 0) {
+                    push(x, 1, env);
+                    push(x.array, 0, env);
+                } else if (step == 1) {
+                    push(x, 2, env);
+                    push(x.index, 0, env);
+                } else {
+                    Value index = values[--sp];
+                    values[sp - 1] = IndexExpr.get(values[sp - 1], index);
+                }
+            } else if (e instanceof ObjectExpr) {
+                ObjectExpr o = (ObjectExpr) e;
+                int n = o.values.size();
+                if (step < n) {
+                    push(o, step + 1, env);
+                    push(o.values.get(step), 0, env);
+                } else {
+                    Value[] vs = Arrays.copyOfRange(values, sp - n, sp);
+                    Arrays.fill(values, sp - n, sp, null);
+                    sp -= n;
+                    value(o.create(env, vs));
+                }
+            } else if (e instanceof GetPropExpr) {
+                GetPropExpr g = (GetPropExpr) e;
+                if (step == 0) {
+                    push(g, 1, env);
+                    push(g.obj, 0, env);
+                } else {
+                    values[sp - 1] = g.cache.get(values[sp - 1]);
+                }
+            } else if (e instanceof SetPropExpr) {
+                SetPropExpr x = (SetPropExpr) e;
+                if (step < 2) {
+                    push(x, step + 1, env);
+                    push((step == 0) ? x.obj : x.e, 0, env);
+                } else {
+                    Value v = values[--sp];
+                    values[sp - 1] = x.cache.set(values[sp - 1], v);
+                }
+            } else if (e instanceof IndexAssignExpr) {
+                IndexAssignExpr x = (IndexAssignExpr) e;
+                if (step < 3) {
+                    push(x, step + 1, env);
+                    push((step == 0) ? x.array : (step == 1) ? x.index : x.e, 0, env);
+                } else {
+                    sp -= 2;
+                    values[sp - 1] = IndexAssignExpr.set(values[sp - 1], values[sp], values[sp + 1]);
+                    values[sp] = null;
+                    values[sp + 1] = null;
+                }
+            } else {
+                value(e.evaluate(env));
+            }
+        }
+        return values[--sp];
+    }
+
+    /**
+     * Evaluates the function and the arguments of a call, one step at a
+     * time, then makes the call.
+     */
+    private void call(FunctionAppExpr app, int step, Environment env, Budget budget) {
+        int n = app.args.size();
+        if (step == 0) {
+            push(app, 1, env);
+            push(app.f, 0, env);
+            return;
+        }
+        if (step == 1 && !(values[sp - 1] instanceof ClosureVal)) {
+            values[sp - 1] = NullVal.NULL;
+            return;
+        }
+        if (step <= n) {
+            push(app, step + 1, env);
+            push(app.args.get(step - 1), 0, env);
+            return;
+        }
+
+        List<Value> args = new ArrayList<Value>(n);
+        for (int i = sp - n; i < sp; i++)
+            args.add(values[i]);
+        Arrays.fill(values, sp - n, sp, null);
+        sp -= n;
+        ClosureVal c = (ClosureVal) values[--sp];
+        Expression body = c.body();
+        if (body instanceof Vm.Body || body instanceof BytecodeCompiler.CompiledBody) {
+            value(c.apply(args));
+            return;
+        }
+        boolean tail = top > 0 && nodes[top - 1] == RETURN;
+        MemoCache memo = tail ? null : c.memo();
+        Object key = (memo != null) ? memo.key(args) : null;
+        if (key != null) {
+            Value cached = memo.get(key);
+            if (cached != null) {
+                value(cached);
+                return;
+            }
+        }
+        if (tail)
+            frames.release(envs[top - 1], mark);
+        Environment local = c.bind(args, frames);
+        if (budget != null) {
+            if (tail) {
+                budget.step();
+                budget.allocate();
+            } else {
+                budget.enter();
+            }
+        }
+        if (tail) {
+            envs[top - 1] = local;
+        } else {
+            if (key != null)
+                push(new MemoStore(memo, key), 0, null);
+            push(RETURN, 0, local);
+        }
+        if (body == null)
+            value(NullVal.NULL);
+        else
+            push(body, 0, local);
+    }
+
+    private void push(Expression e, int step, Environment env) {
+        if (top == nodes.length) {
+            if (top >= maxFrames)
+                throw new ResourceLimitExceeded(ResourceLimitExceeded.Limit.CALL_DEPTH,
+                        "Script needed more than " + maxFrames + " frames of stack");
+            int capacity = (int) Math.min((long) top * 2, maxFrames);
+            nodes = Arrays.copyOf(nodes, capacity);
+            steps = Arrays.copyOf(steps, capacity);
+            envs = Arrays.copyOf(envs, capacity);
+        }
+        nodes[top] = e;
+        steps[top] = step;
+        envs[top] = env;
+        top++;
+    }
+
+    private void value(Value v) {
+        if (sp == values.length)
+            values = Arrays.copyOf(values, sp * 2);
+        values[sp++] = v;
+    }
+
+    /**
+     * Whether evaluating a node may make a call (not counting calls in the
+     * bodies of the functions it declares).  Bodies that are not trees
+     * are taken to make none, so that they are evaluated recursively.
+     */
+    private boolean makesCalls(Expression e) {
+        // the common cases, without a lookup
+        if (e == null || e instanceof VarExpr || e instanceof ValueExpr || e instanceof FunctionDeclExpr)
+            return false;
+        if (e instanceof FunctionAppExpr)
+            return true;
+        Boolean calls = makesCalls.get(e);
+        if (calls == null) {
+            calls = e.accept(callFinder);
+            makesCalls.put(e, calls);
+        }
+        return calls;
+    }
+
+    private class CallFinder implements ExpressionVisitor<Boolean> {
+        public Boolean visitValue(ValueExpr e) {
+            return false;
+        }
+
+        public Boolean visitVar(VarExpr e) {
+            return false;
+        }
+
+        public Boolean visitPrint(PrintExpr e) {
+            return makesCalls(e.exp);
+        }
+
+        public Boolean visitBinOp(BinOpExpr e) {
+            return makesCalls(e.e1) || makesCalls(e.e2);
+        }
+
+        public Boolean visitIf(IfExpr e) {
+            return makesCalls(e.cond) || makesCalls(e.thn) || makesCalls(e.els);
+        }
+
+        public Boolean visitWhile(WhileExpr e) {
+            return makesCalls(e.cond) || makesCalls(e.body);
+        }
+
+        public Boolean visitSeq(SeqExpr e) {
+            return makesCalls(e.e1) || makesCalls(e.e2);
+        }
+
+        public Boolean visitBlock(BlockExpr e) {
+            boolean calls = false;
+            for (Expression stmt : e.stmts)
+                calls |= makesCalls(stmt);
+            return calls;
+        }
+
+        public Boolean visitVarDecl(VarDeclExpr e) {
+            return makesCalls(e.exp);
+        }
+
+        public Boolean visitAssign(AssignExpr e) {
+            return makesCalls(e.e);
+        }
+
+        public Boolean visitFunctionDecl(FunctionDeclExpr e) {
+            return false;
+        }
+
+        public Boolean visitFunctionApp(FunctionAppExpr e) {
+            return true;
+        }
+
+        public Boolean visitArray(ArrayExpr e) {
+            boolean calls = false;
+            for (Expression element : e.elements)
+                calls |= makesCalls(element);
+            return calls;
+        }
+
+        public Boolean visitIndex(IndexExpr e) {
+            return makesCalls(e.array) || makesCalls(e.index);
+        }
+
+        public Boolean visitIndexAssign(IndexAssignExpr e) {
+            return makesCalls(e.array) || makesCalls(e.index) || makesCalls(e.e);
+        }
+
+        public Boolean visitObject(ObjectExpr e) {
+            boolean calls = false;
+            for (Expression value : e.values)
+                calls |= makesCalls(value);
+            return calls;
+        }
+
+        public Boolean visitGetProp(GetPropExpr e) {
+            return makesCalls(e.obj);
+        }
+
+        public Boolean visitSetProp(SetPropExpr e) {
+            return makesCalls(e.obj) || makesCalls(e.e);
+        }
+
+        public Boolean visitOpaque(OpaqueBody e) {
+            return false;
+        }
+    }
+}
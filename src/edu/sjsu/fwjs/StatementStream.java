@@ -0,0 +1,116 @@
+package edu.sjsu.fwjs;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.antlr.v4.runtime.CommonTokenFactory;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.UnbufferedCharStream;
+import org.antlr.v4.runtime.UnbufferedTokenStream;
+import org.antlr.v4.runtime.atn.ATNState;
+import org.antlr.v4.runtime.atn.RuleTransition;
+import org.antlr.v4.runtime.atn.Transition;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import edu.sjsu.fwjs.parser.FeatherweightJavaScriptLexer;
+import edu.sjsu.fwjs.parser.FeatherweightJavaScriptParser;
+
+/**
+ * Reads a program one top-level statement at a time, for running input
+ * as it arrives (e.g. a long script piped from another process).
+ *
+ * The input is lexed and parsed from unbuffered streams, which only keep
+ * the characters and tokens of the statement being parsed, and each
+ * parse tree is dropped once its statement is built.  So memory use is
+ * bounded by the largest statement, not by the size of the input.
+ *
+ * Statements are parsed in full LL mode, as the input cannot be read
+ * twice.  Each is parsed as the next statement of a whole program, so
+ * that syntax errors are recovered from as when the program is parsed
+ * at once: a statement the parser repairs (e.g. by inserting a missing
+ * <code>;</code>) is reported (to System.err) and run, and one it
+ * cannot is reported and skipped up to the start of the next.
+ */
+class StatementStream {
+    /**
+     * A parser that parses a statement as the next one of a program.
+     */
+    private static final class Parser extends FeatherweightJavaScriptParser {
+        Parser(TokenStream input) {
+            super(input);
+        }
+
+        StatContext stat(ProgContext prog, int state) {
+            _ctx = prog;
+            setState(state);
+            return stat();
+        }
+    }
+
+    private final Parser parser;
+    private final ExpressionBuilderVisitor builder = new ExpressionBuilderVisitor();
+    // the program the statements are parsed in, and the parser state
+    // of its call of stat
+    private final FeatherweightJavaScriptParser.ProgContext prog =
+            new FeatherweightJavaScriptParser.ProgContext(null, ATNState.INVALID_STATE_NUMBER);
+    private final int statState;
+
+    StatementStream(InputStream in) {
+        FeatherweightJavaScriptLexer lexer = new FeatherweightJavaScriptLexer(
+                new UnbufferedCharStream(in, 4096, StandardCharsets.UTF_8));
+        // the characters of a token are gone once it is lexed, so copy them
+        lexer.setTokenFactory(new CommonTokenFactory(true));
+        parser = new Parser(new UnbufferedTokenStream<Token>(lexer));
+        statState = statCall(parser);
+    }
+
+    private static int statCall(FeatherweightJavaScriptParser parser) {
+        for (ATNState state : parser.getATN().states) {
+            if (state == null || state.ruleIndex != FeatherweightJavaScriptParser.RULE_prog)
+                continue;
+            for (Transition t : state.getTransitions()) {
+                if (t instanceof RuleTransition
+                        && t.target.ruleIndex == FeatherweightJavaScriptParser.RULE_stat)
+                    return state.stateNumber;
+            }
+        }
+        throw new IllegalStateException("prog does not call stat");
+    }
+
+    /**
+     * Builds the next statement, or returns null at the end of the input.
+     * The statement is neither optimized nor resolved.
+     */
+    Expression next() {
+        while (parser.getInputStream().LA(1) != Token.EOF) {
+            int errors = parser.getNumberOfSyntaxErrors();
+            FeatherweightJavaScriptParser.StatContext stat = parser.stat(prog, statState);
+            // the program does not keep its statements
+            prog.children = null;
+            if (parser.getNumberOfSyntaxErrors() != errors && !repaired(stat))
+                continue;
+            Expression e = builder.visit(stat);
+            if (e != null)
+                return e;
+        }
+        return null;
+    }
+
+    /**
+     * Whether the parser recovered from the errors of a statement
+     * within the rules they were in, so that nothing of it is missing.
+     */
+    private static boolean repaired(ParserRuleContext ctx) {
+        if (ctx.exception != null)
+            return false;
+        if (ctx.children != null) {
+            for (ParseTree child : ctx.children) {
+                if (child instanceof ParserRuleContext && !repaired((ParserRuleContext) child))
+                    return false;
+            }
+        }
+        return true;
+    }
+}
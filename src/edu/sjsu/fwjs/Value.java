@@ -1,6 +1,15 @@
 package edu.sjsu.fwjs;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Values in FWJS.
@@ -13,10 +22,15 @@ public interface Value {}
 
 /**
  * Boolean values.
+ * Use BoolVal.of, which returns one of the two canonical instances.
  */
 class BoolVal implements Value {
-    private boolean boolVal;
-    public BoolVal(boolean b) { this.boolVal = b; }
+    static final BoolVal TRUE = new BoolVal(true);
+    static final BoolVal FALSE = new BoolVal(false);
+
+    private final boolean boolVal;
+    BoolVal(boolean b) { this.boolVal = b; }
+    static BoolVal of(boolean b) { return b ? TRUE : FALSE; }
     public boolean toBoolean() { return this.boolVal; }
     @Override
     public boolean equals(Object that) {
@@ -24,6 +38,10 @@ class BoolVal implements Value {
         return this.boolVal == ((BoolVal) that).boolVal;
     }
     @Override
+    public int hashCode() {
+        return Boolean.hashCode(this.boolVal);
+    }
+    @Override
     public String toString() {
         return "" + this.boolVal;
     }
@@ -31,49 +49,572 @@ class BoolVal implements Value {
 
 /**
  * Numbers.  Only integers are supported.
+ * Use IntVal.of, which returns cached instances for small integers.
+ * The cache covers -128 up to the value of the system property
+ * fwjs.intcache.high (1023 by default).
+ *
+ * Numbers that do not fit in an int are BigIntVals.  The arithmetic
+ * helpers here work on ints and check for overflow, so that a result
+ * too large for an int is promoted instead of wrapping around.
  */
 class IntVal implements Value {
-    private int i;
-    public IntVal(int i) { this.i = i; }
+    private static final int CACHE_LOW = -128;
+    private static final int CACHE_HIGH =
+            Math.max(127, Integer.getInteger("fwjs.intcache.high", 1023));
+    private static final IntVal[] CACHE = new IntVal[CACHE_HIGH - CACHE_LOW + 1];
+    static {
+        for (int i = 0; i < CACHE.length; i++)
+            CACHE[i] = new IntVal(i + CACHE_LOW);
+    }
+
+    private final int i;
+    IntVal(int i) { this.i = i; }
+    static IntVal of(int i) {
+        if (i >= CACHE_LOW && i <= CACHE_HIGH)
+            return CACHE[i - CACHE_LOW];
+        return new IntVal(i);
+    }
     public int toInt() { return this.i; }
+
+    static Value add(int l, int r) {
+        try {
+            return of(Math.addExact(l, r));
+        } catch (ArithmeticException e) {
+            return BigIntVal.of((long) l + r);
+        }
+    }
+
+    static Value subtract(int l, int r) {
+        try {
+            return of(Math.subtractExact(l, r));
+        } catch (ArithmeticException e) {
+            return BigIntVal.of((long) l - r);
+        }
+    }
+
+    static Value multiply(int l, int r) {
+        try {
+            return of(Math.multiplyExact(l, r));
+        } catch (ArithmeticException e) {
+            return BigIntVal.of((long) l * r);
+        }
+    }
+
+    /**
+     * The quotient, which overflows only for Integer.MIN_VALUE / -1.
+     * Dividing by zero throws an ArithmeticException.
+     */
+    static Value divide(int l, int r) {
+        if (r == -1 && l == Integer.MIN_VALUE)
+            return BigIntVal.of(-(long) l);
+        return of(l / r);
+    }
+
+    static Value mod(int l, int r) {
+        return of(l % r);
+    }
+
     @Override
     public boolean equals(Object that) {
         if (!(that instanceof IntVal)) return false;
         return this.i == ((IntVal) that).i;
     }
     @Override
+    public int hashCode() {
+        return this.i;
+    }
+    @Override
     public String toString() {
         return "" + this.i;
     }
 }
 
+/**
+ * Numbers too large for an int, which arithmetic on ints is promoted
+ * to when it overflows.
+ * Use BigIntVal.of, which returns an IntVal for numbers that fit in an
+ * int.  So each number has just one representation, and a BigIntVal
+ * is never equal to an IntVal.
+ */
+class BigIntVal implements Value {
+    private final BigInteger i;
+    private BigIntVal(BigInteger i) { this.i = i; }
+    static Value of(BigInteger i) {
+        if (i.bitLength() < Integer.SIZE)
+            return IntVal.of(i.intValue());
+        return new BigIntVal(i);
+    }
+    static Value of(long l) {
+        if ((int) l == l)
+            return IntVal.of((int) l);
+        return new BigIntVal(BigInteger.valueOf(l));
+    }
+    public BigInteger toBigInteger() { return this.i; }
+
+    /**
+     * The value of a number of either representation.
+     */
+    static BigInteger toBigInteger(Value v) {
+        if (v instanceof IntVal)
+            return BigInteger.valueOf(((IntVal) v).toInt());
+        return ((BigIntVal) v).i;
+    }
+
+    /**
+     * Applies an operator to numbers that are not both ints.
+     */
+    @SuppressWarnings("incomplete-switch")
+    static Value apply(Op op, BigInteger l, BigInteger r) {
+        switch (op) {
+            case ADD:
+                return of(l.add(r));
+            case SUBTRACT:
+                return of(l.subtract(r));
+            case MULTIPLY:
+                return of(l.multiply(r));
+            case DIVIDE:
+                return of(l.divide(r));
+            case MOD:
+                // the sign of the dividend, like % on ints
+                return of(l.remainder(r));
+            case GT:
+                return BoolVal.of(l.compareTo(r) > 0);
+            case GE:
+                return BoolVal.of(l.compareTo(r) >= 0);
+            case LT:
+                return BoolVal.of(l.compareTo(r) < 0);
+            case LE:
+                return BoolVal.of(l.compareTo(r) <= 0);
+            case EQ:
+                return BoolVal.of(l.equals(r));
+        }
+        return NullVal.NULL;
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        if (!(that instanceof BigIntVal)) return false;
+        return this.i.equals(((BigIntVal) that).i);
+    }
+    @Override
+    public int hashCode() {
+        return this.i.hashCode();
+    }
+    @Override
+    public String toString() {
+        return this.i.toString();
+    }
+}
+
+/**
+ * The null value.  Use the canonical NullVal.NULL.
+ */
 class NullVal implements Value {
+    static final NullVal NULL = new NullVal();
+
+    NullVal() {}
+
     @Override
     public boolean equals(Object that) {
         return (that instanceof NullVal);
     }
     @Override
+    public int hashCode() {
+        return 0;
+    }
+    @Override
     public String toString() {
         return "null";
     }
 }
 
+/**
+ * Arrays.
+ * The elements are stored in an int[] while they are all ints, and in a
+ * Value[] from the first one that is not, for good.  Reading an element
+ * out of range gives null; writing one just past the end appends it,
+ * and the storage grows by half when it is full.
+ *
+ * An array belongs to the global environment of the program that made
+ * it, so that a fork can tell the arrays of its origins (see
+ * Environment).
+ *
+ * As in JavaScript, == compares arrays by identity.  The elements of an
+ * array seen by several tasks race as shared variables do (see
+ * Environment); a read never fails, but a write may be lost to another
+ * that grows or widens the array.
+ */
+class ArrayVal implements Value {
+    // an int[] or a Value[], with room to grow
+    private Object elements;
+    private int length;
+    private final Environment owner;
+
+    private ArrayVal(Object elements, int length, Environment owner) {
+        this.elements = elements;
+        this.length = length;
+        this.owner = owner;
+    }
+
+    /**
+     * An array of the given elements, in an int[] if they are all ints.
+     */
+    static ArrayVal of(Value[] elements, Environment owner) {
+        int n = elements.length;
+        int[] ints = new int[Math.max(n, 4)];
+        for (int i = 0; i < n; i++) {
+            if (!(elements[i] instanceof IntVal))
+                return new ArrayVal(Arrays.copyOf(elements, Math.max(n, 4)), n, owner);
+            ints[i] = ((IntVal) elements[i]).toInt();
+        }
+        return new ArrayVal(ints, n, owner);
+    }
+
+    int length() {
+        return length;
+    }
+
+    Environment owner() {
+        return owner;
+    }
+
+    /**
+     * Whether the elements are stored as ints.
+     */
+    boolean isInts() {
+        return elements instanceof int[];
+    }
+
+    /**
+     * The element at index i, or null if there is none.
+     */
+    Value get(int i) {
+        if (i < 0 || i >= length)
+            return NullVal.NULL;
+        // another task may be growing the array: the storage seen may
+        // then be the old one, or not all written yet
+        Object es = elements;
+        if (es instanceof int[]) {
+            int[] ints = (int[]) es;
+            return (i < ints.length) ? IntVal.of(ints[i]) : NullVal.NULL;
+        }
+        Value[] values = (Value[]) es;
+        Value v = (i < values.length) ? values[i] : null;
+        return (v != null) ? v : NullVal.NULL;
+    }
+
+    /**
+     * Sets the element at index i, which can be at most the length.
+     */
+    void set(int i, Value v) {
+        int n = length;
+        if (i < 0 || i > n)
+            throw new RuntimeException("error: array index " + i + " out of range 0.." + n);
+        Object es = elements;
+        if (es instanceof int[]) {
+            int[] ints = (int[]) es;
+            if (v instanceof IntVal) {
+                if (i >= ints.length)
+                    elements = ints = Arrays.copyOf(ints, grow(i));
+                ints[i] = ((IntVal) v).toInt();
+            } else {
+                // widen, for good
+                Value[] values = new Value[Math.max(ints.length, grow(i))];
+                for (int j = 0; j < n && j < ints.length; j++)
+                    values[j] = IntVal.of(ints[j]);
+                values[i] = v;
+                elements = values;
+            }
+        } else {
+            Value[] values = (Value[]) es;
+            if (i >= values.length)
+                elements = values = Arrays.copyOf(values, grow(i));
+            values[i] = v;
+        }
+        if (i == n)
+            length = n + 1;
+    }
+
+    private static int grow(int capacity) {
+        return capacity + (capacity >> 1) + 1;
+    }
+
+    /**
+     * A new array of the same elements, belonging to owner.
+     */
+    ArrayVal copy(Environment owner) {
+        Object es = elements;
+        return new ArrayVal((es instanceof int[]) ? ((int[]) es).clone() : ((Value[]) es).clone(), length, owner);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        append(sb, new IdentityHashMap<Value,Boolean>());
+        return sb.toString();
+    }
+
+    /**
+     * Appends the elements in brackets, and an array that contains
+     * itself as [...] where it does.
+     */
+    void append(StringBuilder sb, Map<Value,Boolean> open) {
+        if (open.put(this, Boolean.TRUE) != null) {
+            sb.append("[...]");
+            return;
+        }
+        sb.append('[');
+        for (int i = 0; i < length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            appendElement(sb, get(i), open);
+        }
+        sb.append(']');
+        open.remove(this);
+    }
+
+    /**
+     * Appends an element of an array or an object.
+     */
+    static void appendElement(StringBuilder sb, Value v, Map<Value,Boolean> open) {
+        if (v instanceof ArrayVal)
+            ((ArrayVal) v).append(sb, open);
+        else if (v instanceof ObjectVal)
+            ((ObjectVal) v).append(sb, open);
+        else
+            sb.append(v);
+    }
+}
+
+/**
+ * Objects: properties named in the source, read with
+ * <code>obj.name</code> and set with <code>obj.name = e</code>.
+ * Reading a property an object does not have gives null, and setting
+ * one adds it.
+ *
+ * An object keeps its properties in slots, laid out by its Shape, which
+ * it shares with the objects that got the same properties in the same
+ * order; the PropertyCache of each access remembers where a property is
+ * in the shapes it sees.  Past Shape.MAX_PROPERTIES properties, an
+ * object moves them to a map for good (dictionary mode).
+ *
+ * Like an array, an object belongs to the global environment of the
+ * program that made it, == compares objects by identity, and the
+ * properties of an object seen by several tasks race as shared
+ * variables do.
+ */
+class ObjectVal implements Value {
+    private static final Value[] NO_SLOTS = new Value[0];
+
+    private Shape shape;
+    private Value[] slots;
+    // the properties, in dictionary mode; guarded by this
+    private Map<String,Value> dictionary;
+    private final Environment owner;
+
+    ObjectVal(Shape shape, Value[] slots, Environment owner) {
+        this.shape = shape;
+        this.slots = slots;
+        this.owner = owner;
+    }
+
+    /**
+     * An object without properties.
+     */
+    ObjectVal(Environment owner) {
+        this(Shape.EMPTY, NO_SLOTS, owner);
+    }
+
+    Shape shape() {
+        return shape;
+    }
+
+    Environment owner() {
+        return owner;
+    }
+
+    /**
+     * The value in slot i, or null if there is none.
+     */
+    Value slot(int i) {
+        // another task may be adding a property: the slots seen may
+        // then be the old ones
+        Value[] s = slots;
+        Value v = (i >= 0 && i < s.length) ? s[i] : null;
+        return (v != null) ? v : NullVal.NULL;
+    }
+
+    void setSlot(int i, Value v) {
+        slots[i] = v;
+    }
+
+    /**
+     * Adds a property, moving the object to next, a child of its shape.
+     */
+    void add(Shape next, Value v) {
+        int i = next.size() - 1;
+        Value[] s = slots;
+        if (i >= s.length)
+            slots = s = Arrays.copyOf(s, Math.min(Math.max(4, 2 * s.length), Shape.MAX_PROPERTIES));
+        s[i] = v;
+        shape = next;
+    }
+
+    /**
+     * The value of a property, or null if there is none.
+     */
+    Value get(String name) {
+        Shape s = shape;
+        if (s.isDictionary()) {
+            synchronized (this) {
+                Value v = dictionary.get(name);
+                return (v != null) ? v : NullVal.NULL;
+            }
+        }
+        return slot(s.slotOf(name));
+    }
+
+    /**
+     * Sets a property, adding it if there is none.
+     */
+    void put(String name, Value v) {
+        Shape s = shape;
+        if (!s.isDictionary()) {
+            int i = s.slotOf(name);
+            if (i >= 0) {
+                setSlot(i, v);
+                return;
+            }
+            Shape next = s.with(name);
+            if (next != null) {
+                add(next, v);
+                return;
+            }
+            toDictionary();
+        }
+        synchronized (this) {
+            dictionary.put(name, v);
+        }
+    }
+
+    private synchronized void toDictionary() {
+        if (shape.isDictionary())
+            return;
+        Map<String,Value> map = new LinkedHashMap<String,Value>();
+        for (int i = 0; i < shape.size(); i++)
+            map.put(shape.key(i), slot(i));
+        dictionary = map;
+        shape = Shape.DICTIONARY;
+    }
+
+    /**
+     * Calls f with each property and its value, in the order they were
+     * added.
+     */
+    void forEach(BiConsumer<String,Value> f) {
+        Shape s = shape;
+        if (s.isDictionary()) {
+            Map<String,Value> copy;
+            synchronized (this) {
+                copy = new LinkedHashMap<String,Value>(dictionary);
+            }
+            copy.forEach(f);
+            return;
+        }
+        for (int i = 0; i < s.size(); i++)
+            f.accept(s.key(i), slot(i));
+    }
+
+    /**
+     * Replaces the value of each property with f of it.
+     */
+    void replaceAll(UnaryOperator<Value> f) {
+        Shape s = shape;
+        if (s.isDictionary()) {
+            synchronized (this) {
+                dictionary.replaceAll((name, v) -> f.apply(v));
+            }
+            return;
+        }
+        for (int i = 0; i < s.size(); i++)
+            setSlot(i, f.apply(slot(i)));
+    }
+
+    /**
+     * A new object of the same properties, belonging to owner.
+     */
+    synchronized ObjectVal copy(Environment owner) {
+        ObjectVal copy = new ObjectVal(shape, slots.clone(), owner);
+        if (dictionary != null)
+            copy.dictionary = new LinkedHashMap<String,Value>(dictionary);
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        append(sb, new IdentityHashMap<Value,Boolean>());
+        return sb.toString();
+    }
+
+    /**
+     * Appends the properties in braces, and an object that contains
+     * itself as {...} where it does.
+     */
+    void append(StringBuilder sb, Map<Value,Boolean> open) {
+        if (open.put(this, Boolean.TRUE) != null) {
+            sb.append("{...}");
+            return;
+        }
+        sb.append('{');
+        boolean[] first = { true };
+        forEach((name, v) -> {
+            if (!first[0])
+                sb.append(", ");
+            first[0] = false;
+            sb.append(name).append(": ");
+            ArrayVal.appendElement(sb, v, open);
+        });
+        sb.append('}');
+        open.remove(this);
+    }
+}
+
 /**
  * A closure.
  * Note that a closure remembers its surrounding scope.
  */
 class ClosureVal implements Value {
-    private List<String> params;
-    private Expression body;
-    private Environment outerEnv;
+    private final List<String> params;
+    private final Expression body;
+    private final Environment outerEnv;
+    private final FrameLayout layout;
+    private final MemoCache memo;
     /**
      * The environment is the environment where the function was created.
      * This design is what makes this expression a closure.
      */
     public ClosureVal(List<String> params, Expression body, Environment env) {
+        this(params, body, env, null);
+    }
+    /**
+     * A closure of a resolved function, whose local frames have the given layout.
+     */
+    ClosureVal(List<String> params, Expression body, Environment env, FrameLayout layout) {
+        this(params, body, env, layout, null);
+    }
+    /**
+     * Same as above, for a function that PurityAnalysis found pure:
+     * if memo is not null, the closure remembers the results of its
+     * calls (see MemoCache).
+     */
+    ClosureVal(List<String> params, Expression body, Environment env, FrameLayout layout,
+            MemoStats memo) {
         this.params = params;
         this.body = body;
         this.outerEnv = env;
+        this.layout = layout;
+        this.memo = (memo != null) ? new MemoCache(memo, params.size()) : null;
     }
     public String toString() {
         String s = "function(";
@@ -89,8 +630,94 @@ class ClosureVal implements Value {
      * To apply a closure, first create a new local environment, with an outer scope
      * of the environment where the function was created. Each parameter should
      * be bound to its matching argument and added to the new local environment.
+     *
+     * A call in tail position of the body returns a TailCall instead of
+     * calling the function, and the call is made here, so that a chain of
+     * tail calls runs in constant Java stack.
+     *
+     * Calls are charged to the budget of the execution, if it has one.
+     * Its call depth is not unwound if an error is thrown, as the error
+     * ends the execution.
+     *
+     * A memoized closure returns the result of an earlier call with the
+     * same arguments, if it still has it, without making the call.
      */
     public Value apply(List<Value> argVals) {
+        Object key = (memo != null) ? memo.key(argVals) : null;
+        if (key != null) {
+            Value cached = memo.get(key);
+            if (cached != null)
+                return cached;
+        }
+        Budget budget = outerEnv.budget();
+        if (budget != null)
+            budget.enter();
+        Value result = invoke(argVals);
+        while (result instanceof TailCall) {
+            TailCall call = (TailCall) result;
+            if (budget != null) {
+                budget.step();
+                budget.allocate();
+            }
+            result = call.closure.invoke(call.args);
+        }
+        if (budget != null)
+            budget.exit();
+        if (key != null)
+            memo.put(key, result);
+        return result;
+    }
+
+    /**
+     * Evaluates the body once, without trampolining tail calls.
+     * A frame that cannot escape is taken from the FrameStack of the
+     * thread, and given back when the body returns, or when binding the
+     * arguments fails (e.g. function(a, a)).
+     */
+    private Value invoke(List<Value> argVals) {
+        if (!pooled())
+            return body.evaluate(bind(argVals));
+        FrameStack frames = FrameStack.current();
+        int mark = frames.mark();
+        try {
+            return body.evaluate(bind(argVals, frames));
+        } finally {
+            frames.reset(mark);
+        }
+    }
+
+    /**
+     * Whether the frames of calls can come from a FrameStack.
+     */
+    boolean pooled() {
+        return layout != null && !layout.escapes;
+    }
+
+    /**
+     * Creates the local environment of a call, with each parameter bound to
+     * its matching argument.  Missing arguments are bound to null.
+     */
+    Environment bind(List<Value> argVals) {
+        return bind(argVals, null);
+    }
+
+    /**
+     * Same as bind, with the frame taken from frames if it is not null
+     * and the closure is pooled().  The caller gives it back.
+     */
+    Environment bind(List<Value> argVals, FrameStack frames) {
+        if (layout != null) {
+            Environment loc = frame(frames);
+            int[] paramSlots = layout.paramSlots;
+            int n = Math.min(paramSlots.length, argVals.size());
+            for (int i = 0; i < n; i++) {
+                loc.declareSlot(paramSlots[i], argVals.get(i));
+            }
+            for (int i = n; i < paramSlots.length; i++) {
+                loc.declareSlot(paramSlots[i], NullVal.NULL);
+            }
+            return loc;
+        }
         Environment loc = new Environment(outerEnv);
         int n = Math.min(params.size(), argVals.size());
         for (int i = 0; i < n; i++) {
@@ -99,8 +726,164 @@ class ClosureVal implements Value {
 
         // bind missing params to null
         for (int i = n; i < params.size(); i++) {
-            loc.createVar(params.get(i), new NullVal()); 
+            loc.createVar(params.get(i), NullVal.NULL); 
+        }
+        return loc;
+    }
+
+    /**
+     * Same as bind, for the arguments args[from] to args[from + count - 1].
+     */
+    Environment bind(Value[] args, int from, int count, FrameStack frames) {
+        if (layout == null)
+            return bind(java.util.Arrays.asList(args).subList(from, from + count), frames);
+        Environment loc = frame(frames);
+        int[] paramSlots = layout.paramSlots;
+        int n = Math.min(paramSlots.length, count);
+        for (int i = 0; i < n; i++) {
+            loc.declareSlot(paramSlots[i], args[from + i]);
+        }
+        for (int i = n; i < paramSlots.length; i++) {
+            loc.declareSlot(paramSlots[i], NullVal.NULL);
         }
-        return body.evaluate(loc);
+        return loc;
+    }
+
+    private Environment frame(FrameStack frames) {
+        if (frames != null && !layout.escapes)
+            return frames.push(outerEnv, layout);
+        return new Environment(outerEnv, layout);
+    }
+
+    Expression body() {
+        return body;
+    }
+
+    Environment outerEnv() {
+        return outerEnv;
+    }
+
+    /**
+     * The layout of the frames of calls, or null for a closure of an
+     * unresolved function.
+     */
+    FrameLayout layout() {
+        return layout;
+    }
+
+    /**
+     * The same closure over another environment, with a memo of its own.
+     */
+    ClosureVal rebind(Environment env) {
+        return rebind(env, true);
+    }
+
+    /**
+     * Same as rebind, but the copy does not memoize calls unless memoize
+     * is true.
+     */
+    ClosureVal rebind(Environment env, boolean memoize) {
+        return new ClosureVal(params, body, env, layout, (memoize && memo != null) ? memo.stats() : null);
+    }
+
+    /**
+     * Marks the frames the closure can see as shared, before it is
+     * called from another thread (see Environment).
+     */
+    void share() {
+        outerEnv.share();
+    }
+
+    /**
+     * The results this closure remembers, or null if it is not memoized.
+     */
+    MemoCache memo() {
+        return memo;
+    }
+}
+
+/**
+ * A call in tail position, to be made by the ClosureVal.apply that
+ * is running the calling function.  Never visible to FWJS code.
+ */
+class TailCall implements Value {
+    final ClosureVal closure;
+    final List<Value> args;
+
+    TailCall(ClosureVal closure, List<Value> args) {
+        this.closure = closure;
+        this.args = args;
+    }
+
+    @Override
+    public String toString() {
+        return "tail call of " + closure;
+    }
+}
+
+/**
+ * A call of a closure on another thread, made by spawn.
+ * Its result is that of the call, once join has waited for it.
+ */
+class TaskVal extends ForkJoinTask<Value> implements Value {
+    private static final long serialVersionUID = 1L;
+
+    private final transient ClosureVal closure;
+    private transient Value result;
+    private transient Throwable error;
+
+    TaskVal(ClosureVal closure) {
+        this.closure = closure;
+    }
+
+    /**
+     * A task that is already done, with the given result.
+     */
+    static TaskVal done(Value result) {
+        TaskVal task = new TaskVal(null);
+        task.complete(result);
+        return task;
+    }
+
+    @Override
+    public Value getRawResult() {
+        return result;
+    }
+
+    @Override
+    protected void setRawResult(Value v) {
+        result = v;
+    }
+
+    @Override
+    protected boolean exec() {
+        try {
+            result = closure.apply(new ArrayList<Value>());
+        } catch (Throwable t) {
+            error = t;
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the call to end, and returns its result, or throws what
+     * it threw.
+     */
+    Value result() {
+        // the task never completes abnormally, so that its error is
+        // thrown as it was, not wrapped by ForkJoinTask
+        Value v = join();
+        if (error instanceof RuntimeException)
+            throw (RuntimeException) error;
+        if (error instanceof Error)
+            throw (Error) error;
+        if (error != null)
+            throw new RuntimeException(error);
+        return v;
+    }
+
+    @Override
+    public String toString() {
+        return "task";
     }
 }
@@ -0,0 +1,420 @@
+package edu.sjsu.fwjs;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The bytecode VM.
+ *
+ * Runs VmFunctions in a single dispatch loop, with one value stack for
+ * the operands of all active calls, and a stack of frames for the calls
+ * themselves.  The int results of arithmetic stay unboxed on the value
+ * stack, in an int array alongside it, until they are used as anything
+ * but an operand (see boxed), so that the intermediate results of an
+ * expression are not allocated.  Calls between VM functions do not
+ * recurse in Java, so call depth is bounded by the heap.  Variables live
+ * in Environment frames as with the other engines, and closures are
+ * ordinary ClosureVals, so VM code and tree-walked code can call each
+ * other.
+ *
+ * This is a reference engine, not a fast one: about half its time goes
+ * to dispatching instructions, and it runs the jmh benchmarks 1.5 to
+ * 2.5 times slower than the tree-walker, whose self-specializing nodes
+ * the JIT compiles better.  It is what FwjsEngine runs scripts on, for
+ * its compact, shareable code and its heap-bounded call depth.
+ */
+class Vm {
+    /**
+     * The body of the closures of a VM function.  Evaluating it from
+     * outside the VM (e.g. a ClosureVal.apply made by the tree-walker)
+     * starts a new VM.
+     */
+    static class Body implements OpaqueBody {
+        final VmFunction fn;
+
+        Body(VmFunction fn) {
+            this.fn = fn;
+        }
+
+        public Value evaluate(Environment env) {
+            return new Vm().execute(fn, env);
+        }
+    }
+
+    /**
+     * A suspended call: where to resume the caller.
+     */
+    private static class Frame {
+        final VmFunction fn;
+        final int pc;
+        final Environment env;
+        final Frame caller;
+
+        Frame(VmFunction fn, int pc, Environment env, Frame caller) {
+            this.fn = fn;
+            this.pc = pc;
+            this.env = env;
+            this.caller = caller;
+        }
+    }
+
+    /**
+     * A suspended call of a memoized function, and where to remember its
+     * result.  Kept apart so that other calls do not pay for the fields.
+     */
+    private static final class MemoFrame extends Frame {
+        final MemoCache memo;
+        final Object key;
+
+        MemoFrame(VmFunction fn, int pc, Environment env, Frame caller, MemoCache memo, Object key) {
+            super(fn, pc, env, caller);
+            this.memo = memo;
+            this.key = key;
+        }
+    }
+
+    /** The operator of each of the opcodes ADD to EQ. */
+    private static final Op[] OPERATORS = {
+        Op.ADD, Op.SUBTRACT, Op.MULTIPLY, Op.DIVIDE, Op.MOD, Op.GT, Op.GE, Op.LT, Op.LE, Op.EQ,
+    };
+
+    /**
+     * Runs a function (or the program) in the given local environment.
+     */
+    public Value execute(VmFunction entry, Environment entryEnv) {
+        FrameStack frames = FrameStack.current();
+        int mark = frames.mark();
+        try {
+            return run(entry, entryEnv, frames, mark);
+        } finally {
+            // gives back the frames of calls an error unwound
+            frames.reset(mark);
+        }
+    }
+
+    /**
+     * The dispatch loop of execute.  Frames that cannot escape are taken
+     * from frames, and given back when their call returns, or when it
+     * makes a tail call.  The ones below mark are not the VM's.
+     *
+     * A tail call of a closure of another engine falls through from
+     * CALL into RETURN, which switches to the caller in a dozen locals
+     * of this loop, too many to hand to a method of its own.
+     */
+    @SuppressWarnings("fallthrough")
+    private Value run(VmFunction entry, Environment entryEnv, FrameStack frames, int mark) {
+        VmFunction fn = entry;
+        int[] code = fn.code;
+        Object[] k = fn.constants;
+        Environment env = entryEnv;
+        Budget budget = entryEnv.budget();
+        Frame caller = null;
+        int pc = 0;
+        Value[] stack = new Value[Math.max(64, fn.maxStack)];
+        // the unboxed ints: ints[i] is the value at i if stack[i] is null
+        int[] ints = new int[stack.length];
+        int sp = 0;
+
+        while (true) {
+            switch (code[pc]) {
+                case VmOp.CONST:
+                    stack[sp++] = (Value) k[code[pc + 1]];
+                    pc += 2;
+                    break;
+                case VmOp.NULL:
+                    stack[sp++] = NullVal.NULL;
+                    pc += 1;
+                    break;
+                case VmOp.LOAD_LOCAL: {
+                    Value v = env.getSlot(code[pc + 1], code[pc + 2]);
+                    if (v == null)
+                        v = env.resolveVar((String) k[code[pc + 3]]);
+                    stack[sp++] = v;
+                    pc += 4;
+                    break;
+                }
+                case VmOp.LOAD_GLOBAL:
+                    stack[sp++] = env.ancestor(code[pc + 1]).resolveVar((String) k[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case VmOp.STORE_LOCAL: {
+                    Value v = boxed(stack, ints, sp - 1);
+                    if (!env.setSlot(code[pc + 1], code[pc + 2], v))
+                        env.updateVar((String) k[code[pc + 3]], v);
+                    pc += 4;
+                    break;
+                }
+                case VmOp.STORE_GLOBAL:
+                    env.ancestor(code[pc + 1]).updateVar((String) k[code[pc + 2]], boxed(stack, ints, sp - 1));
+                    pc += 3;
+                    break;
+                case VmOp.DECLARE:
+                    if (code[pc + 1] >= 0)
+                        env.declareSlot(code[pc + 1], boxed(stack, ints, sp - 1));
+                    else
+                        env.createVar((String) k[code[pc + 2]], boxed(stack, ints, sp - 1));
+                    pc += 3;
+                    break;
+                case VmOp.PRINT:
+                    env.out().print(boxed(stack, ints, sp - 1));
+                    pc += 1;
+                    break;
+                case VmOp.POP:
+                    stack[--sp] = null;
+                    pc += 1;
+                    break;
+                case VmOp.ADD:
+                case VmOp.SUBTRACT:
+                case VmOp.MULTIPLY:
+                case VmOp.DIVIDE:
+                case VmOp.MOD:
+                case VmOp.GT:
+                case VmOp.GE:
+                case VmOp.LT:
+                case VmOp.LE:
+                case VmOp.EQ: {
+                    sp--;
+                    Value left = stack[sp - 1];
+                    Value right = stack[sp];
+                    stack[sp] = null;
+                    if ((left == null || left instanceof IntVal) && (right == null || right instanceof IntVal)) {
+                        int l = (left == null) ? ints[sp - 1] : ((IntVal) left).toInt();
+                        int r = (right == null) ? ints[sp] : ((IntVal) right).toInt();
+                        binOp(code[pc], l, r, stack, ints, sp - 1);
+                    } else {
+                        stack[sp - 1] = BinOpExpr.apply(OPERATORS[code[pc] - VmOp.ADD],
+                                boxed(left, ints[sp - 1]), boxed(right, ints[sp]));
+                    }
+                    pc += 1;
+                    break;
+                }
+                case VmOp.JUMP:
+                    // a jump back is the end of a loop iteration
+                    if (budget != null && code[pc + 1] < pc)
+                        budget.step();
+                    pc = code[pc + 1];
+                    break;
+                case VmOp.JUMP_IF_FALSE: {
+                    Value cv = boxed(stack, ints, --sp);
+                    stack[sp] = null;
+                    pc = Condition.toBoolean(cv) ? pc + 2 : code[pc + 1];
+                    break;
+                }
+                case VmOp.JUMP_IF_NOT_CLOSURE:
+                    if (stack[sp - 1] instanceof ClosureVal) {
+                        pc += 2;
+                    } else {
+                        stack[sp - 1] = NullVal.NULL;
+                        pc = code[pc + 1];
+                    }
+                    break;
+                case VmOp.CLOSURE: {
+                    VmFunction f = (VmFunction) k[code[pc + 1]];
+                    if (budget != null)
+                        budget.allocate();
+                    stack[sp++] = new ClosureVal(f.params, f.body, env, f.layout, f.memo);
+                    pc += 2;
+                    break;
+                }
+                case VmOp.ARRAY: {
+                    int n = code[pc + 1];
+                    box(stack, ints, sp - n, sp);
+                    Value[] elements = Arrays.copyOfRange(stack, sp - n, sp);
+                    Arrays.fill(stack, sp - n, sp, null);
+                    sp -= n;
+                    stack[sp++] = ArrayExpr.create(env, elements);
+                    pc += 2;
+                    break;
+                }
+                case VmOp.GET_INDEX:
+                    sp--;
+                    stack[sp - 1] = IndexExpr.get(boxed(stack, ints, sp - 1), boxed(stack, ints, sp));
+                    stack[sp] = null;
+                    pc += 1;
+                    break;
+                case VmOp.OBJECT: {
+                    int n = code[pc + 2];
+                    box(stack, ints, sp - n, sp);
+                    Value[] values = Arrays.copyOfRange(stack, sp - n, sp);
+                    Arrays.fill(stack, sp - n, sp, null);
+                    sp -= n;
+                    stack[sp++] = ((ObjectExpr) k[code[pc + 1]]).create(env, values);
+                    pc += 3;
+                    break;
+                }
+                case VmOp.GET_PROP:
+                    stack[sp - 1] = ((PropertyCache) k[code[pc + 1]]).get(boxed(stack, ints, sp - 1));
+                    pc += 2;
+                    break;
+                case VmOp.SET_PROP:
+                    sp--;
+                    stack[sp - 1] = ((PropertyCache) k[code[pc + 1]]).set(boxed(stack, ints, sp - 1),
+                            boxed(stack, ints, sp));
+                    stack[sp] = null;
+                    pc += 2;
+                    break;
+                case VmOp.SET_INDEX:
+                    sp -= 2;
+                    stack[sp - 1] = IndexAssignExpr.set(boxed(stack, ints, sp - 1), boxed(stack, ints, sp),
+                            boxed(stack, ints, sp + 1));
+                    stack[sp] = null;
+                    stack[sp + 1] = null;
+                    pc += 1;
+                    break;
+                case VmOp.CALL:
+                case VmOp.TAIL_CALL: {
+                    boolean tail = code[pc] == VmOp.TAIL_CALL;
+                    int n = code[pc + 1];
+                    int base = sp - n - 1;
+                    ClosureVal c = (ClosureVal) stack[base];
+                    box(stack, ints, base + 1, sp);
+                    if (c.body() instanceof Body) {
+                        // a memoized result, unless this is a tail call
+                        MemoCache memo = tail ? null : c.memo();
+                        Object key = (memo != null) ? memo.key(stack, base + 1, n) : null;
+                        if (key != null) {
+                            Value cached = memo.get(key);
+                            if (cached != null) {
+                                Arrays.fill(stack, base + 1, sp, null);
+                                sp = base + 1;
+                                stack[base] = cached;
+                                pc += 2;
+                                break;
+                            }
+                        }
+                        if (budget != null) {
+                            if (tail) {
+                                budget.step();
+                                budget.allocate();
+                            } else {
+                                budget.enter();
+                            }
+                        }
+                        if (tail)
+                            frames.release(env, mark);
+                        Environment loc = c.bind(stack, base + 1, n, frames);
+                        Arrays.fill(stack, base, sp, null);
+                        sp = base;
+                        if (!tail)
+                            caller = (key == null) ? new Frame(fn, pc + 2, env, caller)
+                                    : new MemoFrame(fn, pc + 2, env, caller, memo, key);
+                        fn = ((Body) c.body()).fn;
+                        code = fn.code;
+                        k = fn.constants;
+                        env = loc;
+                        pc = 0;
+                        if (sp + fn.maxStack > stack.length) {
+                            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, sp + fn.maxStack));
+                            ints = Arrays.copyOf(ints, stack.length);
+                        }
+                        break;
+                    }
+                    // not a VM function, so leave it to its own engine
+                    List<Value> args = Arrays.asList(Arrays.copyOfRange(stack, base + 1, sp));
+                    Arrays.fill(stack, base, sp, null);
+                    sp = base;
+                    stack[sp++] = c.apply(args);
+                    if (!tail) {
+                        pc += 2;
+                        break;
+                    }
+                }
+                // a tail call to another engine returns its result
+                // fall through
+                case VmOp.RETURN: {
+                    if (caller == null) {
+                        Value result = boxed(stack, ints, --sp);
+                        stack[sp] = null;
+                        return result;
+                    }
+                    if (budget != null)
+                        budget.exit();
+                    frames.release(env, mark);
+                    if (caller instanceof MemoFrame) {
+                        MemoFrame m = (MemoFrame) caller;
+                        m.memo.put(m.key, boxed(stack, ints, sp - 1));
+                    }
+                    fn = caller.fn;
+                    code = fn.code;
+                    k = fn.constants;
+                    env = caller.env;
+                    pc = caller.pc;
+                    caller = caller.caller;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[pc] + " at " + pc);
+            }
+        }
+    }
+
+    /**
+     * Applies an operator to two ints, and leaves the result at stack[at]:
+     * unboxed, if the operator is + - or * and the result fits in an int.
+     */
+    private static void binOp(int opcode, int l, int r, Value[] stack, int[] ints, int at) {
+        long x;
+        switch (opcode) {
+            case VmOp.ADD:
+                x = (long) l + r;
+                break;
+            case VmOp.SUBTRACT:
+                x = (long) l - r;
+                break;
+            case VmOp.MULTIPLY:
+                x = (long) l * r;
+                break;
+            case VmOp.DIVIDE:
+                stack[at] = IntVal.divide(l, r);
+                return;
+            case VmOp.MOD:
+                stack[at] = IntVal.mod(l, r);
+                return;
+            case VmOp.GT:
+                stack[at] = BoolVal.of(l > r);
+                return;
+            case VmOp.GE:
+                stack[at] = BoolVal.of(l >= r);
+                return;
+            case VmOp.LT:
+                stack[at] = BoolVal.of(l < r);
+                return;
+            case VmOp.LE:
+                stack[at] = BoolVal.of(l <= r);
+                return;
+            default:
+                stack[at] = BoolVal.of(l == r);
+                return;
+        }
+        if ((int) x == x) {
+            stack[at] = null;
+            ints[at] = (int) x;
+        } else {
+            stack[at] = BigIntVal.of(x);
+        }
+    }
+
+    /**
+     * The value at stack[i], boxing it there if it is an unboxed int.
+     */
+    private static Value boxed(Value[] stack, int[] ints, int i) {
+        Value v = stack[i];
+        if (v == null)
+            stack[i] = v = IntVal.of(ints[i]);
+        return v;
+    }
+
+    private static Value boxed(Value v, int i) {
+        return (v != null) ? v : IntVal.of(i);
+    }
+
+    /**
+     * Boxes the unboxed ints of stack[from] to stack[to - 1].
+     */
+    private static void box(Value[] stack, int[] ints, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (stack[i] == null)
+                stack[i] = IntVal.of(ints[i]);
+        }
+    }
+}
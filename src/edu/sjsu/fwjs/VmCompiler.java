@@ -0,0 +1,250 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles a resolved expression tree to code for the bytecode VM.
+ * Each FWJS function is compiled to its own VmFunction, which is
+ * a constant of the function it is declared in.
+ */
+class VmCompiler implements ExpressionVisitor<Void> {
+    private int[] code = new int[64];
+    private int size;
+    private final List<Object> constants = new ArrayList<Object>();
+    private final Map<String,Integer> names = new HashMap<String,Integer>();
+    private int stack;
+    private int maxStack;
+    private final int[] functionCount;
+
+    private VmCompiler(int[] functionCount) {
+        this.functionCount = functionCount;
+    }
+
+    /**
+     * Compiles a program that has been through the ScopeResolver.
+     */
+    public static VmFunction compile(Expression prog) {
+        VmCompiler c = new VmCompiler(new int[1]);
+        return c.function("<program>", prog, new ArrayList<String>(), null, null);
+    }
+
+    private VmFunction function(String name, Expression body, List<String> params, FrameLayout layout,
+            MemoStats memo) {
+        emit(body);
+        op(VmOp.RETURN, -1);
+        return new VmFunction(name, Arrays.copyOf(code, size), constants.toArray(), maxStack,
+                params, layout, memo);
+    }
+
+    // ---------------------------------------------------------------- emitting
+
+    private void put(int i) {
+        if (size == code.length)
+            code = Arrays.copyOf(code, size * 2);
+        code[size++] = i;
+    }
+
+    /**
+     * Emits an instruction, which changes the stack depth by delta.
+     */
+    private void op(int opcode, int delta, int... operands) {
+        put(opcode);
+        for (int operand : operands)
+            put(operand);
+        stack += delta;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    /**
+     * Emits a jump and returns the position of its target, to be patched.
+     */
+    private int jump(int opcode, int delta) {
+        op(opcode, delta, -1);
+        return size - 1;
+    }
+
+    private void patch(int at) {
+        code[at] = size;
+    }
+
+    private int constant(Object value) {
+        // names are used over and over, so share their entries
+        if (value instanceof String) {
+            Integer index = names.get(value);
+            if (index != null)
+                return index;
+            names.put((String) value, constants.size());
+        }
+        constants.add(value);
+        return constants.size() - 1;
+    }
+
+    private void emit(Expression e) {
+        if (e == null)
+            op(VmOp.NULL, 1);
+        else
+            e.accept(this);
+    }
+
+    // ---------------------------------------------------------------- expressions
+
+    public Void visitValue(ValueExpr e) {
+        op(VmOp.CONST, 1, constant(e.val));
+        return null;
+    }
+
+    public Void visitVar(VarExpr e) {
+        if (e.slot >= 0)
+            op(VmOp.LOAD_LOCAL, 1, e.depth, e.slot, constant(e.varName));
+        else
+            op(VmOp.LOAD_GLOBAL, 1, e.depth, constant(e.varName));
+        return null;
+    }
+
+    public Void visitPrint(PrintExpr e) {
+        emit(e.exp);
+        op(VmOp.PRINT, 0);
+        return null;
+    }
+
+    public Void visitBinOp(BinOpExpr e) {
+        emit(e.e1);
+        emit(e.e2);
+        op(VmOp.forOperator(e.op), -1);
+        return null;
+    }
+
+    public Void visitIf(IfExpr e) {
+        emit(e.cond);
+        int els = jump(VmOp.JUMP_IF_FALSE, -1);
+        emit(e.thn);
+        int done = jump(VmOp.JUMP, 0);
+        stack--;
+        patch(els);
+        emit(e.els);
+        patch(done);
+        return null;
+    }
+
+    public Void visitWhile(WhileExpr e) {
+        int loop = size;
+        emit(e.cond);
+        int done = jump(VmOp.JUMP_IF_FALSE, -1);
+        emit(e.body);
+        op(VmOp.POP, -1);
+        op(VmOp.JUMP, 0, loop);
+        patch(done);
+        op(VmOp.NULL, 1);
+        return null;
+    }
+
+    public Void visitSeq(SeqExpr e) {
+        // walk down the left-nested chain instead of recursing
+        List<Expression> seconds = new ArrayList<Expression>();
+        Expression first = e;
+        while (first instanceof SeqExpr) {
+            seconds.add(((SeqExpr) first).e2);
+            first = ((SeqExpr) first).e1;
+        }
+        emit(first);
+        for (int i = seconds.size() - 1; i >= 0; i--) {
+            op(VmOp.POP, -1);
+            emit(seconds.get(i));
+        }
+        return null;
+    }
+
+    public Void visitBlock(BlockExpr e) {
+        emit(e.stmts[0]);
+        for (int i = 1; i < e.stmts.length; i++) {
+            op(VmOp.POP, -1);
+            emit(e.stmts[i]);
+        }
+        return null;
+    }
+
+    public Void visitVarDecl(VarDeclExpr e) {
+        emit(e.exp);
+        op(VmOp.DECLARE, 0, e.slot, constant(e.varName));
+        return null;
+    }
+
+    public Void visitAssign(AssignExpr e) {
+        emit(e.e);
+        if (e.slot >= 0)
+            op(VmOp.STORE_LOCAL, 0, e.depth, e.slot, constant(e.varName));
+        else
+            op(VmOp.STORE_GLOBAL, 0, e.depth, constant(e.varName));
+        return null;
+    }
+
+    public Void visitFunctionDecl(FunctionDeclExpr e) {
+        String name = "function#" + (++functionCount[0]);
+        VmFunction fn = new VmCompiler(functionCount).function(name, e.body, e.params, e.layout, e.memo);
+        op(VmOp.CLOSURE, 1, constant(fn));
+        return null;
+    }
+
+    public Void visitFunctionApp(FunctionAppExpr e) {
+        emit(e.f);
+        int notClosure = jump(VmOp.JUMP_IF_NOT_CLOSURE, 0);
+        for (Expression arg : e.args)
+            emit(arg);
+        int n = e.args.size();
+        op(e.tail ? VmOp.TAIL_CALL : VmOp.CALL, -n, n);
+        patch(notClosure);
+        return null;
+    }
+
+    public Void visitArray(ArrayExpr e) {
+        for (Expression element : e.elements)
+            emit(element);
+        int n = e.elements.size();
+        op(VmOp.ARRAY, 1 - n, n);
+        return null;
+    }
+
+    public Void visitIndex(IndexExpr e) {
+        emit(e.array);
+        emit(e.index);
+        op(VmOp.GET_INDEX, -1);
+        return null;
+    }
+
+    public Void visitIndexAssign(IndexAssignExpr e) {
+        emit(e.array);
+        emit(e.index);
+        emit(e.e);
+        op(VmOp.SET_INDEX, -2);
+        return null;
+    }
+
+    public Void visitObject(ObjectExpr e) {
+        for (Expression value : e.values)
+            emit(value);
+        int n = e.values.size();
+        op(VmOp.OBJECT, 1 - n, constant(e), n);
+        return null;
+    }
+
+    public Void visitGetProp(GetPropExpr e) {
+        emit(e.obj);
+        op(VmOp.GET_PROP, 0, constant(e.cache));
+        return null;
+    }
+
+    public Void visitSetProp(SetPropExpr e) {
+        emit(e.obj);
+        emit(e.e);
+        op(VmOp.SET_PROP, -1, constant(e.cache));
+        return null;
+    }
+
+    public Void visitOpaque(OpaqueBody e) {
+        throw new IllegalArgumentException("function bodies that are not trees cannot be compiled");
+    }
+}
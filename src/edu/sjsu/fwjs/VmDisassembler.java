@@ -0,0 +1,78 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prints the code of a VmFunction, and of the functions declared in it,
+ * in a readable form.  For example:
+ * <pre>
+ * &lt;program&gt; () stack=2
+ *   0000  CONST          0          ; 42
+ *   0002  DECLARE        -1 1       ; x
+ *   0005  RETURN
+ * </pre>
+ */
+class VmDisassembler {
+
+    public static String disassemble(VmFunction fn) {
+        StringBuilder sb = new StringBuilder();
+        List<VmFunction> todo = new ArrayList<VmFunction>();
+        todo.add(fn);
+        for (int i = 0; i < todo.size(); i++) {
+            if (i > 0)
+                sb.append(System.lineSeparator());
+            disassemble(todo.get(i), sb, todo);
+        }
+        return sb.toString();
+    }
+
+    private static void disassemble(VmFunction fn, StringBuilder sb, List<VmFunction> nested) {
+        sb.append(fn.name).append(" (").append(String.join(",", fn.params)).append(")")
+                .append(" stack=").append(fn.maxStack).append(System.lineSeparator());
+        int[] code = fn.code;
+        for (int pc = 0; pc < code.length; ) {
+            int op = code[pc];
+            StringBuilder operands = new StringBuilder();
+            for (int i = 1; i <= VmOp.OPERANDS[op]; i++)
+                operands.append(i > 1 ? " " : "").append(code[pc + i]);
+            sb.append(String.format("  %04d  %-20s %-10s", pc, VmOp.NAMES[op], operands));
+            String comment = comment(fn, op, code, pc, nested);
+            if (comment != null)
+                sb.append(" ; ").append(comment);
+            // trailing spaces of instructions without a comment
+            while (sb.charAt(sb.length() - 1) == ' ')
+                sb.setLength(sb.length() - 1);
+            sb.append(System.lineSeparator());
+            pc += 1 + VmOp.OPERANDS[op];
+        }
+    }
+
+    /**
+     * Describes the constant an instruction refers to, if any.
+     */
+    private static String comment(VmFunction fn, int op, int[] code, int pc, List<VmFunction> nested) {
+        switch (op) {
+            case VmOp.CONST:
+                return String.valueOf(fn.constants[code[pc + 1]]);
+            case VmOp.LOAD_LOCAL:
+            case VmOp.STORE_LOCAL:
+                return (String) fn.constants[code[pc + 3]];
+            case VmOp.LOAD_GLOBAL:
+            case VmOp.STORE_GLOBAL:
+            case VmOp.DECLARE:
+                return (String) fn.constants[code[pc + 2]];
+            case VmOp.OBJECT:
+                return String.join(",", ((ObjectExpr) fn.constants[code[pc + 1]]).keys);
+            case VmOp.GET_PROP:
+            case VmOp.SET_PROP:
+                return ((PropertyCache) fn.constants[code[pc + 1]]).name;
+            case VmOp.CLOSURE:
+                VmFunction f = (VmFunction) fn.constants[code[pc + 1]];
+                nested.add(f);
+                return f.name;
+            default:
+                return null;
+        }
+    }
+}
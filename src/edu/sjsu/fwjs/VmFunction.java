@@ -0,0 +1,33 @@
+package edu.sjsu.fwjs;
+
+import java.util.List;
+
+/**
+ * A function compiled for the bytecode VM: its instructions,
+ * constant pool, and what is needed to make closures of it.
+ * The program itself is compiled as a function without parameters.
+ */
+class VmFunction {
+    final String name;
+    final int[] code;
+    final Object[] constants;
+    final int maxStack;
+    final List<String> params;
+    final FrameLayout layout;
+    /** Set if the closures of this function memoize calls. */
+    final MemoStats memo;
+    /** The body of every closure of this function. */
+    final Expression body;
+
+    VmFunction(String name, int[] code, Object[] constants, int maxStack,
+            List<String> params, FrameLayout layout, MemoStats memo) {
+        this.name = name;
+        this.code = code;
+        this.constants = constants;
+        this.maxStack = maxStack;
+        this.params = params;
+        this.layout = layout;
+        this.memo = memo;
+        this.body = new Vm.Body(this);
+    }
+}
@@ -0,0 +1,85 @@
+package edu.sjsu.fwjs;
+
+/**
+ * The instruction set of the bytecode VM.
+ * An instruction is an opcode followed by its int operands, in one
+ * int[] per function.  Operands named k index the constant pool of
+ * the function, and jump targets are absolute code offsets.
+ */
+final class VmOp {
+    private VmOp() {}
+
+    static final int CONST = 0;          // k            push constant k
+    static final int NULL = 1;           //              push null
+    static final int LOAD_LOCAL = 2;     // depth slot k push variable (k: its name)
+    static final int LOAD_GLOBAL = 3;    // depth k      push variable k, by name
+    static final int STORE_LOCAL = 4;    // depth slot k set variable to top of stack
+    static final int STORE_GLOBAL = 5;   // depth k      set variable k to top of stack
+    static final int DECLARE = 6;        // slot k       declare variable (slot -1: by name)
+    static final int PRINT = 7;          //              print top of stack
+    static final int POP = 8;
+    static final int ADD = 9;
+    static final int SUBTRACT = 10;
+    static final int MULTIPLY = 11;
+    static final int DIVIDE = 12;
+    static final int MOD = 13;
+    static final int GT = 14;
+    static final int GE = 15;
+    static final int LT = 16;
+    static final int LE = 17;
+    static final int EQ = 18;
+    static final int JUMP = 19;          // target
+    static final int JUMP_IF_FALSE = 20; // target       pop a condition, which must be boolean
+    static final int JUMP_IF_NOT_CLOSURE = 21; // target if top is not a closure, replace it with null and jump
+    static final int CLOSURE = 22;       // k            push a closure of function k
+    static final int CALL = 23;          // n            call the closure below n arguments
+    static final int TAIL_CALL = 24;     // n            same, in place of the current call
+    static final int RETURN = 25;        //              return top of stack
+    static final int ARRAY = 26;         // n            replace the top n values with an array of them
+    static final int GET_INDEX = 27;     //              replace an array and an index with the element
+    static final int SET_INDEX = 28;     //              set an element to the top of stack, and leave it there
+    static final int OBJECT = 29;        // k n          replace the top n values with an object of literal k
+    static final int GET_PROP = 30;      // k            replace an object with its property (k: its cache)
+    static final int SET_PROP = 31;      // k            set a property to the top of stack, and leave it there
+
+    static final String[] NAMES = {
+        "CONST", "NULL", "LOAD_LOCAL", "LOAD_GLOBAL", "STORE_LOCAL", "STORE_GLOBAL", "DECLARE",
+        "PRINT", "POP", "ADD", "SUBTRACT", "MULTIPLY", "DIVIDE", "MOD", "GT", "GE", "LT", "LE", "EQ",
+        "JUMP", "JUMP_IF_FALSE", "JUMP_IF_NOT_CLOSURE", "CLOSURE", "CALL", "TAIL_CALL", "RETURN",
+        "ARRAY", "GET_INDEX", "SET_INDEX", "OBJECT", "GET_PROP", "SET_PROP",
+    };
+
+    static final int[] OPERANDS = {
+        1, 0, 3, 2, 3, 2, 2,
+        0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+        1, 1, 1, 1, 1, 1, 0,
+        1, 0, 0, 2, 1, 1,
+    };
+
+    static int forOperator(Op op) {
+        switch (op) {
+            case ADD:
+                return ADD;
+            case SUBTRACT:
+                return SUBTRACT;
+            case MULTIPLY:
+                return MULTIPLY;
+            case DIVIDE:
+                return DIVIDE;
+            case MOD:
+                return MOD;
+            case GT:
+                return GT;
+            case GE:
+                return GE;
+            case LT:
+                return LT;
+            case LE:
+                return LE;
+            case EQ:
+                return EQ;
+            default:
+                throw new IllegalArgumentException("Unknown operator: " + op);
+        }
+    }
+}
@@ -244,6 +244,58 @@ public class ExpressionTest {
         assertEquals(new IntVal(11), new VarExpr("y").evaluate(g));
     }
 
+    @Test
+    public void testForkCopiesOnWrite() {
+        Environment g = new Environment();
+        for (int i = 0; i < 10000; i++)
+            g.createVar("v" + i, IntVal.of(i));
+        g.createVar("Aa", IntVal.of(1));    // "Aa" and "BB" have the same hash
+        g.createVar("BB", IntVal.of(2));
+        Environment snap = g.snapshot();
+        Environment f1 = snap.fork();
+        Environment f2 = snap.fork();
+        f1.updateVar("v7", IntVal.of(-7));
+        f1.updateVar("BB", IntVal.of(-2));
+        f1.updateVar("new", IntVal.of(3));  // not declared anywhere
+        f2.createVar("Ab", IntVal.of(4));
+        g.updateVar("v7", IntVal.of(70));
+        assertEquals(IntVal.of(-7), f1.resolveVar("v7"));
+        assertEquals(IntVal.of(7), f2.resolveVar("v7"));
+        assertEquals(IntVal.of(7), snap.resolveVar("v7"));
+        assertEquals(IntVal.of(70), g.resolveVar("v7"));
+        assertEquals(IntVal.of(-2), f1.resolveVar("BB"));
+        assertEquals(IntVal.of(2), f2.resolveVar("BB"));
+        assertEquals(IntVal.of(1), f1.resolveVar("Aa"));
+        assertEquals(IntVal.of(3), f1.resolveVar("new"));
+        assertEquals(NullVal.NULL, f2.resolveVar("new"));
+        assertEquals(NullVal.NULL, f1.resolveVar("Ab"));
+        assertEquals(10003, f1.globalCount());
+        assertEquals(10003, f2.globalCount());
+        assertEquals(10002, snap.globalCount());
+        for (int i = 0; i < 10000; i += 97)
+            assertEquals(IntVal.of(i == 7 ? -7 : i), f1.resolveVar("v" + i));
+        try {
+            f1.createVar("v1", IntVal.of(0));
+            fail("redeclared a forked variable");
+        } catch (RuntimeException e) {
+            assertEquals("error: variable is already declared", e.getMessage());
+        }
+        try {
+            snap.updateVar("v1", IntVal.of(0));
+            fail("wrote to a snapshot");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testOpaqueBodiesAreVisited() {
+        Expression body = ((ClosureVal) Builtins.lookup("length")).body();
+        assertTrue(body instanceof OpaqueBody);
+        new ExpressionScanner().scan(body);
+        assertSame(body, new ExpressionRewriter().rewrite(body));
+    }
+
     @Test
     public void testArithmeticAndComparisons() {
         Environment env = new Environment();
@@ -342,5 +394,294 @@ public class ExpressionTest {
         );
         assertEquals(new NullVal(), call.evaluate(env));
     }
-}
 
+    @Test
+    // var x=1; var f=function(c){ if (c) { var x=2; } x; }; f(false); f(true);
+    public void testResolvedLocalNotYetDeclared() {
+        Environment env = new Environment();
+        Expression f = new FunctionDeclExpr(java.util.Arrays.asList("c"),
+            new SeqExpr(
+                new IfExpr(new VarExpr("c"), new VarDeclExpr("x", new ValueExpr(new IntVal(2))), null),
+                new VarExpr("x")));
+        Expression prog = ScopeResolver.resolve(new SeqExpr(
+            new VarDeclExpr("x", new ValueExpr(new IntVal(1))),
+            new VarDeclExpr("f", f)));
+        prog.evaluate(env);
+        Value closure = env.resolveVar("f");
+        assertEquals(new IntVal(1), ((ClosureVal) closure).apply(java.util.Arrays.asList(new BoolVal(false))));
+        assertEquals(new IntVal(2), ((ClosureVal) closure).apply(java.util.Arrays.asList(new BoolVal(true))));
+    }
+
+    @Test
+    // var f=function(a){ function(b){ a = a + b; a; }; }; var g=f(1); g(2); g(3);
+    public void testResolvedOuterSlotUpdate() {
+        Environment env = new Environment();
+        Expression inner = new FunctionDeclExpr(java.util.Arrays.asList("b"),
+            new SeqExpr(new AssignExpr("a", new BinOpExpr(Op.ADD, new VarExpr("a"), new VarExpr("b"))),
+                new VarExpr("a")));
+        Expression prog = ScopeResolver.resolve(new SeqExpr(
+            new VarDeclExpr("f", new FunctionDeclExpr(java.util.Arrays.asList("a"), inner)),
+            new VarDeclExpr("g", new FunctionAppExpr(new VarExpr("f"),
+                java.util.Arrays.asList(new ValueExpr(new IntVal(1)))))));
+        prog.evaluate(env);
+        Expression call = ScopeResolver.resolve(new FunctionAppExpr(new VarExpr("g"),
+            java.util.Arrays.asList(new ValueExpr(new IntVal(2)))));
+        assertEquals(new IntVal(3), call.evaluate(env));
+        assertEquals(new IntVal(5), call.evaluate(env));
+        assertEquals(new NullVal(), env.resolveVar("a"));
+    }
+
+    @Test
+    public void testBinOpSpecializesAndGeneralizes() {
+        Environment env = new Environment();
+        BinOpExpr eq = new BinOpExpr(Op.EQ, new VarExpr("a"), new VarExpr("b"));
+        AssignExpr parent = new AssignExpr("r", eq);
+        env.createVar("a", new IntVal(1));
+        env.createVar("b", new IntVal(1));
+        assertEquals(new BoolVal(true), parent.evaluate(env));
+        assertTrue(parent.e instanceof IntEqualExpr);
+
+        env.updateVar("a", new NullVal());
+        env.updateVar("b", new NullVal());
+        assertEquals(new BoolVal(true), parent.evaluate(env));
+        assertFalse(parent.e instanceof IntBinOpExpr);
+        // the original node forwards to the current one
+        assertEquals(new BoolVal(true), eq.evaluate(env));
+    }
+
+    @Test
+    public void testConditionSpecializes() {
+        Environment env = new Environment();
+        env.createVar("x", new IntVal(3));
+        WhileExpr we = new WhileExpr(new BinOpExpr(Op.GT, new VarExpr("x"), new ValueExpr(new IntVal(0))),
+                new AssignExpr("x", new BinOpExpr(Op.SUBTRACT, new VarExpr("x"), new ValueExpr(new IntVal(1)))));
+        we.evaluate(env);
+        assertTrue(we.test instanceof CompareCondition);
+        assertEquals(new IntVal(0), env.resolveVar("x"));
+
+        env.updateVar("x", new BoolVal(true));
+        try {
+            we.evaluate(env);
+            fail();
+        } catch (ClassCastException e) {}
+        assertFalse(we.cond instanceof IntBinOpExpr);
+    }
+
+    @Test
+    public void testCanonicalValues() {
+        Environment env = new Environment();
+        assertSame(IntVal.of(7), new BinOpExpr(Op.ADD, new ValueExpr(IntVal.of(3)), new ValueExpr(IntVal.of(4))).evaluate(env));
+        assertSame(BoolVal.TRUE, new BinOpExpr(Op.LT, new ValueExpr(IntVal.of(3)), new ValueExpr(IntVal.of(4))).evaluate(env));
+        assertSame(NullVal.NULL, new VarExpr("nope").evaluate(env));
+        assertEquals(new IntVal(100000), IntVal.of(100000));
+        assertEquals("-5", IntVal.of(-5).toString());
+    }
+
+    @Test
+    public void testIntOverflowPromotes() {
+        Environment env = new Environment();
+        env.createVar("x", IntVal.of(Integer.MAX_VALUE));
+        BinOpExpr add = new BinOpExpr(Op.ADD, new VarExpr("x"), new ValueExpr(IntVal.of(1)));
+        AssignExpr parent = new AssignExpr("r", add);
+        Value big = parent.evaluate(env);
+        assertTrue(big instanceof BigIntVal);
+        assertEquals("2147483648", big.toString());
+        assertTrue(parent.e instanceof IntAddExpr);
+
+        // a BigIntVal operand keeps the node specialized
+        env.updateVar("x", big);
+        assertEquals("2147483649", parent.evaluate(env).toString());
+        assertTrue(parent.e instanceof IntAddExpr);
+
+        // results that fit in an int are IntVals again
+        Value back = new BinOpExpr(Op.SUBTRACT, new ValueExpr(big), new ValueExpr(IntVal.of(1))).evaluate(env);
+        assertSame(IntVal.class, back.getClass());
+        assertEquals(IntVal.of(Integer.MAX_VALUE), back);
+
+        assertEquals("-2147483648", IntVal.subtract(Integer.MIN_VALUE + 1, 1).toString());
+        assertEquals("2147483648", IntVal.divide(Integer.MIN_VALUE, -1).toString());
+        assertEquals("4611686014132420609", IntVal.multiply(Integer.MAX_VALUE, Integer.MAX_VALUE).toString());
+    }
+
+    @Test
+    public void testCompareAcrossRepresentations() {
+        Environment env = new Environment();
+        Value big = BigIntVal.of(1L << 40);
+        Value small = IntVal.of(5);
+        assertEquals(BoolVal.TRUE, new BinOpExpr(Op.GT, new ValueExpr(big), new ValueExpr(small)).evaluate(env));
+        assertEquals(BoolVal.TRUE, new BinOpExpr(Op.LT, new ValueExpr(small), new ValueExpr(big)).evaluate(env));
+        assertEquals(BoolVal.FALSE, new BinOpExpr(Op.EQ, new ValueExpr(small), new ValueExpr(big)).evaluate(env));
+        assertEquals(BoolVal.TRUE, new BinOpExpr(Op.EQ, new ValueExpr(big),
+                new ValueExpr(BigIntVal.of(java.math.BigInteger.ONE.shiftLeft(40)))).evaluate(env));
+        // each number has one representation
+        assertSame(IntVal.of(5), BigIntVal.of(java.math.BigInteger.valueOf(5)));
+        assertEquals(IntVal.of(-7), BigIntVal.of(-7L));
+        try {
+            new BinOpExpr(Op.MOD, new ValueExpr(big), new ValueExpr(IntVal.of(0))).evaluate(env);
+            fail();
+        } catch (ArithmeticException e) {}
+    }
+
+    @Test
+    public void testOptimizerFoldsAndPrunes() {
+        Expression prog = Optimizer.standard().optimize(new SeqExpr(
+            new SeqExpr(new VarExpr("x"), new ValueExpr(new IntVal(5))),
+            new IfExpr(new BinOpExpr(Op.LT, new ValueExpr(new IntVal(1)), new ValueExpr(new IntVal(2))),
+                new BinOpExpr(Op.MULTIPLY, new ValueExpr(new IntVal(6)), new ValueExpr(new IntVal(7))),
+                new ValueExpr(new IntVal(0)))));
+        assertTrue(prog instanceof ValueExpr);
+        assertEquals(new IntVal(42), prog.evaluate(new Environment()));
+    }
+
+    @Test
+    public void testOptimizerKeepsRuntimeErrors() {
+        Expression prog = Optimizer.standard().optimize(new SeqExpr(
+            new BinOpExpr(Op.DIVIDE, new ValueExpr(new IntVal(1)), new ValueExpr(new IntVal(0))),
+            new ValueExpr(new IntVal(1))));
+        try {
+            prog.evaluate(new Environment());
+            fail();
+        } catch (ArithmeticException e) {}
+    }
+
+    @Test
+    public void testArrays() {
+        Environment env = new Environment();
+        List<Expression> elements = new ArrayList<Expression>();
+        elements.add(new ValueExpr(IntVal.of(1)));
+        elements.add(new ValueExpr(IntVal.of(2)));
+        env.createVar("a", new ArrayExpr(elements).evaluate(env));
+        ArrayVal a = (ArrayVal) env.resolveVar("a");
+        assertTrue(a.isInts());
+
+        // appending past the storage grows it
+        for (int i = 2; i < 100; i++)
+            new IndexAssignExpr(new VarExpr("a"), new ValueExpr(IntVal.of(i)), new ValueExpr(IntVal.of(i + 1))).evaluate(env);
+        assertEquals(100, a.length());
+        assertTrue(a.isInts());
+        assertEquals(IntVal.of(100), new IndexExpr(new VarExpr("a"), new ValueExpr(IntVal.of(99))).evaluate(env));
+        assertSame(NullVal.NULL, new IndexExpr(new VarExpr("a"), new ValueExpr(IntVal.of(100))).evaluate(env));
+        assertSame(NullVal.NULL, new IndexExpr(new VarExpr("a"), new ValueExpr(BoolVal.TRUE)).evaluate(env));
+
+        // widening keeps the elements
+        assertSame(BoolVal.TRUE, new IndexAssignExpr(new VarExpr("a"), new ValueExpr(IntVal.of(0)),
+                new ValueExpr(BoolVal.TRUE)).evaluate(env));
+        assertFalse(a.isInts());
+        assertEquals(BoolVal.TRUE, a.get(0));
+        assertEquals(IntVal.of(2), a.get(1));
+        assertEquals(100, a.length());
+
+        try {
+            a.set(101, IntVal.of(0));
+            fail("set past the end");
+        } catch (RuntimeException e) {
+            assertEquals("error: array index 101 out of range 0..100", e.getMessage());
+        }
+        a.set(1, a);
+        assertTrue(a.toString(), a.toString().startsWith("[true, [...], 3, 4"));
+
+        Value b = ArrayVal.of(new Value[] { IntVal.of(1) }, env);
+        Value c = ArrayVal.of(new Value[] { IntVal.of(1) }, env);
+        assertEquals("[1]", b.toString());
+        assertEquals(BoolVal.FALSE, BinOpExpr.apply(Op.EQ, b, c));
+        assertEquals(BoolVal.TRUE, BinOpExpr.apply(Op.EQ, b, b));
+    }
+
+    @Test
+    public void testObjectShapesAndInlineCaches() {
+        Environment env = new Environment();
+        List<String> keys = new ArrayList<String>();
+        keys.add("x");
+        keys.add("y");
+        List<Expression> values = new ArrayList<Expression>();
+        values.add(new ValueExpr(IntVal.of(1)));
+        values.add(new ValueExpr(IntVal.of(2)));
+        ObjectExpr literal = new ObjectExpr(keys, values);
+        ObjectVal a = (ObjectVal) literal.evaluate(env);
+        ObjectVal b = (ObjectVal) literal.evaluate(env);
+        assertSame(a.shape(), b.shape());
+        assertEquals("{x: 1, y: 2}", a.toString());
+
+        // one shape: monomorphic
+        env.createVar("o", a);
+        GetPropExpr getY = new GetPropExpr(new VarExpr("o"), "y");
+        assertEquals(IntVal.of(2), getY.evaluate(env));
+        assertEquals(IntVal.of(2), getY.evaluate(env));
+        assertEquals(1, getY.cache.shapes());
+
+        // adding a property moves the object to a child shape, shared by
+        // the objects that get the same one
+        SetPropExpr setZ = new SetPropExpr(new VarExpr("o"), "z", new ValueExpr(IntVal.of(3)));
+        setZ.evaluate(env);
+        env.updateVar("o", b);
+        setZ.evaluate(env);
+        assertSame(a.shape(), b.shape());
+        assertEquals(1, setZ.cache.shapes());
+        assertEquals("{x: 1, y: 2, z: 3}", b.toString());
+
+        // more shapes: polymorphic, then megamorphic
+        assertEquals(IntVal.of(2), getY.evaluate(env));
+        assertEquals(2, getY.cache.shapes());
+        String[] names = { "p", "q", "r", "s" };
+        for (String name : names) {
+            ObjectVal o = new ObjectVal(env);
+            o.put(name, IntVal.of(0));
+            o.put("y", IntVal.of(4));
+            env.updateVar("o", o);
+            assertEquals(IntVal.of(4), getY.evaluate(env));
+        }
+        assertEquals(PropertyCache.MAX_SHAPES, getY.cache.shapes());
+        assertTrue(getY.cache.isMegamorphic());
+        env.updateVar("o", a);
+        assertEquals(IntVal.of(2), getY.evaluate(env));
+        assertSame(NullVal.NULL, new GetPropExpr(new VarExpr("o"), "w").evaluate(env));
+        assertSame(NullVal.NULL, new GetPropExpr(new ValueExpr(IntVal.of(1)), "w").evaluate(env));
+
+        // too many properties: dictionary mode, with its properties kept
+        ObjectVal big = new ObjectVal(env);
+        for (int i = 0; i <= Shape.MAX_PROPERTIES; i++)
+            big.put("p" + i, IntVal.of(i));
+        assertTrue(big.shape().isDictionary());
+        env.updateVar("o", big);
+        assertEquals(IntVal.of(0), new GetPropExpr(new VarExpr("o"), "p0").evaluate(env));
+        assertEquals(IntVal.of(Shape.MAX_PROPERTIES),
+                new GetPropExpr(new VarExpr("o"), "p" + Shape.MAX_PROPERTIES).evaluate(env));
+        SetPropExpr setP0 = new SetPropExpr(new VarExpr("o"), "p0", new ValueExpr(BoolVal.TRUE));
+        setP0.evaluate(env);
+        assertEquals(BoolVal.TRUE, big.get("p0"));
+        assertEquals(0, setP0.cache.shapes());
+
+        try {
+            new SetPropExpr(new ValueExpr(NullVal.NULL), "x", new ValueExpr(IntVal.of(1))).evaluate(env);
+            fail("set a property of null");
+        } catch (RuntimeException e) {
+            assertEquals("error: cannot set property x of null", e.getMessage());
+        }
+        a.put("self", a);
+        assertEquals("{x: 1, y: 2, z: 3, self: {...}}", a.toString());
+    }
+
+    @Test
+    // a block of a million statements runs in a small, constant Java stack
+    public void testMillionStatementBlock() throws Exception {
+        int n = 1000000;
+        Expression[] stmts = new Expression[n + 1];
+        for (int i = 0; i < n; i++)
+            stmts[i] = new AssignExpr("x", new BinOpExpr(Op.ADD, new VarExpr("x"), new ValueExpr(IntVal.of(1))));
+        stmts[n] = new VarExpr("x");
+        Expression prog = Interpreter.resolve(new BlockExpr(stmts), Optimizer.standard());
+        Value[] results = new Value[2];
+        Thread small = new Thread(null, () -> {
+            Environment env = new Environment();
+            env.createVar("x", IntVal.of(0));
+            results[0] = prog.evaluate(env);
+            env = new Environment();
+            env.createVar("x", IntVal.of(0));
+            results[1] = new Vm().execute(VmCompiler.compile(prog), env);
+        }, "small-stack", 256 * 1024);
+        small.start();
+        small.join();
+        assertEquals(IntVal.of(n), results[0]);
+        assertEquals(IntVal.of(n), results[1]);
+    }
+}
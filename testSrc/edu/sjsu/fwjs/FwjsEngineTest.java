@@ -0,0 +1,347 @@
+package edu.sjsu.fwjs;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.Test;
+
+public class FwjsEngineTest {
+    private final FwjsEngine engine = new FwjsEngine();
+
+    @Test
+    public void testBindingsAndResult() {
+        FwjsScript rule = engine.compile("if (total > limit) total - limit; else flag;");
+        Map<String,Object> bindings = new HashMap<String,Object>();
+        bindings.put("total", 120);
+        bindings.put("limit", 100);
+        bindings.put("flag", false);
+        assertEquals(20, engine.execute(rule, bindings));
+        bindings.put("total", 80);
+        assertEquals(false, engine.execute(rule, bindings));
+        bindings.put("flag", null);
+        assertNull(engine.execute(rule, bindings));
+    }
+
+    @Test
+    public void testOutputCapture() {
+        FwjsScript script = engine.compile("var f = function(n) { print(n * 2); }; f(x); f(x + 1);");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        engine.execute(script, Collections.singletonMap("x", 4), new PrintStream(bytes, true));
+        assertEquals("8" + System.lineSeparator() + "10" + System.lineSeparator(), bytes.toString());
+    }
+
+    @Test
+    public void testRunsDoNotShareGlobals() {
+        FwjsScript script = engine.compile("var count = 1; count;");
+        assertEquals(1, engine.execute(script));
+        assertEquals(1, engine.execute(script));
+    }
+
+    @Test
+    public void testBigNumbers() {
+        FwjsScript script = engine.compile("var f = function(n) { if (n < 2) 1; else n * f(n - 1); }; f(n) / x;");
+        Map<String,Object> bindings = new HashMap<String,Object>();
+        bindings.put("n", 25);
+        bindings.put("x", 1L);
+        assertEquals(new java.math.BigInteger("15511210043330985984000000"), engine.execute(script, bindings));
+        // numbers that fit come back as Integers
+        bindings.put("x", new java.math.BigInteger("15511210043330985984000000"));
+        assertEquals(1, engine.execute(script, bindings));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedBinding() {
+        engine.execute(engine.compile("x;"), Collections.singletonMap("x", "text"));
+    }
+
+    @Test
+    public void testConcurrentExecution() throws Exception {
+        FwjsScript fib = engine.compile(
+                "var fib = function(n) { if (n < 2) n; else fib(n - 1) + fib(n - 2); }; print(fib(n)); fib(n);");
+        int[] expected = {0, 1, 1, 2, 3, 5, 8, 13, 21, 34, 55, 89, 144, 233, 377, 610};
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> runs = new ArrayList<Future<String>>();
+            for (int i = 0; i < 400; i++) {
+                final int n = i % expected.length;
+                runs.add(pool.submit(() -> {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    Object result = engine.execute(fib, Collections.singletonMap("n", n),
+                            new PrintStream(bytes, true));
+                    return result + " " + bytes.toString().trim();
+                }));
+            }
+            for (int i = 0; i < runs.size(); i++) {
+                int fibN = expected[i % expected.length];
+                assertEquals(fibN + " " + fibN, runs.get(i).get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentPropertyCaches() throws Exception {
+        // the sets and reads of z see objects of five shapes, depending on n,
+        // through the caches all the runs share
+        FwjsScript script = engine.compile("var o = {};"
+                + "if (n % 5 == 0) o.a = n; if (n % 5 == 1) o.b = n; if (n % 5 == 2) o.c = n; if (n % 5 == 3) o.d = n;"
+                + "o.z = n; var s = 0; var i = 0; while (i < 20) { s = s + o.z; o.z = o.z + 1; i = i + 1; } s;");
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Object>> runs = new ArrayList<Future<Object>>();
+            for (int i = 0; i < 400; i++) {
+                final int n = i;
+                runs.add(pool.submit(() -> engine.execute(script, Collections.singletonMap("n", n),
+                        Output.capture(), ResourceLimits.NONE)));
+            }
+            for (int i = 0; i < runs.size(); i++)
+                assertEquals(20 * i + 190, runs.get(i).get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testPreludeForks() throws Exception {
+        Environment lib = engine.prelude(engine.compile(
+                "var count = 0;"
+                + "var tick = function() { count = count + 1; count; };"
+                + "var counter = function() { var n = 0; function() { n = n + 1; n; }; };"
+                + "var next = counter();"
+                + "var fib = function(n) { if (n < 2) n; else fib(n - 1) + fib(n - 2); };"
+                + "var scale = 10;"), Collections.<String,Object>emptyMap());
+        FwjsScript rule = engine.compile("tick(); next(); 100 * tick() + 10 * next() + fib(scale);");
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            // each run starts from the prelude's state, however many ran before
+            List<Future<Object>> runs = new ArrayList<Future<Object>>();
+            for (int i = 0; i < 200; i++) {
+                runs.add(pool.submit(() -> engine.execute(rule, lib, Collections.<String,Object>emptyMap(),
+                        Output.capture(), ResourceLimits.NONE)));
+            }
+            for (Future<Object> run : runs)
+                assertEquals(275, run.get());
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(IntVal.of(0), lib.resolveVar("count"));
+        assertEquals(228, engine.execute(rule, lib, Collections.singletonMap("scale", 6),
+                Output.capture(), ResourceLimits.NONE));
+        // a closure reached twice is copied once
+        FwjsScript same = engine.compile("var t = tick; t == tick;");
+        assertEquals(true, engine.execute(same, lib, Collections.<String,Object>emptyMap(),
+                Output.capture(), ResourceLimits.NONE));
+    }
+
+    @Test
+    public void testPreludeForkArrays() {
+        Environment lib = engine.prelude(engine.compile(
+                "var xs = [1, 2, 3];"
+                + "var boxes = [xs, [true]];"
+                + "var push = function(x) { xs[length(xs)] = x; length(xs); };"),
+                Collections.<String,Object>emptyMap());
+        FwjsScript rule = engine.compile("push(4); boxes[1][0] = false; boxes[0] == xs;");
+        for (int i = 0; i < 3; i++) {
+            Output out = Output.capture();
+            assertEquals(true, engine.execute(rule, lib, Collections.<String,Object>emptyMap(),
+                    out, ResourceLimits.NONE));
+            assertEquals(3, engine.execute(engine.compile("length(xs);"), lib,
+                    Collections.<String,Object>emptyMap(), out, ResourceLimits.NONE));
+        }
+        assertEquals("[1, 2, 3]", lib.resolveVar("xs").toString());
+        assertEquals("[[1, 2, 3], [true]]", lib.resolveVar("boxes").toString());
+    }
+
+    @Test
+    public void testPreludeForkObjects() {
+        Environment lib = engine.prelude(engine.compile(
+                "var config = { limit: 10, inner: { hits: 0 } };"
+                + "var hit = function() { config.inner.hits = config.inner.hits + 1; };"),
+                Collections.<String,Object>emptyMap());
+        FwjsScript rule = engine.compile("hit(); hit(); config.limit = 0; config.inner.hits;");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(2, engine.execute(rule, lib, Collections.<String,Object>emptyMap(),
+                    Output.capture(), ResourceLimits.NONE));
+        }
+        assertEquals("{limit: 10, inner: {hits: 0}}", lib.resolveVar("config").toString());
+    }
+
+    @Test
+    public void testPreludeImage() throws Exception {
+        FwjsEngine memoizing = new FwjsEngine(true, 128);
+        Path file = Files.createTempFile("fwjs", ".image");
+        try {
+            memoizing.saveImage("var fib = function(n) { if (n < 2) n; else fib(n - 1) + fib(n - 2); };"
+                    + "var counter = function() { var n = 0; function() { n = n + 1; n; }; };"
+                    + "var next = counter(); next(); var xs = [base];",
+                    Collections.singletonMap("base", 40), file);
+            Environment lib = memoizing.loadImage(file);
+            FwjsScript rule = memoizing.compile("next(); xs[0] + fib(n) + next();");
+            for (int i = 0; i < 3; i++) {
+                assertEquals(40 + 6765 + 3, memoizing.execute(rule, lib, Collections.singletonMap("n", 20),
+                        Output.capture(), ResourceLimits.NONE));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testPreludeMemosDoNotOutliveItsRun() {
+        // a run may assign what a pure function of the prelude calls
+        FwjsEngine memoizing = new FwjsEngine(true, 16);
+        Environment lib = memoizing.prelude(memoizing.compile(
+                "var sq = function(n) { n * n; }; var sq4 = function(n) { sq(n) + 4; }; sq4(3);"),
+                Collections.<String,Object>emptyMap());
+        FwjsScript rule = memoizing.compile("var a = sq4(3); sq = function(n) { 0; }; var b = sq4(3); [a, b];");
+        assertEquals("[13, 4]", memoizing.execute(rule, lib, Collections.<String,Object>emptyMap(),
+                Output.capture(), ResourceLimits.NONE).toString());
+    }
+
+    private ResourceLimitExceeded.Limit limitHit(String source, ResourceLimits limits) {
+        try {
+            engine.execute(engine.compile(source), Collections.<String,Object>emptyMap(), Output.capture(), limits);
+        } catch (ResourceLimitExceeded e) {
+            return e.getLimit();
+        }
+        return null;
+    }
+
+    @Test
+    public void testMemoization() {
+        FwjsEngine memoizing = new FwjsEngine(true, 128);
+        FwjsScript script = memoizing.compile(
+                "var fib = function(n) { if (n < 2) n; else fib(n - 1) + fib(n - 2); };"
+                + "var over = function(n) { n > limit; };"
+                + "if (over(fib(n))) fib(n); else 0 - fib(n);");
+        assertEquals(1, script.getMemoStats().size());
+        MemoStats fib = script.getMemoStats().get(0);
+        assertEquals("fib:1:11", fib.getFunction());
+
+        Map<String,Object> bindings = new HashMap<String,Object>();
+        bindings.put("n", 25);
+        bindings.put("limit", 1000);
+        assertEquals(75025, memoizing.execute(script, bindings));
+        assertEquals(26, fib.getMisses());
+        // results are not kept from one run to the next, and over reads
+        // a binding, so it is not memoized
+        bindings.put("limit", 1000000);
+        assertEquals(-75025, memoizing.execute(script, bindings));
+        assertEquals(52, fib.getMisses());
+        assertEquals(0, engine.compile("var f = function(n) { n; }; f(1);").getMemoStats().size());
+    }
+
+    @Test
+    public void testResourceLimits() {
+        assertEquals(ResourceLimitExceeded.Limit.STEPS,
+                limitHit("while (true) 1;", ResourceLimits.NONE.withMaxSteps(100000)));
+        assertEquals(ResourceLimitExceeded.Limit.TIME,
+                limitHit("while (true) 1;", ResourceLimits.NONE.withTimeout(Duration.ofMillis(50))));
+        assertEquals(ResourceLimitExceeded.Limit.CALL_DEPTH,
+                limitHit("var f = function(n) { 1 + f(n + 1); }; f(0);", ResourceLimits.NONE.withMaxCallDepth(500)));
+        assertEquals(ResourceLimitExceeded.Limit.ALLOCATIONS,
+                limitHit("var f = null; while (true) f = function() { f; };",
+                        ResourceLimits.NONE.withMaxAllocations(1000)));
+        // tail calls run in constant depth, but are still steps
+        assertEquals(ResourceLimitExceeded.Limit.STEPS,
+                limitHit("var f = function(n) { f(n + 1); }; f(0);",
+                        ResourceLimits.NONE.withMaxCallDepth(10).withMaxSteps(100000)));
+        assertNull(limitHit("var f = function(n) { if (n < 2) n; else f(n - 1) + f(n - 2); }; f(10);",
+                ResourceLimits.NONE.withMaxSteps(1000).withMaxCallDepth(10)));
+    }
+
+    @Test
+    public void testResourceLimitsAcrossTasks() {
+        // steps are counted over all tasks, and a limit hit in a task is
+        // thrown by join
+        assertEquals(ResourceLimitExceeded.Limit.STEPS,
+                limitHit("var t = spawn(function() { while (true) 1; }); join(t);",
+                        ResourceLimits.NONE.withMaxSteps(100000)));
+        assertEquals(ResourceLimitExceeded.Limit.STEPS,
+                limitHit("var f = function() { var i = 0; while (i < 20000) i = i + 1; };"
+                        + "var a = spawn(f); var b = spawn(f); f(); join(a); join(b);",
+                        ResourceLimits.NONE.withMaxSteps(50000)));
+        // each task has a call depth of its own
+        assertNull(limitHit("var f = function(n) { if (n < 1) 0; else 1 + f(n - 1); };"
+                + "var a = spawn(function() { f(30); }); var b = spawn(function() { f(30); });"
+                + "f(30) + join(a) + join(b);", ResourceLimits.NONE.withMaxCallDepth(40)));
+    }
+
+    @Test
+    public void testSpawnCapturesOutput() {
+        Output out = Output.capture();
+        FwjsScript script = engine.compile(
+                "var p = function(n) { var i = 0; while (i < n) { print(i); i = i + 1; }; n; };"
+                + "var a = spawn(function() { p(100); }); var b = spawn(function() { p(100); });"
+                + "join(a) + join(b);");
+        assertEquals(200, engine.execute(script, Collections.<String,Object>emptyMap(), out, ResourceLimits.NONE));
+        assertEquals(200, out.toString().split(System.lineSeparator()).length);
+    }
+
+    @Test
+    public void testResourceLimitsOnAllEngines() {
+        Expression prog = Interpreter.parse(CharStreams.fromString(
+                "var i = 0; while (i < 10) i = i + 1; var f = function(n) { if (n < 1) 0; else 1 + f(n - 1); }; f(i);"));
+        ResourceLimits within = ResourceLimits.NONE.withMaxSteps(21).withMaxCallDepth(11);
+        ResourceLimits over = ResourceLimits.NONE.withMaxSteps(20);
+        assertEquals(IntVal.of(10), prog.evaluate(new Environment(null, within.newBudget())));
+        assertEquals(IntVal.of(10), BytecodeCompiler.compile(prog).run(0, new Environment(null, within.newBudget())));
+        assertEquals(IntVal.of(10), new Vm().execute(VmCompiler.compile(prog), new Environment(null, within.newBudget())));
+        assertEquals(IntVal.of(10), new StacklessEvaluator().evaluate(prog, new Environment(null, within.newBudget())));
+        for (int engine = 0; engine < 4; engine++) {
+            Environment env = new Environment(null, over.newBudget());
+            try {
+                if (engine == 0)
+                    prog.evaluate(env);
+                else if (engine == 1)
+                    BytecodeCompiler.compile(prog).run(0, env);
+                else if (engine == 2)
+                    new Vm().execute(VmCompiler.compile(prog), env);
+                else
+                    new StacklessEvaluator().evaluate(prog, env);
+                fail("engine " + engine + " ran over its steps");
+            } catch (ResourceLimitExceeded e) {
+                assertEquals(ResourceLimitExceeded.Limit.STEPS, e.getLimit());
+            }
+        }
+    }
+
+    @Test
+    public void testOutputSinks() {
+        FwjsScript script = engine.compile(
+                "print(min); print(0 - 7); print(true); print(null); var i = 0; while (i < 500) { print(i * 1000); i = i + 1; }");
+        Map<String,Object> bindings = Collections.singletonMap("min", Integer.MIN_VALUE);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        engine.execute(script, bindings, new PrintStream(expected, true));
+
+        Output capture = Output.capture();
+        engine.execute(script, bindings, capture, ResourceLimits.NONE);
+        assertEquals(expected.toString(), capture.toString());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        engine.execute(script, bindings, Output.buffered(bytes, 32, 1000), ResourceLimits.NONE);
+        assertEquals(expected.toString(), bytes.toString());
+
+        bytes.reset();
+        Output async = Output.async(bytes);
+        engine.execute(script, bindings, async, ResourceLimits.NONE);
+        engine.execute(script, bindings, async, ResourceLimits.NONE);
+        async.close();
+        assertEquals(expected.toString() + expected.toString(), bytes.toString());
+    }
+}
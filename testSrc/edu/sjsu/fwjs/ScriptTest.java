@@ -0,0 +1,562 @@
+package edu.sjsu.fwjs;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.Test;
+
+/**
+ * Runs the scripts in fwjsScripts/ through each execution engine,
+ * and checks that they all print the same as the tree-walker.
+ */
+public class ScriptTest {
+    private static final File SCRIPT_DIR = new File("fwjsScripts");
+
+    private interface Engine {
+        void run(Expression prog);
+    }
+
+    private static final Engine TREE_WALKER = prog -> prog.evaluate(new Environment());
+    private static final Engine COMPILER = prog -> BytecodeCompiler.compile(prog).run(0, new Environment());
+    private static final Engine VM = prog -> new Vm().execute(VmCompiler.compile(prog), new Environment());
+    private static final Engine STACKLESS = prog -> new StacklessEvaluator().evaluate(prog, new Environment());
+
+    private static String output(String source, Engine engine) {
+        return output(() -> engine.run(Interpreter.parse(CharStreams.fromString(source))));
+    }
+
+    private static String output(Runnable run) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(bytes, true));
+        try {
+            run.run();
+        } finally {
+            System.setOut(out);
+        }
+        return bytes.toString();
+    }
+
+    private static File[] scripts() {
+        File[] scripts = SCRIPT_DIR.listFiles((dir, name) ->
+                name.endsWith(".fwjs"));
+        assertNotNull(scripts);
+        assertTrue(scripts.length > 0);
+        return scripts;
+    }
+
+    private static void assertSameOutput(Engine engine) throws IOException {
+        for (File script : scripts()) {
+            String source = CharStreams.fromFileName(script.getPath()).toString();
+            assertEquals(script.getName(), output(source, TREE_WALKER), output(source, engine));
+        }
+    }
+
+    @Test
+    public void testTreeWalkerOutput() {
+        assertEquals("55" + System.lineSeparator(), output("var fib = function(n) { if (n < 2) n; else fib(n-1) + fib(n-2); };"
+                + "print(fib(10));", TREE_WALKER));
+    }
+
+    @Test
+    public void testCompilerMatchesTreeWalker() throws IOException {
+        assertSameOutput(COMPILER);
+    }
+
+    @Test
+    public void testVmMatchesTreeWalker() throws IOException {
+        assertSameOutput(VM);
+    }
+
+    @Test
+    // calls between VM functions do not use the Java stack
+    public void testVmDeepRecursion() {
+        String source = "var count = function(n) { if (n == 0) 0; else 1 + count(n - 1); };"
+                + "print(count(100000));";
+        assertEquals("100000" + System.lineSeparator(),
+                output(source, VM));
+    }
+
+    @Test
+    // int results the VM keeps unboxed, used as everything but operands
+    public void testVmUnboxedInts() {
+        String source = "var big = 2147483647 + 1; print(big); print(0 - 2147483647 - 2);"
+                + "print(65536 * 65536 / 4); print(7 % 3 + 7 / 2);"
+                + "var id = function(x) { x; }; print(id(2 + 3) * id(4 - 9));"
+                + "var a = [1 + 1, 2 * 3]; a[1 - 1] = a[0] + 40; print(a[3 - 3] + a[1]);"
+                + "var o = { p: 2 + 2 }; o.p = o.p * 5; print(o.p);"
+                + "if (3 - 3 > 0) print(1); else print(2); print(2 + 3 == 5);"
+                + "var i = 0; var s = 0; while (i < 100000) { s = (s + i * 3) % 1000003; i = i + 1; } print(s);";
+        assertEquals(output(source, TREE_WALKER), output(source, VM));
+    }
+
+    @Test
+    public void testStacklessMatchesTreeWalker() throws IOException {
+        assertSameOutput(STACKLESS);
+    }
+
+    @Test
+    // non-tail recursion 100000 calls deep, over a list of closures,
+    // in a thread with a small stack
+    public void testStacklessDeepRecursion() throws Exception {
+        String source = "var pair = function(x, y) { function(f) { f(x, y); }; };"
+                + "var tail = function(p) { p(function(x, y) { y; }); };"
+                + "var lst = null; var i = 0;"
+                + "while (i < 100000) { i = i + 1; lst = pair(i, lst); }"
+                + "var length = function(l) { if (l == null) 0; else 1 + length(tail(l)); };"
+                + "print(length(lst));";
+        String[] printed = new String[1];
+        Thread small = new Thread(null, () -> printed[0] = output(source, STACKLESS), "small-stack", 256 * 1024);
+        small.start();
+        small.join();
+        assertEquals("100000" + System.lineSeparator(), printed[0]);
+
+        Expression prog = Interpreter.parse(CharStreams.fromString(source));
+        try {
+            new StacklessEvaluator(10000).evaluate(prog, new Environment(Output.capture()));
+            fail("ran past its frames");
+        } catch (ResourceLimitExceeded e) {
+            assertEquals(ResourceLimitExceeded.Limit.CALL_DEPTH, e.getLimit());
+        }
+    }
+
+    @Test
+    // elements, indexes and values made by calls, one step at a time
+    // in the stackless evaluator
+    public void testArraysOfCalls() {
+        String source = "var id = function(x) { x; };"
+                + "var a = [id(1), id([2, id(3)])];"
+                + "a[id(0)] = id(a[id(1)][1]) + 1;"
+                + "print(a);";
+        String expected = "[4, [2, 3]]" + System.lineSeparator();
+        for (Engine engine : new Engine[] { TREE_WALKER, COMPILER, VM, STACKLESS })
+            assertEquals(expected, output(source, engine));
+    }
+
+    @Test
+    public void testObjectsOfCalls() {
+        String source = "var id = function(x) { x; };"
+                + "var o = { a: id(1), b: id({ c: id(2) }) };"
+                + "id(o).a = id(o.b).c + id(3);"
+                + "print(o);";
+        String expected = "{a: 5, b: {c: 2}}" + System.lineSeparator();
+        for (Engine engine : new Engine[] { TREE_WALKER, COMPILER, VM, STACKLESS })
+            assertEquals(expected, output(source, engine));
+    }
+
+    @Test
+    public void testDisassembler() {
+        String listing = VmDisassembler.disassemble(VmCompiler.compile(
+                Interpreter.parse(CharStreams.fromString("var f = function(x) { x + 1; }; print(f(41));"))));
+        assertTrue(listing, listing.contains("CLOSURE"));
+        assertTrue(listing, listing.contains("function#1 (x)"));
+        assertTrue(listing, listing.contains("LOAD_LOCAL           0 0"));
+    }
+
+    @Test
+    // a function too large for one JVM method is left to the tree-walker
+    public void testCompilerLargeFunction() {
+        StringBuilder source = new StringBuilder("var f = function(a) {");
+        for (int i = 0; i < 5000; i++)
+            source.append("a = a + 1;");
+        source.append("a; }; print(f(0));");
+        assertEquals("5000" + System.lineSeparator(), output(source.toString(), COMPILER));
+    }
+
+    @Test
+    // tail calls, including mutual recursion, run in constant Java stack
+    public void testDeepTailRecursion() {
+        String source = "var count = function(n, acc) { if (n == 0) acc; else count(n - 1, acc + 1); };"
+                + "var even = function(n) { if (n == 0) true; else odd(n - 1); };"
+                + "var odd = function(n) { if (n == 0) false; else { var m = n - 1; even(m); } };"
+                + "print(count(200000, 0)); print(even(100001));";
+        String expected = "200000" + System.lineSeparator() + "false" + System.lineSeparator();
+        assertEquals(expected, output(source, TREE_WALKER));
+        assertEquals(expected, output(source, COMPILER));
+        assertEquals(expected, output(source, VM));
+        assertEquals(expected, output(source, STACKLESS));
+    }
+
+    @Test
+    public void testPooledFrames() {
+        // sum and apply cannot capture their frames; counter's escape
+        // into the closure it returns
+        String source = "var sum = function(n) { if (n == 0) 0; else n + sum(n - 1); };"
+                + "var counter = function(start) { var n = start; function() { n = n + 1; n; }; };"
+                + "var apply = function(f, times) { var r = null; while (times > 0) { r = f(); times = times - 1; } r; };"
+                + "var loop = function(n, acc) { if (n == 0) acc; else loop(n - 1, acc + sum(3)); };"
+                + "var c = counter(sum(4)); var d = counter(100);"
+                + "print(apply(c, 3)); print(apply(d, 1)); print(c()); print(loop(1000, 0));";
+        Expression prog = Interpreter.parse(CharStreams.fromString(source));
+        assertFalse(layoutOf(prog, "sum").escapes);
+        assertTrue(layoutOf(prog, "counter").escapes);
+
+        String nl = System.lineSeparator();
+        String expected = "13" + nl + "101" + nl + "14" + nl + "6000" + nl;
+        for (Engine engine : new Engine[] { TREE_WALKER, COMPILER, VM, STACKLESS }) {
+            assertEquals(expected, output(source, engine));
+            assertEquals(0, FrameStack.current().mark());
+        }
+
+        // the frames of the calls an error unwinds are given back as well,
+        // and so is the frame of a call whose arguments cannot be bound
+        String[] failing = {
+            "var f = function(n) { if (n == 0) { var n = 1; n; } else f(n - 1) + 1; }; f(50);",
+            "var g = function(a, a) { a; }; var h = function(n) { g(n, n) + 1; }; h(1);",
+        };
+        for (String script : failing) {
+            for (Engine engine : new Engine[] { TREE_WALKER, COMPILER, VM, STACKLESS }) {
+                try {
+                    output(script, engine);
+                    fail("expected a redeclaration error");
+                } catch (RuntimeException e) {
+                    assertEquals("error: variable is already declared", e.getMessage());
+                    assertEquals(0, FrameStack.current().mark());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMemoizedScriptsMatchTreeWalker() throws IOException {
+        for (File script : scripts()) {
+            String source = CharStreams.fromFileName(script.getPath()).toString();
+            String expected = output(source, TREE_WALKER);
+            for (Engine engine : new Engine[] { TREE_WALKER, COMPILER, VM, STACKLESS }) {
+                Expression prog = Interpreter.parse(CharStreams.fromString(source));
+                PurityAnalysis.memoize(prog, 4);
+                assertEquals(script.getName(), expected, output(() -> engine.run(prog)));
+            }
+        }
+    }
+
+    @Test
+    public void testPurityAnalysis() {
+        String source = "var fib = function(n) { if (n < 2) n; else fib(n - 1) + fib(n - 2); };"
+                + "var sq = function(n) { var r = n * n; r; };"
+                + "var fibsq = function(n) { sq(fib(n)); };"
+                + "var count = 0;"
+                + "var tick = function() { count = count + 1; count; };"
+                + "var shout = function(n) { print(n); };"
+                + "var scaled = function(n) { n * count; };"
+                + "var adder = function(n) { function(m) { n + m; }; };"
+                + "var twice = function(f, n) { f(f(n)); };"
+                + "var early = function(n) { late(n); };"
+                + "var late = function(n) { n; };"
+                + "var moved = function(n) { n; }; moved = sq;";
+        Expression prog = Interpreter.parse(CharStreams.fromString(source));
+        List<String> pure = new ArrayList<String>();
+        for (MemoStats stats : PurityAnalysis.memoize(prog, 16))
+            pure.add(stats.getFunction().substring(0, stats.getFunction().indexOf(':')));
+        assertEquals(Arrays.asList("fib", "sq", "fibsq", "late"), pure);
+    }
+
+    @Test
+    public void testMemoStats() {
+        String source = "var fib = function(n) { if (n < 2) n; else fib(n - 1) + fib(n - 2); };"
+                + "var same = function(x) { x; };"
+                + "print(fib(20)); print(fib(20)); print(same(true)); print(same(true));";
+        String nl = System.lineSeparator();
+        for (Engine engine : new Engine[] { TREE_WALKER, COMPILER, VM, STACKLESS }) {
+            Expression prog = Interpreter.parse(CharStreams.fromString(source));
+            List<MemoStats> memos = PurityAnalysis.memoize(prog, 64);
+            assertEquals("6765" + nl + "6765" + nl + "true" + nl + "true" + nl, output(() -> engine.run(prog)));
+            // fib(0) to fib(20) are each computed once; each fib(n - 2)
+            // from fib(3) on, and the second fib(20), are remembered
+            MemoStats stats = memos.get(0);
+            assertEquals(21, stats.getMisses());
+            assertEquals(19, stats.getHits());
+            assertEquals(0, stats.getEvictions());
+            assertEquals(1, memos.get(1).getMisses());
+            assertEquals(1, memos.get(1).getHits());
+
+            Expression small = Interpreter.parse(CharStreams.fromString(source));
+            stats = PurityAnalysis.memoize(small, 2).get(0);
+            output(() -> engine.run(small));
+            assertTrue(stats.getEvictions() > 0);
+        }
+    }
+
+    @Test
+    public void testSpawnCreatesGlobalsConcurrently() {
+        // each task creates a global of its own in the shared global frame,
+        // which grows (and gets a name index) while the others read it
+        StringBuilder source = new StringBuilder("var tasks = null; var total = 0;");
+        for (int i = 0; i < 64; i++)
+            source.append("var t" + i + " = spawn(function() { v" + i + " = " + i + "; v" + i + "; });");
+        for (int i = 0; i < 64; i++)
+            source.append("total = total + join(t" + i + ") + v" + i + ";");
+        source.append("print(total);");
+        for (Engine engine : new Engine[] { TREE_WALKER, COMPILER, VM, STACKLESS })
+            assertEquals("4032" + System.lineSeparator(), output(source.toString(), engine));
+    }
+
+    @Test
+    public void testJoinRethrowsErrors() {
+        String source = "var t = spawn(function() { var a = 1; var a = 2; }); print(1); join(t); print(2);";
+        for (Engine engine : new Engine[] { TREE_WALKER, COMPILER, VM, STACKLESS }) {
+            try {
+                output(source, engine);
+                fail("join did not rethrow");
+            } catch (RuntimeException e) {
+                assertEquals("error: variable is already declared", e.getMessage());
+            }
+        }
+        // a script can hide the built-ins
+        assertEquals("3" + System.lineSeparator(),
+                output("var spawn = function(f) { 3; }; print(spawn(1));", TREE_WALKER));
+    }
+
+    @Test
+    public void testSpawnedTasksSpecializeSharedNodes() {
+        // two tasks run the + of add at once, one on ints and one on big
+        // ints, and either may be the one to specialize it
+        String source = "var add = function(a, b) { a + b; };"
+                + "var sum = function(x, n) { var s = x; var i = 0; while (i < n) { s = add(s, 1); i = i + 1; } s; };"
+                + "var big = 2147483647 * 4;"
+                + "var t = spawn(function() { sum(0, 20000); });"
+                + "var u = spawn(function() { sum(big, 20000); });"
+                + "print(join(t)); print(join(u));";
+        String nl = System.lineSeparator();
+        for (int i = 0; i < 20; i++)
+            assertEquals("20000" + nl + "8589954588" + nl, output(source, TREE_WALKER));
+    }
+
+    private static FrameLayout layoutOf(Expression prog, String name) {
+        FrameLayout[] found = new FrameLayout[1];
+        prog.accept(new ExpressionScanner() {
+            @Override
+            public Void visitVarDecl(VarDeclExpr e) {
+                if (e.varName.equals(name) && e.exp instanceof FunctionDeclExpr)
+                    found[0] = ((FunctionDeclExpr) e.exp).layout;
+                return super.visitVarDecl(e);
+            }
+        });
+        assertNotNull(name, found[0]);
+        return found[0];
+    }
+
+    @Test
+    public void testAstCacheRoundTrip() throws IOException {
+        for (File script : scripts()) {
+            String source = CharStreams.fromFileName(script.getPath()).toString();
+            byte[] entry = AstCache.encode(Interpreter.build(CharStreams.fromString(source)));
+            Expression prog = Interpreter.resolve(AstCache.decode(ByteBuffer.wrap(entry)), Optimizer.standard());
+            assertEquals(script.getName(), output(source, TREE_WALKER), output(() -> TREE_WALKER.run(prog)));
+        }
+    }
+
+    @Test
+    public void testAstCacheMissOnCorruptEntry() throws IOException {
+        Path dir = Files.createTempDirectory("fwjs-cache");
+        try {
+            AstCache cache = new AstCache(dir);
+            String source = "var x = 6; print(x * 7);";
+            assertNull(cache.load(source));
+            cache.store(source, Interpreter.build(CharStreams.fromString(source)));
+            assertNotNull(cache.load(source));
+
+            byte[] entry = Files.readAllBytes(cache.entry(source));
+            entry[entry.length - 1] ^= 1;
+            Files.write(cache.entry(source), entry);
+            assertNull(cache.load(source));
+            Files.write(cache.entry(source), new byte[] { 1, 2, 3 });
+            assertNull(cache.load(source));
+        } finally {
+            for (File f : dir.toFile().listFiles())
+                f.delete();
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    // a syntax error makes the SLL stage bail out, and the LL stage report it
+    public void testParserFallsBackToLL() {
+        FwjsParser parser = new FwjsParser();
+        parser.parse(CharStreams.fromString("var x = 1; print(x);"));
+        assertEquals(0, parser.llParses());
+
+        PrintStream err = System.err;
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(errors, true));
+        try {
+            parser.parse(CharStreams.fromString("print(1) print(2);"));
+        } finally {
+            System.setErr(err);
+        }
+        assertEquals(1, parser.llParses());
+        assertTrue(errors.toString(), errors.toString().contains("line 1"));
+
+        parser.parse(CharStreams.fromString("if (true) { 1; } else 2;"));
+        assertEquals(1, parser.llParses());
+    }
+
+    @Test
+    public void testProfiler() throws InterruptedException {
+        String source = "var fib = function(n) {\n  if (n < 2) n; else fib(n - 1) + fib(n - 2);\n};\n"
+                + "var twice = function(f) { function(x) { f(f(x)); }; };\n"
+                + "print(twice(fib)(6));";
+        Profiler profiler = new Profiler(100);
+        Expression prog = profiler.instrument(Interpreter.parse(CharStreams.fromString(source)));
+        profiler.start();
+        assertEquals("21" + System.lineSeparator(), output(() -> TREE_WALKER.run(prog)));
+        profiler.stop();
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        profiler.report(new PrintStream(report, true));
+        // fib(fib(6)) makes 25 + 67 calls
+        assertTrue(report.toString(), report.toString().matches("(?s).*\\nfib:1:11 +92 .*"));
+        assertTrue(report.toString(), report.toString().matches("(?s).*\\ntwice:4:13 +1 .*"));
+        assertTrue(report.toString(), report.toString().matches("(?s).*\\n<anonymous>:4:27 +1 .*"));
+
+        ByteArrayOutputStream folded = new ByteArrayOutputStream();
+        profiler.writeFolded(new PrintStream(folded, true));
+        for (String line : folded.toString().split("\\R"))
+            assertTrue(line, line.isEmpty() || line.matches("<program>:1:1(;\\S+)* \\d+"));
+    }
+
+    @Test
+    public void testSnapshotIsolatedFromOrigin() {
+        Environment env = new Environment();
+        Interpreter.parse(CharStreams.fromString(
+                "var mk = function() { var n = 0; function() { n = n + 1; n; }; };"
+                + "var c = mk(); var xs = [1]; var o = { k: xs };")).evaluate(env);
+        Environment snap = env.snapshot();
+        Environment early = env.fork();
+        // what the origin does to captured frames, arrays and objects
+        // after the snapshot is not seen in it
+        Interpreter.parse(CharStreams.fromString("c(); c(); c(); xs[0] = 99; o.k = 5;")).evaluate(env);
+        Expression request = Interpreter.parse(CharStreams.fromString("[c(), xs[0], o.k[0]];"));
+        for (Environment fork : new Environment[] { snap.fork(), snap.fork(), early })
+            assertEquals("[1, 1, 1]", request.evaluate(fork).toString());
+        assertEquals("[1]", snap.resolveVar("xs").toString());
+        assertEquals("[99]", env.resolveVar("xs").toString());
+        // nor is what a fork does in a snapshot of it taken before
+        Environment fork = snap.fork();
+        Environment forkSnap = fork.snapshot();
+        request.evaluate(fork);
+        assertEquals("[2, 1, 1]", request.evaluate(fork).toString());
+        assertEquals("[1, 1, 1]", request.evaluate(forkSnap.fork()).toString());
+    }
+
+    private static String streamed(String source, String engine) {
+        return output(() -> Interpreter.stream(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)),
+                engine, Optimizer.standard(), new Environment(), Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testStreaming() throws IOException {
+        for (File script : scripts()) {
+            String source = CharStreams.fromFileName(script.getPath()).toString();
+            String expected = output(source, TREE_WALKER);
+            assertEquals(script.getName(), expected, streamed(source, "tree"));
+            assertEquals(script.getName(), expected, streamed(source, "vm"));
+        }
+        // a statement with a syntax error is skipped
+        String nl = System.lineSeparator();
+        assertEquals("1" + nl + "3" + nl, streamed("var x = 1; print(x); print(x +); x = 3; print(x);", "tree"));
+        // the statements after one that cannot be parsed still run, and
+        // one the parser repairs runs too, as when the program is parsed whole
+        assertEquals("1" + nl, streamed(") ; print(1);", "tree"));
+        assertEquals("1" + nl + "2" + nl, streamed("print(1) print(2);", "vm"));
+    }
+
+    private static final String PRELUDE =
+            "var counter = function() { var n = 0; { inc: function() { n = n + 1; n; }, get: function() { n; } }; };"
+            + "var c = counter(); var inc = c.inc; inc(); inc();"
+            + "var xs = [1, 2]; var ys = xs; xs[2] = xs;"
+            + "var big = 3000000000 * 7; var len = length;"
+            + "var fib = function(n) { if (n < 2) n; else fib(n - 1) + fib(n - 2); };"
+            + "var sq = function(n) { n * n; }; var sq4 = function(n) { sq(n) + 4; }; sq4(3);";
+
+    private static final String REQUEST =
+            "inc(); print(c.get()); print(xs == ys); print(xs[2] == xs); print(big + 1);"
+            + "print(len(ys)); print(fib(20));"
+            // restored closures do not memoize, as the request may assign what they call
+            + "print(sq4(3)); sq = function(n) { 0; }; print(sq4(3));";
+
+    @Test
+    public void testHeapImageRoundTrip() throws IOException {
+        Path file = Files.createTempFile("fwjs", ".image");
+        try {
+            String expected = output(PRELUDE + REQUEST, TREE_WALKER);
+            for (Engine saving : new Engine[] { TREE_WALKER, VM }) {
+                Expression prelude = Interpreter.parse(CharStreams.fromString(PRELUDE));
+                PurityAnalysis.memoize(prelude, 64);
+                Environment env = new Environment();
+                if (saving == VM)
+                    new Vm().execute(VmCompiler.compile(prelude), env);
+                else
+                    prelude.evaluate(env);
+                HeapImage.save(file, prelude, env);
+
+                HeapImage image = HeapImage.load(file);
+                Expression request = Interpreter.parse(CharStreams.fromString(REQUEST));
+                assertEquals(expected, output(() -> {
+                    Environment restored = new Environment();
+                    image.restore(restored, false);
+                    request.evaluate(restored);
+                }));
+                assertEquals(expected, output(() -> {
+                    Environment restored = new Environment();
+                    image.restore(restored, true);
+                    new Vm().execute(VmCompiler.compile(request), restored);
+                }));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testHeapImageRejectsBadFiles() throws IOException {
+        Path file = Files.createTempFile("fwjs", ".image");
+        try {
+            Expression prelude = Interpreter.parse(CharStreams.fromString(PRELUDE));
+            Environment env = new Environment();
+            prelude.evaluate(env);
+            HeapImage.save(file, prelude, env);
+            byte[] image = Files.readAllBytes(file);
+
+            byte[] corrupt = image.clone();
+            corrupt[corrupt.length - 1] ^= 1;
+            byte[] otherVersion = image.clone();
+            otherVersion[7]++;
+            for (byte[] bad : new byte[][] { corrupt, otherVersion, Arrays.copyOf(image, 30), new byte[0] }) {
+                Files.write(file, bad);
+                try {
+                    HeapImage.load(file);
+                    fail("loaded a bad image");
+                } catch (IllegalArgumentException e) {
+                    // expected
+                }
+            }
+
+            // tasks are not saved
+            Expression tasks = Interpreter.parse(CharStreams.fromString("var t = spawn(function() { 1; });"));
+            Environment withTask = new Environment();
+            tasks.evaluate(withTask);
+            try {
+                HeapImage.save(file, tasks, withTask);
+                fail("saved a task");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}